@@ -46,4 +46,16 @@ public interface File extends Document
      * @since 2.0M2
      */
     InputStream getContent();
+
+    /**
+     * @return the media type of the file content, {@code null} if it's not known
+     * @since 2.4
+     */
+    String getMediaType();
+
+    /**
+     * @return the size, in bytes, of the file content
+     * @since 2.4
+     */
+    long getSize();
 }
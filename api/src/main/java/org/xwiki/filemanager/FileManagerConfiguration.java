@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Provides the configuration of the file manager.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface FileManagerConfiguration
+{
+    /**
+     * @return the maximum number of files and folders that are saved in a single transaction by
+     *         {@link FileSystem#saveAll(java.util.Collection)}
+     */
+    int getSaveBatchSize();
+
+    /**
+     * @return the maximum number of files and folders that are deleted in a single transaction by
+     *         {@link FileSystem#deleteAll(java.util.Collection)}
+     */
+    int getDeleteBatchSize();
+
+    /**
+     * @return {@code true} if a folder is deleted together with its entire subtree using a few queries and batched
+     *         deletes, {@code false} if the folder hierarchy is deleted recursively, one child at a time
+     */
+    boolean isBulkDeleteEnabled();
+
+    /**
+     * @return the number of worker threads used by a file system job to process independent files and folders in
+     *         parallel; {@code 1} means the job processes everything on its own thread
+     */
+    int getWorkerThreadCount();
+
+    /**
+     * @return the maximum number of file system jobs that run at the same time; jobs that target the same drive are
+     *         always executed one after another, in the order they were scheduled
+     */
+    int getJobThreadCount();
+
+    /**
+     * @return the maximum number of milliseconds a file system job should take, on average, to save or delete a file
+     *         or folder; the job slows down when the writes take longer, which usually means the database is
+     *         overloaded, and speeds up again when they are fast; {@code 0} means the writes are only measured
+     */
+    int getWriteLatencyBudget();
+
+    /**
+     * @return the maximum disk space, in megabytes, used to cache the ZIP archives produced by the pack jobs; the least
+     *         recently used archives are removed when the cache is full
+     */
+    int getPackCacheSize();
+
+    /**
+     * @return the maximum number of files whose content is read ahead, on separate threads, while a pack job compresses
+     *         the current file on a single thread; this way the compression doesn't wait for the attachment store
+     */
+    int getPackReadAheadCount();
+
+    /**
+     * @return the maximum memory, in megabytes, used to hold the content of the files read ahead by a pack job; larger
+     *         files are read when they are compressed
+     */
+    int getPackReadAheadMemory();
+
+    /**
+     * @return the maximum number of drives whose folder hierarchy is kept in memory by the drive hierarchy index; the
+     *         least recently used drives are dropped when the limit is reached and loaded again when needed
+     */
+    int getHierarchyIndexSize();
+
+    /**
+     * @return the maximum number of files that can be packed while the ZIP archive is streamed to the client; larger
+     *         selections, and selections that include folders, are packed by a job
+     */
+    int getStreamPackMaxFileCount();
+
+    /**
+     * @return the maximum total size, in megabytes, of the files that can be packed while the ZIP archive is streamed
+     *         to the client; larger selections are packed by a job
+     */
+    int getStreamPackMaxSize();
+}
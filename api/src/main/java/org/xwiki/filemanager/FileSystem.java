@@ -19,6 +19,10 @@
  */
 package org.xwiki.filemanager;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.stability.Unstable;
@@ -33,6 +37,27 @@ import org.xwiki.stability.Unstable;
 @Unstable
 public interface FileSystem
 {
+    /**
+     * The right to view a file or folder.
+     * 
+     * @since 2.4
+     */
+    String RIGHT_VIEW = "view";
+
+    /**
+     * The right to edit a file or folder.
+     * 
+     * @since 2.4
+     */
+    String RIGHT_EDIT = "edit";
+
+    /**
+     * The right to delete a file or folder.
+     * 
+     * @since 2.4
+     */
+    String RIGHT_DELETE = "delete";
+
     /**
      * @param folderReference a folder reference
      * @return the corresponding folder, {@code null} if it doesn't exist
@@ -45,6 +70,24 @@ public interface FileSystem
      */
     File getFile(DocumentReference fileReference);
 
+    /**
+     * Retrieves multiple folders at once, skipping the references that don't point to existing folders.
+     * 
+     * @param folderReferences the folder references
+     * @return the existing folders, in the order of the given references
+     * @since 2.4
+     */
+    List<Folder> getFolders(Collection<DocumentReference> folderReferences);
+
+    /**
+     * Retrieves multiple files at once, skipping the references that don't point to existing files.
+     * 
+     * @param fileReferences the file references
+     * @return the existing files, in the order of the given references
+     * @since 2.4
+     */
+    List<File> getFiles(Collection<DocumentReference> fileReferences);
+
     /**
      * @param reference a reference to a file or folder
      * @return {@code true} if the referenced entity exists, {@code false} otherwise
@@ -69,6 +112,64 @@ public interface FileSystem
      */
     boolean canDelete(DocumentReference reference);
 
+    /**
+     * Checks the specified right for multiple files or folders at once.
+     * 
+     * @param right the right to check, e.g. {@link #RIGHT_VIEW}, {@link #RIGHT_EDIT} or {@link #RIGHT_DELETE}
+     * @param references references to files or folders
+     * @return the references to the files and folders on which the current user has the specified right, in the order
+     *         they were given
+     * @since 2.4
+     */
+    List<DocumentReference> filterByRight(String right, Collection<DocumentReference> references);
+
+    /**
+     * Checks which of the given folders have child folders, using as few queries as possible. This is faster than
+     * calling {@link Folder#countChildFolders()} for each folder, e.g. when rendering a folder tree.
+     * 
+     * @param folderReferences references to folders
+     * @return the references to the given folders that have at least one child folder, in the order they were given
+     * @since 2.4
+     */
+    List<DocumentReference> hasChildFolders(Collection<DocumentReference> folderReferences);
+
+    /**
+     * Checks which of the given folders have child files, using as few queries as possible.
+     * 
+     * @param folderReferences references to folders
+     * @return the references to the given folders that have at least one child file, in the order they were given
+     * @since 2.4
+     */
+    List<DocumentReference> hasChildFiles(Collection<DocumentReference> folderReferences);
+
+    /**
+     * Looks for the files that are children of at least one of the given folders, using as few queries as possible.
+     * 
+     * @param folderReferences references to folders
+     * @return the references to the files that have at least one of the given folders as parent, each file being
+     *         listed once
+     * @since 2.4
+     */
+    List<DocumentReference> findChildFiles(Collection<DocumentReference> folderReferences);
+
+    /**
+     * Computes the total size of the given files, using as few queries as possible.
+     * 
+     * @param fileReferences references to files
+     * @return the total size (in bytes) of the content of the given files
+     * @since 2.4
+     */
+    long getTotalFileSize(Collection<DocumentReference> fileReferences);
+
+    /**
+     * Retrieves the current version of the given files and folders, using as few queries as possible.
+     * 
+     * @param references references to files and folders
+     * @return the version of each of the given files and folders that exist
+     * @since 2.4
+     */
+    Map<DocumentReference, String> getVersions(Collection<DocumentReference> references);
+
     /**
      * Save a file or a folder.
      * 
@@ -76,6 +177,15 @@ public interface FileSystem
      */
     void save(Document document);
 
+    /**
+     * Saves multiple files and folders. The documents are saved in batches, each batch in a single transaction, which
+     * is much faster than saving the documents one by one when there are many of them.
+     * 
+     * @param documents the files and folders to save
+     * @since 2.4
+     */
+    void saveAll(Collection<? extends Document> documents);
+
     /**
      * Delete a file or a folder.
      * 
@@ -83,6 +193,14 @@ public interface FileSystem
      */
     void delete(DocumentReference reference);
 
+    /**
+     * Deletes multiple files and folders. The documents are deleted in batches, each batch in a single transaction.
+     * 
+     * @param references the files and folders to delete
+     * @since 2.4
+     */
+    void deleteAll(Collection<DocumentReference> references);
+
     /**
      * Renames the specified file or folder.
      * 
@@ -19,6 +19,7 @@
  */
 package org.xwiki.filemanager;
 
+import java.util.Iterator;
 import java.util.List;
 
 import org.xwiki.component.annotation.Role;
@@ -56,4 +57,62 @@ public interface Folder extends Document
      * @return the read-only list of references to the child files
      */
     List<DocumentReference> getChildFileReferences();
+
+    /**
+     * Iterates the child folders without loading all their references in memory. The references are retrieved in small
+     * batches, ordered by document name, so this should be preferred over {@link #getChildFolderReferences()} for
+     * folders that have many children. Moving or deleting the child folders that have already been iterated doesn't
+     * affect the iteration.
+     * 
+     * @return an iterator over the references to the child folders
+     * @since 2.4
+     */
+    Iterator<DocumentReference> iterateChildFolderReferences();
+
+    /**
+     * Iterates the child files without loading all their references in memory. The references are retrieved in small
+     * batches, ordered by document name, so this should be preferred over {@link #getChildFileReferences()} for
+     * folders that have many children. Moving or deleting the child files that have already been iterated doesn't
+     * affect the iteration.
+     * 
+     * @return an iterator over the references to the child files
+     * @since 2.4
+     */
+    Iterator<DocumentReference> iterateChildFileReferences();
+
+    /**
+     * Counts the child folders without retrieving their references.
+     * 
+     * @return the number of child folders
+     * @since 2.4
+     */
+    int countChildFolders();
+
+    /**
+     * Counts the child files without retrieving their references.
+     * 
+     * @return the number of child files
+     * @since 2.4
+     */
+    int countChildFiles();
+
+    /**
+     * Looks for a child folder with the given name. This is faster than loading all the child folders and comparing
+     * their names, except when there's no child folder with the given name.
+     * 
+     * @param name the name of the child folder to look for
+     * @return the reference to the child folder with the given name, {@code null} if there's no such child folder
+     * @since 2.4
+     */
+    DocumentReference findChildFolderByName(String name);
+
+    /**
+     * Looks for a child file with the given name. This is faster than loading all the child files and comparing their
+     * names, except when there's no child file with the given name.
+     * 
+     * @param name the name of the child file to look for
+     * @return the reference to the child file with the given name, {@code null} if there's no such child file
+     * @since 2.4
+     */
+    DocumentReference findChildFileByName(String name);
 }
@@ -19,6 +19,8 @@
  */
 package org.xwiki.filemanager;
 
+import java.io.Serializable;
+
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.stability.Unstable;
@@ -32,8 +34,13 @@ import org.xwiki.stability.Unstable;
  * @since 2.0M1
  */
 @Unstable
-public class Path
+public class Path implements Serializable
 {
+    /**
+     * Serialization identifier.
+     */
+    private static final long serialVersionUID = 1L;
+
     /**
      * Specifies the folder.
      */
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.hierarchy;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Answers questions about the folder hierarchy of a drive without loading the folder documents. The hierarchy of a
+ * drive is loaded in memory the first time it is needed and then kept up to date as folders are created, modified and
+ * deleted.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Role
+@Unstable
+public interface DriveHierarchyIndex
+{
+    /**
+     * @param aliceReference a folder reference
+     * @param bobReference a folder reference
+     * @return {@code true} if the first folder is the same as the second folder or one of its descendants,
+     *         {@code false} otherwise
+     */
+    boolean isDescendantOrSelf(DocumentReference aliceReference, DocumentReference bobReference);
+
+    /**
+     * Computes the path of a folder, from the folder itself up to the drive or the top most ancestor folder.
+     * 
+     * @param reference a folder or drive reference
+     * @return the references of the given folder and of its ancestors, in this order, ending with the drive
+     *         document if the folder is not an orphan; an empty list if the given document is neither a folder nor a
+     *         drive
+     */
+    List<DocumentReference> getPath(DocumentReference reference);
+
+    /**
+     * @param folderReference a folder reference
+     * @return {@code true} if the specified folder has no parent or if its parent is neither a folder nor a drive from
+     *         the same space, {@code false} otherwise
+     */
+    boolean isOrphan(DocumentReference folderReference);
+
+    /**
+     * @param driveReference a drive reference
+     * @return the references of the orphan folders from the specified drive
+     * @see #isOrphan(DocumentReference)
+     */
+    List<DocumentReference> getOrphanFolders(SpaceReference driveReference);
+
+    /**
+     * @param reference a folder or drive reference
+     * @return the references of all the descendant folders of the given folder or drive, in breadth-first order (i.e.
+     *         a folder is always listed after its parent)
+     */
+    List<DocumentReference> getDescendantFolders(DocumentReference reference);
+
+    /**
+     * Drops the hierarchy of the specified drive from the index. It is loaded again the next time it is needed. Use
+     * this when the index can't be trusted anymore, e.g. after the changes made to the drive have been rolled back.
+     * 
+     * @param driveReference a drive reference
+     */
+    void invalidate(SpaceReference driveReference);
+}
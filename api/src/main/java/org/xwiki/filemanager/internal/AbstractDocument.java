@@ -22,9 +22,12 @@ package org.xwiki.filemanager.internal;
 import javax.inject.Inject;
 import javax.inject.Provider;
 
+import org.apache.commons.lang3.ObjectUtils;
 import org.slf4j.Logger;
 import org.xwiki.filemanager.Document;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.rendering.syntax.Syntax;
 
 import com.xpn.xwiki.XWikiContext;
@@ -61,6 +64,13 @@ public abstract class AbstractDocument implements Document
      */
     private boolean cloned;
 
+    /**
+     * Flag indicating if the underlying document may have been modified since it was loaded or last saved. The
+     * document dirty flags are not reliable (e.g. changing an object property doesn't always mark the document as
+     * dirty) so we assume the document is modified whenever it is cloned in order to be modified.
+     */
+    private boolean modified;
+
     @Override
     public DocumentReference getReference()
     {
@@ -96,9 +106,56 @@ public abstract class AbstractDocument implements Document
             document = document.clone();
             cloned = true;
         }
+        modified = true;
         return document;
     }
 
+    /**
+     * @return {@code true} if the underlying {@link XWikiDocument} has been cloned in order to be modified,
+     *         {@code false} otherwise
+     */
+    boolean isCloned()
+    {
+        return cloned;
+    }
+
+    /**
+     * @return {@code true} if the underlying {@link XWikiDocument} may have been modified since it was loaded or last
+     *         saved, {@code false} otherwise
+     */
+    boolean isModified()
+    {
+        return modified;
+    }
+
+    /**
+     * Marks the underlying {@link XWikiDocument} as saved.
+     */
+    void setSaved()
+    {
+        this.modified = false;
+    }
+
+    /**
+     * Sets the parent of the underlying document. The document is cloned only if the parent changes.
+     * 
+     * @param parentReference the new parent reference, {@code null} to remove the parent
+     */
+    protected void setDocumentParentReference(DocumentReference parentReference)
+    {
+        EntityReference relativeParentReference = null;
+        if (parentReference != null) {
+            if (parentReference.getWikiReference().equals(getReference().getWikiReference())) {
+                relativeParentReference = parentReference.removeParent(parentReference.getWikiReference());
+            } else {
+                relativeParentReference = parentReference.extractReference(EntityType.DOCUMENT);
+            }
+        }
+        if (!ObjectUtils.equals(relativeParentReference, document.getRelativeParentReference())) {
+            getClonedDocument().setParentReference(relativeParentReference);
+        }
+    }
+
     /**
      * Sets the underlying {@link XWikiDocument} that defines this file system document.
      * 
@@ -108,6 +165,7 @@ public abstract class AbstractDocument implements Document
     {
         this.document = document;
         this.cloned = false;
+        this.modified = false;
     }
 
     /**
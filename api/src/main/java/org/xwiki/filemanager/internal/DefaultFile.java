@@ -91,6 +91,8 @@ public class DefaultFile extends AbstractDocument implements File
         if (attachments.size() > 0) {
             XWikiAttachment oldAttachment = attachments.get(0);
             try {
+                // The attachment store can't rename an attachment in place (the file name is part of the attachment
+                // id) so the content is saved again under the new name, which costs as much as the file size.
                 document.removeAttachment(oldAttachment, false);
                 document.addAttachment(name, oldAttachment.getContentInputStream(getContext()), getContext());
             } catch (Exception e) {
@@ -118,33 +120,26 @@ public class DefaultFile extends AbstractDocument implements File
         }
 
         // A file can have multiple parent folders, which are declared using tags because the underlying document can
-        // have only one real parent.
-        XWikiDocument document = getClonedDocument();
-        BaseObject tagObject = document.getXObject(TAG_CLASS_REFERENCE);
-        if (tagObject == null) {
-            tagObject = new BaseObject();
-            tagObject.setXClassReference(TAG_CLASS_REFERENCE);
-            document.addXObject(tagObject);
-        }
-
+        // have only one real parent. We modify (and thus clone) the underlying document only if the tags change.
         List<String> tags = new ArrayList<String>();
         for (DocumentReference parentReference : parentReferences) {
             tags.add(parentReference.getName());
         }
-        tagObject.setStringListValue(PROPERTY_TAGS, tags);
+        BaseObject tagObject = getDocument().getXObject(TAG_CLASS_REFERENCE);
+        if (tagObject == null || !tags.equals(getTags(tagObject))) {
+            XWikiDocument document = getClonedDocument();
+            tagObject = document.getXObject(TAG_CLASS_REFERENCE);
+            if (tagObject == null) {
+                tagObject = new BaseObject();
+                tagObject.setXClassReference(TAG_CLASS_REFERENCE);
+                document.addXObject(tagObject);
+            }
+            tagObject.setStringListValue(PROPERTY_TAGS, tags);
+        }
 
         // We set the first parent folder as the parent of the underlying document to ensure the document hierarchy is
         // still displayed nicely outside of the file manager. This also helps us detect orphan files more easily.
-        if (parentReferences.isEmpty()) {
-            document.setParentReference((EntityReference) null);
-        } else {
-            DocumentReference parentReference = parentReferences.iterator().next();
-            if (parentReference.getWikiReference().equals(getReference().getWikiReference())) {
-                document.setParentReference(parentReference.removeParent(parentReference.getWikiReference()));
-            } else {
-                document.setParentReference(parentReference.extractReference(EntityType.DOCUMENT));
-            }
-        }
+        setDocumentParentReference(parentReferences.isEmpty() ? null : parentReferences.iterator().next());
 
         parentReferences = null;
     }
@@ -157,20 +152,31 @@ public class DefaultFile extends AbstractDocument implements File
         Collection<DocumentReference> references = new ArrayList<DocumentReference>();
         BaseObject tagObject = getDocument().getXObject(TAG_CLASS_REFERENCE);
         if (tagObject != null) {
-            try {
-                List<String> tags = (List<String>) ((BaseProperty) tagObject.get(PROPERTY_TAGS)).getValue();
-                if (tags != null) {
-                    for (String tag : tags) {
-                        references.add(new DocumentReference(tag, getReference().getLastSpaceReference()));
-                    }
+            List<String> tags = getTags(tagObject);
+            if (tags != null) {
+                for (String tag : tags) {
+                    references.add(new DocumentReference(tag, getReference().getLastSpaceReference()));
                 }
-            } catch (XWikiException e) {
-                logger.error("Failed to retrieve the list of tags for file [{}].", getReference(), e);
             }
         }
         return references;
     }
 
+    /**
+     * @param tagObject the tag object
+     * @return the list of tags, {@code null} if the tags couldn't be retrieved
+     */
+    private List<String> getTags(BaseObject tagObject)
+    {
+        try {
+            BaseProperty tagsProperty = (BaseProperty) tagObject.get(PROPERTY_TAGS);
+            return tagsProperty != null ? (List<String>) tagsProperty.getValue() : null;
+        } catch (XWikiException e) {
+            logger.error("Failed to retrieve the list of tags for file [{}].", getReference(), e);
+            return null;
+        }
+    }
+
     @Override
     public InputStream getContent()
     {
@@ -189,4 +195,18 @@ public class DefaultFile extends AbstractDocument implements File
             return new ByteArrayInputStream(new byte[] {});
         }
     }
+
+    @Override
+    public String getMediaType()
+    {
+        List<XWikiAttachment> attachments = getDocument().getAttachmentList();
+        return attachments.size() > 0 ? attachments.get(0).getMimeType(getContext()) : null;
+    }
+
+    @Override
+    public long getSize()
+    {
+        List<XWikiAttachment> attachments = getDocument().getAttachmentList();
+        return attachments.size() > 0 ? attachments.get(0).getFilesize() : 0;
+    }
 }
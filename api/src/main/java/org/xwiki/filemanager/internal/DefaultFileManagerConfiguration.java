@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.filemanager.FileManagerConfiguration;
+
+/**
+ * Default {@link FileManagerConfiguration} implementation, based on the {@code xwiki.properties} configuration file.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultFileManagerConfiguration implements FileManagerConfiguration
+{
+    /**
+     * The prefix of all the file manager configuration properties.
+     */
+    private static final String PREFIX = "filemanager.";
+
+    /**
+     * The default number of files and folders saved in a single transaction.
+     */
+    private static final int DEFAULT_SAVE_BATCH_SIZE = 100;
+
+    /**
+     * The default number of files and folders deleted in a single transaction.
+     */
+    private static final int DEFAULT_DELETE_BATCH_SIZE = 100;
+
+    /**
+     * The default number of worker threads used by a file system job.
+     */
+    private static final int DEFAULT_WORKER_THREAD_COUNT = 1;
+
+    /**
+     * The default number of file system jobs that run at the same time.
+     */
+    private static final int DEFAULT_JOB_THREAD_COUNT = 2;
+
+    /**
+     * The default number of milliseconds a file system job should take to save or delete a file or folder.
+     */
+    private static final int DEFAULT_WRITE_LATENCY_BUDGET = 200;
+
+    /**
+     * The default number of megabytes used to cache the pack job archives.
+     */
+    private static final int DEFAULT_PACK_CACHE_SIZE = 1024;
+
+    /**
+     * The default number of files read ahead by a pack job.
+     */
+    private static final int DEFAULT_PACK_READ_AHEAD_COUNT = 4;
+
+    /**
+     * The default number of megabytes used to hold the files read ahead by a pack job.
+     */
+    private static final int DEFAULT_PACK_READ_AHEAD_MEMORY = 16;
+
+    /**
+     * The default maximum number of drives whose folder hierarchy is kept in memory.
+     */
+    private static final int DEFAULT_HIERARCHY_INDEX_SIZE = 100;
+
+    /**
+     * The default maximum number of files packed while the archive is streamed.
+     */
+    private static final int DEFAULT_STREAM_PACK_MAX_FILE_COUNT = 100;
+
+    /**
+     * The default maximum number of megabytes packed while the archive is streamed.
+     */
+    private static final int DEFAULT_STREAM_PACK_MAX_SIZE = 100;
+
+    /**
+     * Used to read the configuration properties.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Override
+    public int getSaveBatchSize()
+    {
+        return getPositiveInteger("saveBatchSize", DEFAULT_SAVE_BATCH_SIZE);
+    }
+
+    @Override
+    public int getDeleteBatchSize()
+    {
+        return getPositiveInteger("deleteBatchSize", DEFAULT_DELETE_BATCH_SIZE);
+    }
+
+    @Override
+    public boolean isBulkDeleteEnabled()
+    {
+        return this.configuration.getProperty(PREFIX + "bulkDelete", Boolean.TRUE);
+    }
+
+    @Override
+    public int getWorkerThreadCount()
+    {
+        return getPositiveInteger("workerThreadCount", DEFAULT_WORKER_THREAD_COUNT);
+    }
+
+    @Override
+    public int getJobThreadCount()
+    {
+        return getPositiveInteger("jobThreadCount", DEFAULT_JOB_THREAD_COUNT);
+    }
+
+    @Override
+    public int getWriteLatencyBudget()
+    {
+        // 0 means the writes are only measured, not throttled.
+        return getNonNegativeInteger("writeLatencyBudget", DEFAULT_WRITE_LATENCY_BUDGET);
+    }
+
+    @Override
+    public int getPackCacheSize()
+    {
+        return getPositiveInteger("packCacheSize", DEFAULT_PACK_CACHE_SIZE);
+    }
+
+    @Override
+    public int getPackReadAheadCount()
+    {
+        return getPositiveInteger("packReadAheadCount", DEFAULT_PACK_READ_AHEAD_COUNT);
+    }
+
+    @Override
+    public int getPackReadAheadMemory()
+    {
+        return getPositiveInteger("packReadAheadMemory", DEFAULT_PACK_READ_AHEAD_MEMORY);
+    }
+
+    @Override
+    public int getHierarchyIndexSize()
+    {
+        return getPositiveInteger("hierarchyIndexSize", DEFAULT_HIERARCHY_INDEX_SIZE);
+    }
+
+    @Override
+    public int getStreamPackMaxFileCount()
+    {
+        return getPositiveInteger("streamPackMaxFileCount", DEFAULT_STREAM_PACK_MAX_FILE_COUNT);
+    }
+
+    @Override
+    public int getStreamPackMaxSize()
+    {
+        return getPositiveInteger("streamPackMaxSize", DEFAULT_STREAM_PACK_MAX_SIZE);
+    }
+
+    /**
+     * @param key the configuration property key, without the prefix
+     * @param defaultValue the value to return if the configuration property is missing or not positive
+     * @return the value of the specified configuration property
+     */
+    private int getPositiveInteger(String key, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(PREFIX + key, Integer.class);
+        return value != null && value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * @param key the configuration property key, without the prefix
+     * @param defaultValue the value to return if the configuration property is missing or negative
+     * @return the value of the specified configuration property
+     */
+    private int getNonNegativeInteger(String key, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(PREFIX + key, Integer.class);
+        return value != null && value >= 0 ? value : defaultValue;
+    }
+}
@@ -19,7 +19,18 @@
  */
 package org.xwiki.filemanager.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
@@ -28,13 +39,24 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.filemanager.Document;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiCacheStore;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.user.api.XWikiRightService;
 
 /**
  * Default {@link FileSystem} implementation.
@@ -46,6 +68,49 @@ import com.xpn.xwiki.doc.XWikiDocument;
 @Singleton
 public class DefaultFileSystem implements FileSystem
 {
+    /**
+     * The maximum number of document names that are passed to a single query.
+     */
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    /**
+     * The query used to find which of the given folders have child folders.
+     */
+    private static final String PARENTS_WITH_CHILD_FOLDERS = "select distinct doc.parent from Document doc,"
+        + " doc.object(FileManagerCode.FolderClass) as folder where doc.space = :space and doc.parent in (:parents)";
+
+    /**
+     * The tables and the constraints used to find the files that are tagged with the given folder names.
+     */
+    private static final String FILES_TAGGED_WITH_PARENTS = " from XWikiDocument doc, BaseObject fileObj,"
+        + " BaseObject tagObj, DBStringListProperty tags join tags.list as tag where doc.space = :space"
+        + " and fileObj.name = doc.fullName and fileObj.className = 'FileManagerCode.FileClass'"
+        + " and tagObj.name = doc.fullName and tagObj.className = 'XWiki.TagClass' and tags.id.id = tagObj.id"
+        + " and tags.id.name = 'tags' and tag in (:parents)";
+
+    /**
+     * The query used to find which of the given folders have child files.
+     */
+    private static final String PARENTS_WITH_CHILD_FILES = "select distinct tag" + FILES_TAGGED_WITH_PARENTS;
+
+    /**
+     * The query used to compute the total size of the given files.
+     */
+    private static final String TOTAL_FILE_SIZE = "select sum(attachment.filesize) from XWikiDocument doc,"
+        + " XWikiAttachment attachment where doc.space = :space and doc.name in (:files) and attachment.docId = doc.id";
+
+    /**
+     * The query used to get the version of the given documents.
+     */
+    private static final String VERSIONS =
+        "select doc.name, doc.version from XWikiDocument doc where doc.space = :space and doc.name in (:names)";
+
+    /**
+     * The query used to find the child files of the given folders.
+     */
+    private static final String FILES_IN_PARENTS =
+        "select distinct doc.name" + FILES_TAGGED_WITH_PARENTS + " order by doc.name";
+
     /**
      * Used to log messages.
      */
@@ -64,12 +129,103 @@ public class DefaultFileSystem implements FileSystem
     @Inject
     private Provider<ComponentManager> componentManagerProvider;
 
+    /**
+     * Used to check the existence of multiple documents at once.
+     */
+    @Inject
+    private QueryManager queryManager;
+
+    /**
+     * Used to get the number of documents to save in a single transaction.
+     */
+    @Inject
+    private FileManagerConfiguration configuration;
+
+    /**
+     * The drive hierarchy index that has to be invalidated when a batch of documents is rolled back.
+     */
+    @Inject
+    private DriveHierarchyIndex hierarchyIndex;
+
+    /**
+     * Used to get the full name from a document reference.
+     */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localEntityReferenceSerializer;
+
+    /**
+     * The files and folders retrieved, and the rights checked, by the current thread since {@link #startCaching()}
+     * was called. This is {@code null} when caching is not enabled for the current thread.
+     */
+    private final ThreadLocal<FileSystemCache> cache = new ThreadLocal<FileSystemCache>();
+
+    /**
+     * Starts caching the files and folders retrieved by the current thread, until {@link #stopCaching()} is called.
+     * While caching is enabled, repeated lookups of the same file or folder don't load the document again. Each lookup
+     * still returns a new file or folder instance, wrapping the same unmodified document, so the changes that are not
+     * saved don't leak into later lookups. The cached document is dropped when the file or folder is saved, deleted,
+     * renamed or overwritten through this file system, so the next lookup reflects the changes. The access rights are
+     * also cached, per user, until caching is stopped.
+     * <p>
+     * This is meant to be called by jobs, which perform many lookups of the same documents. The cache doesn't see the
+     * changes made by the threads that don't share it so it should not be enabled for long periods.
+     * 
+     * @return {@code true} if caching has been enabled by this call, {@code false} if it was already enabled (in which
+     *         case the caller should not call {@link #stopCaching()})
+     * @since 2.4
+     */
+    public boolean startCaching()
+    {
+        return startCaching(new FileSystemCache());
+    }
+
+    /**
+     * Starts caching the files and folders retrieved by the current thread in the given cache, which can be shared
+     * with other threads (e.g. the worker threads of a job) so that the changes made by one thread are not hidden from
+     * the others by a stale cached document.
+     * 
+     * @param sharedCache the cache to use
+     * @return {@code true} if caching has been enabled by this call, {@code false} if it was already enabled (in which
+     *         case the caller should not call {@link #stopCaching()})
+     * @see #startCaching()
+     * @since 2.4
+     */
+    public boolean startCaching(FileSystemCache sharedCache)
+    {
+        if (this.cache.get() == null) {
+            this.cache.set(sharedCache);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the cache used by the current thread, {@code null} if caching is not enabled for the current thread
+     * @since 2.4
+     */
+    public FileSystemCache getCache()
+    {
+        return this.cache.get();
+    }
+
+    /**
+     * Stops caching the files and folders retrieved by the current thread and drops all the cached documents.
+     * 
+     * @see #startCaching()
+     * @since 2.4
+     */
+    public void stopCaching()
+    {
+        this.cache.remove();
+    }
+
     @Override
     public Folder getFolder(DocumentReference folderReference)
     {
         XWikiContext context = xcontextProvider.get();
         try {
-            XWikiDocument document = context.getWiki().getDocument(folderReference, context);
+            XWikiDocument document = getDocument(folderReference, context);
             if (document.isNew()) {
                 return null;
             } else {
@@ -94,7 +250,7 @@ public class DefaultFileSystem implements FileSystem
     {
         XWikiContext context = xcontextProvider.get();
         try {
-            XWikiDocument document = context.getWiki().getDocument(fileReference, context);
+            XWikiDocument document = getDocument(fileReference, context);
             if (document.isNew()) {
                 return null;
             } else {
@@ -114,6 +270,250 @@ public class DefaultFileSystem implements FileSystem
         }
     }
 
+    /**
+     * Loads the specified document, unless it is cached for the current thread. The returned document is shared so it
+     * must be cloned before being modified (see {@link AbstractDocument#getClonedDocument()}).
+     * 
+     * @param reference a file or folder reference
+     * @param context the XWiki context
+     * @return the specified document
+     * @throws XWikiException if loading the document fails
+     */
+    private XWikiDocument getDocument(DocumentReference reference, XWikiContext context) throws XWikiException
+    {
+        FileSystemCache fileSystemCache = this.cache.get();
+        XWikiDocument document = fileSystemCache != null ? fileSystemCache.getDocument(reference) : null;
+        if (document == null) {
+            document = context.getWiki().getDocument(reference, context);
+            // Missing documents are not cached because they can be created by the job.
+            if (fileSystemCache != null && !document.isNew()) {
+                fileSystemCache.putDocument(document);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Removes the specified file or folder from the cache, if caching is enabled for the current thread.
+     * 
+     * @param reference a file or folder reference
+     */
+    private void invalidate(DocumentReference reference)
+    {
+        FileSystemCache fileSystemCache = this.cache.get();
+        if (fileSystemCache != null) {
+            fileSystemCache.removeDocument(reference);
+        }
+    }
+
+    @Override
+    public List<Folder> getFolders(Collection<DocumentReference> folderReferences)
+    {
+        List<Folder> folders = new ArrayList<Folder>();
+        for (DocumentReference folderReference : folderReferences) {
+            Folder folder = getFolder(folderReference);
+            if (folder != null) {
+                folders.add(folder);
+            }
+        }
+        return folders;
+    }
+
+    @Override
+    public List<File> getFiles(Collection<DocumentReference> fileReferences)
+    {
+        List<File> files = new ArrayList<File>();
+        for (DocumentReference fileReference : fileReferences) {
+            File file = getFile(fileReference);
+            if (file != null) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public List<DocumentReference> hasChildFolders(Collection<DocumentReference> folderReferences)
+    {
+        // The child folders reference their parent by full name.
+        return filterByQuery(folderReferences, true, PARENTS_WITH_CHILD_FOLDERS, Query.XWQL, "have child folders");
+    }
+
+    @Override
+    public List<DocumentReference> hasChildFiles(Collection<DocumentReference> folderReferences)
+    {
+        // The child files reference their parents by name, using tags.
+        return filterByQuery(folderReferences, false, PARENTS_WITH_CHILD_FILES, Query.HQL, "have child files");
+    }
+
+    /**
+     * Filters the given folders using a query that takes a list of folder names (the {@code parents} parameter) and
+     * returns the names that match. The child files and folders are in the same space as their parent so the folders
+     * are grouped by space, and the query is executed in batches of {@link #QUERY_BATCH_SIZE} names.
+     * 
+     * @param folderReferences references to folders
+     * @param fullNames whether the query takes full names or only names
+     * @param statement the query statement
+     * @param language the query language
+     * @param description used in the error message if the query fails
+     * @return the references to the given folders that match the query, in the order they were given
+     */
+    private List<DocumentReference> filterByQuery(Collection<DocumentReference> folderReferences, boolean fullNames,
+        String statement, String language, String description)
+    {
+        Set<DocumentReference> matches = new HashSet<DocumentReference>();
+        for (Map.Entry<SpaceReference, Map<String, DocumentReference>> entry : groupBySpace(folderReferences,
+            fullNames).entrySet()) {
+            List<String> names = new ArrayList<String>(entry.getValue().keySet());
+            for (int i = 0; i < names.size(); i += QUERY_BATCH_SIZE) {
+                List<String> batch = names.subList(i, Math.min(i + QUERY_BATCH_SIZE, names.size()));
+                try {
+                    for (Object result : createQuery(statement, language, entry.getKey(), batch).execute()) {
+                        DocumentReference reference = entry.getValue().get(result);
+                        if (reference != null) {
+                            matches.add(reference);
+                        }
+                    }
+                } catch (QueryException e) {
+                    logger.error("Failed to check if [{}] " + description + ".", batch, e);
+                }
+            }
+        }
+
+        List<DocumentReference> filteredReferences = new ArrayList<DocumentReference>();
+        for (DocumentReference reference : folderReferences) {
+            if (matches.contains(reference)) {
+                filteredReferences.add(reference);
+            }
+        }
+        return filteredReferences;
+    }
+
+    @Override
+    public List<DocumentReference> findChildFiles(Collection<DocumentReference> folderReferences)
+    {
+        Set<DocumentReference> childFileReferences = new LinkedHashSet<DocumentReference>();
+        for (Map.Entry<SpaceReference, Map<String, DocumentReference>> entry : groupBySpace(folderReferences, false)
+            .entrySet()) {
+            List<String> names = new ArrayList<String>(entry.getValue().keySet());
+            for (int i = 0; i < names.size(); i += QUERY_BATCH_SIZE) {
+                List<String> batch = names.subList(i, Math.min(i + QUERY_BATCH_SIZE, names.size()));
+                try {
+                    for (Object result : createQuery(FILES_IN_PARENTS, Query.HQL, entry.getKey(), batch).execute()) {
+                        childFileReferences.add(new DocumentReference((String) result, entry.getKey()));
+                    }
+                } catch (QueryException e) {
+                    logger.error("Failed to look for the child files of [{}].", batch, e);
+                }
+            }
+        }
+        return new ArrayList<DocumentReference>(childFileReferences);
+    }
+
+    @Override
+    public long getTotalFileSize(Collection<DocumentReference> fileReferences)
+    {
+        long totalFileSize = 0;
+        for (Map.Entry<SpaceReference, Map<String, DocumentReference>> entry : groupBySpace(fileReferences, false)
+            .entrySet()) {
+            List<String> names = new ArrayList<String>(entry.getValue().keySet());
+            for (int i = 0; i < names.size(); i += QUERY_BATCH_SIZE) {
+                List<String> batch = names.subList(i, Math.min(i + QUERY_BATCH_SIZE, names.size()));
+                try {
+                    Query query = createQuery(TOTAL_FILE_SIZE, Query.HQL, entry.getKey(), "files", batch);
+                    for (Object result : query.execute()) {
+                        if (result instanceof Number) {
+                            totalFileSize += ((Number) result).longValue();
+                        }
+                    }
+                } catch (QueryException e) {
+                    logger.error("Failed to compute the total size of [{}].", batch, e);
+                }
+            }
+        }
+        return totalFileSize;
+    }
+
+    @Override
+    public Map<DocumentReference, String> getVersions(Collection<DocumentReference> references)
+    {
+        Map<DocumentReference, String> versions = new HashMap<DocumentReference, String>();
+        for (Map.Entry<SpaceReference, Map<String, DocumentReference>> entry : groupBySpace(references, false)
+            .entrySet()) {
+            List<String> names = new ArrayList<String>(entry.getValue().keySet());
+            for (int i = 0; i < names.size(); i += QUERY_BATCH_SIZE) {
+                List<String> batch = names.subList(i, Math.min(i + QUERY_BATCH_SIZE, names.size()));
+                try {
+                    for (Object result : createQuery(VERSIONS, Query.HQL, entry.getKey(), "names", batch).execute()) {
+                        Object[] row = (Object[]) result;
+                        DocumentReference reference = entry.getValue().get(row[0]);
+                        if (reference != null) {
+                            versions.put(reference, String.valueOf(row[1]));
+                        }
+                    }
+                } catch (QueryException e) {
+                    logger.error("Failed to get the version of [{}].", batch, e);
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @param references document references
+     * @param fullNames whether to index the documents by full name or only by name
+     * @return the given documents grouped by space and indexed by (full) name
+     */
+    private Map<SpaceReference, Map<String, DocumentReference>> groupBySpace(Collection<DocumentReference> references,
+        boolean fullNames)
+    {
+        Map<SpaceReference, Map<String, DocumentReference>> referencesBySpace =
+            new LinkedHashMap<SpaceReference, Map<String, DocumentReference>>();
+        for (DocumentReference reference : references) {
+            Map<String, DocumentReference> referencesByName = referencesBySpace.get(reference.getLastSpaceReference());
+            if (referencesByName == null) {
+                referencesByName = new LinkedHashMap<String, DocumentReference>();
+                referencesBySpace.put(reference.getLastSpaceReference(), referencesByName);
+            }
+            String name = fullNames ? localEntityReferenceSerializer.serialize(reference) : reference.getName();
+            referencesByName.put(name, reference);
+        }
+        return referencesBySpace;
+    }
+
+    /**
+     * @param statement the query statement
+     * @param language the query language
+     * @param spaceReference the space where the parent folders are
+     * @param parents the (full) names of the parent folders
+     * @return the query
+     * @throws QueryException if creating the query fails
+     */
+    private Query createQuery(String statement, String language, SpaceReference spaceReference, List<String> parents)
+        throws QueryException
+    {
+        return createQuery(statement, language, spaceReference, "parents", parents);
+    }
+
+    /**
+     * @param statement the query statement
+     * @param language the query language
+     * @param spaceReference the space where the documents are
+     * @param parameter the name of the query parameter that takes the list of document names
+     * @param names the (full) names of the documents, bound to the specified query parameter
+     * @return the query
+     * @throws QueryException if creating the query fails
+     */
+    private Query createQuery(String statement, String language, SpaceReference spaceReference, String parameter,
+        List<String> names) throws QueryException
+    {
+        Query query = queryManager.createQuery(statement, language);
+        query.bindValue("space", spaceReference.getName());
+        query.bindValue(parameter, names);
+        query.setWiki(spaceReference.getParent().getName());
+        return query;
+    }
+
     @Override
     public boolean exists(DocumentReference reference)
     {
@@ -124,19 +524,34 @@ public class DefaultFileSystem implements FileSystem
     @Override
     public boolean canView(DocumentReference reference)
     {
-        return hasRight(reference, "view");
+        return hasRight(reference, RIGHT_VIEW);
     }
 
     @Override
     public boolean canEdit(DocumentReference reference)
     {
-        return hasRight(reference, "edit");
+        return hasRight(reference, RIGHT_EDIT);
     }
 
     @Override
     public boolean canDelete(DocumentReference reference)
     {
-        return hasRight(reference, "delete");
+        return hasRight(reference, RIGHT_DELETE);
+    }
+
+    @Override
+    public List<DocumentReference> filterByRight(String right, Collection<DocumentReference> references)
+    {
+        XWikiContext context = xcontextProvider.get();
+        XWikiRightService rightService = context.getWiki().getRightService();
+        String user = context.getUser();
+        List<DocumentReference> allowedReferences = new ArrayList<DocumentReference>();
+        for (DocumentReference reference : references) {
+            if (hasRight(reference, right, user, rightService, context)) {
+                allowedReferences.add(reference);
+            }
+        }
+        return allowedReferences;
     }
 
     /**
@@ -150,12 +565,42 @@ public class DefaultFileSystem implements FileSystem
     private boolean hasRight(DocumentReference reference, String right)
     {
         XWikiContext context = xcontextProvider.get();
+        return hasRight(reference, right, context.getUser(), context.getWiki().getRightService(), context);
+    }
+
+    /**
+     * Determine if the given user has the specified right on the specified document. The result is cached if caching
+     * is enabled for the current thread.
+     * 
+     * @param reference the reference to the document to check the right for
+     * @param right the right to check
+     * @param user the user whose right is checked
+     * @param rightService the service used to check the right
+     * @param context the XWiki context
+     * @return {@code true} if the user has the specified right on the referenced document, {@code false} otherwise
+     */
+    private boolean hasRight(DocumentReference reference, String right, String user, XWikiRightService rightService,
+        XWikiContext context)
+    {
+        FileSystemCache fileSystemCache = this.cache.get();
+        if (fileSystemCache != null) {
+            Boolean allowed = fileSystemCache.getRight(user, right, reference);
+            if (allowed != null) {
+                return allowed;
+            }
+        }
+
+        boolean allowed;
         try {
-            return context.getWiki().getRightService()
-                .hasAccessLevel(right, context.getUser(), reference.toString(), context);
+            allowed = rightService.hasAccessLevel(right, user, reference.toString(), context);
         } catch (XWikiException e) {
-            return false;
+            allowed = false;
+        }
+
+        if (fileSystemCache != null) {
+            fileSystemCache.putRight(user, right, reference, allowed);
         }
+        return allowed;
     }
 
     @Override
@@ -164,28 +609,162 @@ public class DefaultFileSystem implements FileSystem
         if (document instanceof AbstractDocument) {
             XWikiContext context = xcontextProvider.get();
             try {
-                if (document instanceof DefaultFile) {
-                    ((DefaultFile) document).updateParentReferences();
+                saveDocument((AbstractDocument) document, context, false);
+            } catch (XWikiException e) {
+                logger.error("Failed to save document [{}].", document.getReference(), e);
+            } finally {
+                // The saved document object is now shared with the XWiki document cache so it must not be modified.
+                invalidate(document.getReference());
+            }
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<? extends Document> documents)
+    {
+        // A transaction targets a single wiki so we have to group the documents by wiki.
+        Map<String, List<AbstractDocument>> documentsByWiki = new LinkedHashMap<String, List<AbstractDocument>>();
+        for (Document document : documents) {
+            if (document instanceof AbstractDocument) {
+                String wiki = document.getReference().getWikiReference().getName();
+                List<AbstractDocument> wikiDocuments = documentsByWiki.get(wiki);
+                if (wikiDocuments == null) {
+                    wikiDocuments = new ArrayList<AbstractDocument>();
+                    documentsByWiki.put(wiki, wikiDocuments);
                 }
+                wikiDocuments.add((AbstractDocument) document);
+            }
+        }
 
-                XWikiDocument xdoc = ((AbstractDocument) document).getClonedDocument();
+        int batchSize = configuration.getSaveBatchSize();
+        for (Map.Entry<String, List<AbstractDocument>> entry : documentsByWiki.entrySet()) {
+            List<AbstractDocument> wikiDocuments = entry.getValue();
+            for (int i = 0; i < wikiDocuments.size(); i += batchSize) {
+                saveBatch(entry.getKey(), wikiDocuments.subList(i, Math.min(i + batchSize, wikiDocuments.size())));
+            }
+        }
+    }
 
-                // The existing convention is that when the current user reference is null, it's the guest user.
-                DocumentReference currentUserReference = context.getUserReference();
-                if (currentUserReference == null) {
-                    String currentWiki = xdoc.getDocumentReference().getWikiReference().getName();
-                    currentUserReference = new DocumentReference(currentWiki, "XWiki", "XWikiGuest");
+    /**
+     * Saves the given documents in a single transaction. If the transaction fails then the documents are saved one by
+     * one.
+     * 
+     * @param wiki the wiki where the documents are saved
+     * @param batch the documents to save
+     */
+    private void saveBatch(String wiki, List<AbstractDocument> batch)
+    {
+        XWikiContext context = xcontextProvider.get();
+        XWikiHibernateStore store = context.getWiki().getHibernateStore();
+        String currentWiki = context.getDatabase();
+        List<AbstractDocument> modified = new ArrayList<AbstractDocument>();
+        boolean saved = false;
+        try {
+            context.setDatabase(wiki);
+            // The store doesn't start a new transaction for each document if there is one in progress.
+            boolean transaction = store.beginTransaction(context);
+            try {
+                for (AbstractDocument document : batch) {
+                    if (saveDocument(document, context, false)) {
+                        modified.add(document);
+                    }
                 }
-                xdoc.setAuthorReference(currentUserReference);
+                saved = true;
+            } finally {
+                if (transaction) {
+                    store.endTransaction(context, saved);
+                }
+            }
+        } catch (XWikiException e) {
+            logger.warn("Failed to save [{}] documents in a single transaction. Saving them one by one.",
+                batch.size(), e);
+        } finally {
+            if (!saved) {
+                List<XWikiDocument> documents = new ArrayList<XWikiDocument>();
+                for (AbstractDocument document : batch) {
+                    documents.add(document.getDocument());
+                }
+                evict(documents, context);
+            }
+            context.setDatabase(currentWiki);
+        }
 
-                // Don't generate useless versions.
-                if (xdoc.isContentDirty() || xdoc.isMetaDataDirty()) {
-                    context.getWiki().saveDocument(xdoc, "", false, context);
+        if (!saved) {
+            // The transaction has been rolled back so we need to save again the documents that were modified, even if
+            // the store has marked them as saved, and the documents that were not reached.
+            for (AbstractDocument document : batch) {
+                try {
+                    saveDocument(document, context, modified.contains(document));
+                } catch (XWikiException e) {
+                    logger.error("Failed to save document [{}].", document.getReference(), e);
                 }
-            } catch (XWikiException e) {
-                logger.error("Failed to save document [{}].", document.getReference(), e);
             }
         }
+
+        for (AbstractDocument document : batch) {
+            invalidate(document.getReference());
+        }
+    }
+
+    /**
+     * Removes the given documents from the XWiki document cache and invalidates the hierarchy of the drives that
+     * contain them. Both have been updated while the documents were saved or deleted so they don't match the database
+     * anymore after the transaction is rolled back.
+     * 
+     * @param documents the documents whose save or delete has been rolled back
+     * @param context the XWiki context, targeting the wiki that contains the documents
+     */
+    private void evict(List<XWikiDocument> documents, XWikiContext context)
+    {
+        XWikiStoreInterface store = context.getWiki().getStore();
+        Set<SpaceReference> driveReferences = new LinkedHashSet<SpaceReference>();
+        for (XWikiDocument document : documents) {
+            if (store instanceof XWikiCacheStore) {
+                XWikiCacheStore cacheStore = (XWikiCacheStore) store;
+                String key = cacheStore.getKey(document, context);
+                cacheStore.getCache().remove(key);
+                cacheStore.getPageExistCache().remove(key);
+            }
+            driveReferences.add(document.getDocumentReference().getLastSpaceReference());
+        }
+        for (SpaceReference driveReference : driveReferences) {
+            hierarchyIndex.invalidate(driveReference);
+        }
+    }
+
+    /**
+     * Saves a file or a folder.
+     * 
+     * @param document the file or folder to save
+     * @param context the XWiki context
+     * @param force {@code true} to save the document even if it wasn't modified
+     * @return {@code true} if the document has been saved, {@code false} if it didn't need to be saved
+     * @throws XWikiException if saving the document fails
+     */
+    private boolean saveDocument(AbstractDocument document, XWikiContext context, boolean force)
+        throws XWikiException
+    {
+        if (document instanceof DefaultFile) {
+            ((DefaultFile) document).updateParentReferences();
+        }
+
+        // Don't generate useless versions. Also, don't clone the underlying document if it wasn't modified.
+        if (!force && !document.isModified()) {
+            return false;
+        }
+        XWikiDocument xdoc = document.getClonedDocument();
+
+        // The existing convention is that when the current user reference is null, it's the guest user.
+        DocumentReference currentUserReference = context.getUserReference();
+        if (currentUserReference == null) {
+            String currentWiki = xdoc.getDocumentReference().getWikiReference().getName();
+            currentUserReference = new DocumentReference(currentWiki, "XWiki", "XWikiGuest");
+        }
+        xdoc.setAuthorReference(currentUserReference);
+
+        context.getWiki().saveDocument(xdoc, "", false, context);
+        document.setSaved();
+        return true;
     }
 
     @Override
@@ -193,13 +772,113 @@ public class DefaultFileSystem implements FileSystem
     {
         XWikiContext context = xcontextProvider.get();
         try {
-            XWikiDocument document = context.getWiki().getDocument(reference, context);
-            if (!document.isNew()) {
-                // Clone the document before deleting to make sure we don't modify the cache document.
-                context.getWiki().deleteDocument(document.clone(), context);
-            }
+            deleteDocument(reference, context);
         } catch (XWikiException e) {
             logger.error("Failed to delete document [{}].", reference, e);
+        } finally {
+            invalidate(reference);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<DocumentReference> references)
+    {
+        // A transaction targets a single wiki so we have to group the documents by wiki.
+        Map<String, List<DocumentReference>> referencesByWiki = new LinkedHashMap<String, List<DocumentReference>>();
+        for (DocumentReference reference : references) {
+            String wiki = reference.getWikiReference().getName();
+            List<DocumentReference> wikiReferences = referencesByWiki.get(wiki);
+            if (wikiReferences == null) {
+                wikiReferences = new ArrayList<DocumentReference>();
+                referencesByWiki.put(wiki, wikiReferences);
+            }
+            wikiReferences.add(reference);
+        }
+
+        int batchSize = configuration.getDeleteBatchSize();
+        for (Map.Entry<String, List<DocumentReference>> entry : referencesByWiki.entrySet()) {
+            List<DocumentReference> wikiReferences = entry.getValue();
+            for (int i = 0; i < wikiReferences.size(); i += batchSize) {
+                deleteBatch(entry.getKey(), wikiReferences.subList(i, Math.min(i + batchSize, wikiReferences.size())));
+            }
+        }
+    }
+
+    /**
+     * Deletes the given documents in a single transaction. If the transaction fails then the documents are deleted one
+     * by one.
+     * 
+     * @param wiki the wiki where the documents are deleted
+     * @param batch the documents to delete
+     */
+    private void deleteBatch(String wiki, List<DocumentReference> batch)
+    {
+        XWikiContext context = xcontextProvider.get();
+        XWikiHibernateStore store = context.getWiki().getHibernateStore();
+        String currentWiki = context.getDatabase();
+        List<XWikiDocument> documents = new ArrayList<XWikiDocument>();
+        boolean deleted = false;
+        try {
+            context.setDatabase(wiki);
+            // The store doesn't start a new transaction for each document if there is one in progress.
+            boolean transaction = store.beginTransaction(context);
+            try {
+                for (DocumentReference reference : batch) {
+                    XWikiDocument document = context.getWiki().getDocument(reference, context);
+                    documents.add(document);
+                    deleteDocument(document, context);
+                }
+                deleted = true;
+            } finally {
+                if (transaction) {
+                    store.endTransaction(context, deleted);
+                }
+            }
+        } catch (XWikiException e) {
+            logger.warn("Failed to delete [{}] documents in a single transaction. Deleting them one by one.",
+                batch.size(), e);
+        } finally {
+            if (!deleted) {
+                // The store has marked the deleted documents as missing in its cache, so they would be skipped below.
+                evict(documents, context);
+            }
+            context.setDatabase(currentWiki);
+        }
+
+        for (DocumentReference reference : batch) {
+            if (deleted) {
+                invalidate(reference);
+            } else {
+                // The transaction has been rolled back.
+                delete(reference);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file or a folder.
+     * 
+     * @param reference the file or folder to delete
+     * @param context the XWiki context
+     * @throws XWikiException if deleting the document fails
+     */
+    private void deleteDocument(DocumentReference reference, XWikiContext context) throws XWikiException
+    {
+        deleteDocument(context.getWiki().getDocument(reference, context), context);
+    }
+
+    /**
+     * Deletes a file or a folder.
+     * 
+     * @param document the loaded file or folder document
+     * @param context the XWiki context
+     * @throws XWikiException if deleting the document fails
+     */
+    private void deleteDocument(XWikiDocument document, XWikiContext context) throws XWikiException
+    {
+        if (!document.isNew()) {
+            // Clone the document before deleting to make sure we don't modify the cache document.
+            context.getWiki().deleteDocument(document.clone(), context);
         }
     }
 
@@ -213,6 +892,9 @@ public class DefaultFileSystem implements FileSystem
             context.getWiki().getDocument(oldReference, context).clone().rename(newReference, context);
         } catch (XWikiException e) {
             logger.error("Failed to rename document [{}] to [{}]", oldReference, newReference, e);
+        } finally {
+            invalidate(oldReference);
+            invalidate(newReference);
         }
     }
 
@@ -224,6 +906,8 @@ public class DefaultFileSystem implements FileSystem
             context.getWiki().copyDocument(source, target, null, false, true, true, context);
         } catch (XWikiException e) {
             logger.error("Failed to copy [{}] as [{}].", source, target, e);
+        } finally {
+            invalidate(target);
         }
     }
 }
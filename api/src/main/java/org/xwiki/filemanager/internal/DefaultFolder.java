@@ -19,16 +19,23 @@
  */
 package org.xwiki.filemanager.internal;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.filemanager.Document;
+import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
@@ -56,6 +63,56 @@ public class DefaultFolder extends AbstractDocument implements Folder
      */
     private static final String PARAMETER_SPACE = "space";
 
+    /**
+     * The name query parameter.
+     */
+    private static final String PARAMETER_NAME = "name";
+
+    /**
+     * The number of child references retrieved at once when iterating the children.
+     */
+    private static final int ITERATOR_BATCH_SIZE = 100;
+
+    /**
+     * The query used to retrieve the child folders.
+     */
+    private static final String CHILD_FOLDERS =
+        "from doc.object(FileManagerCode.FolderClass) as folder where doc.space = :space and doc.parent = :parent";
+
+    /**
+     * The query used to retrieve the child files.
+     */
+    private static final String CHILD_FILES = "from doc.object(FileManagerCode.FileClass) as file"
+        + " where doc.space = :space and :tag member of doc.object(XWiki.TagClass).tags";
+
+    /**
+     * The query used to look for a child folder by name. The folder name is the document name when the title is
+     * empty.
+     */
+    private static final String CHILD_FOLDERS_BY_NAME = CHILD_FOLDERS
+        + " and (doc.title = :name or ((doc.title = '' or doc.title is null) and doc.name = :name))";
+
+    /**
+     * The query used to count the child folders.
+     */
+    private static final String COUNT_CHILD_FOLDERS = "select count(doc.fullName) from Document doc,"
+        + " doc.object(FileManagerCode.FolderClass) as folder where doc.space = :space and doc.parent = :parent";
+
+    /**
+     * The query used to count the child files.
+     */
+    private static final String COUNT_CHILD_FILES = "select count(doc.fullName) from Document doc,"
+        + " doc.object(FileManagerCode.FileClass) as file where doc.space = :space"
+        + " and :tag member of doc.object(XWiki.TagClass).tags";
+
+    /**
+     * The query used to look for a child file by name. The file name is the name of the attached file.
+     */
+    private static final String CHILD_FILES_BY_NAME = "select doc.fullName from Document doc,"
+        + " doc.object(FileManagerCode.FileClass) as file, XWikiAttachment as attachment where doc.space = :space"
+        + " and :tag member of doc.object(XWiki.TagClass).tags and attachment.docId = doc.id"
+        + " and attachment.filename = :name";
+
     /**
      * Used to resolve string document references.
      */
@@ -76,6 +133,12 @@ public class DefaultFolder extends AbstractDocument implements Folder
     @Inject
     private QueryManager queryManager;
 
+    /**
+     * Used to load the child files and folders that match a name.
+     */
+    @Inject
+    private Provider<FileSystem> fileSystemProvider;
+
     @Override
     public DocumentReference getParentReference()
     {
@@ -85,34 +148,14 @@ public class DefaultFolder extends AbstractDocument implements Folder
     @Override
     public void setParentReference(DocumentReference parentReference)
     {
-        XWikiDocument document = getClonedDocument();
-        if (parentReference != null) {
-            if (parentReference.getWikiReference().equals(getReference().getWikiReference())) {
-                document.setParentReference(parentReference.removeParent(parentReference.getWikiReference()));
-            } else {
-                document.setParentReference(parentReference.extractReference(EntityType.DOCUMENT));
-            }
-        } else {
-            document.setParentReference((EntityReference) null);
-        }
+        setDocumentParentReference(parentReference);
     }
 
     @Override
     public List<DocumentReference> getChildFolderReferences()
     {
         try {
-            String statement =
-                "from doc.object(FileManagerCode.FolderClass) as folder"
-                    + " where doc.space = :space and doc.parent = :parent";
-            Query query = queryManager.createQuery(statement, Query.XWQL);
-            query.bindValue(PARAMETER_SPACE, getReference().getLastSpaceReference().getName());
-            query.bindValue("parent", localEntityReferenceSerializer.serialize(getReference()));
-            query.setWiki(getReference().getWikiReference().getName());
-            List<DocumentReference> childFolderReferences = new LinkedList<DocumentReference>();
-            for (Object result : query.execute()) {
-                childFolderReferences.add(documentReferenceResolver.resolve((String) result, getReference()));
-            }
-            return childFolderReferences;
+            return getReferences(createChildFolderQuery(CHILD_FOLDERS));
         } catch (QueryException e) {
             logger.error("Failed to retrieve the child folders of [{}]", getReference(), e);
             return Collections.emptyList();
@@ -123,21 +166,253 @@ public class DefaultFolder extends AbstractDocument implements Folder
     public List<DocumentReference> getChildFileReferences()
     {
         try {
-            String statement =
-                "from doc.object(FileManagerCode.FileClass) as file where doc.space = :space"
-                    + " and :tag member of doc.object(XWiki.TagClass).tags";
-            Query query = queryManager.createQuery(statement, Query.XWQL);
-            query.bindValue(PARAMETER_SPACE, getReference().getLastSpaceReference().getName());
-            query.bindValue("tag", getReference().getName());
-            query.setWiki(getReference().getWikiReference().getName());
-            List<DocumentReference> childFolderReferences = new LinkedList<DocumentReference>();
-            for (Object result : query.execute()) {
-                childFolderReferences.add(documentReferenceResolver.resolve((String) result, getReference()));
-            }
-            return childFolderReferences;
+            return getReferences(createChildFileQuery(CHILD_FILES));
         } catch (QueryException e) {
             logger.error("Failed to retrieve the child files of [{}]", getReference(), e);
             return Collections.emptyList();
         }
     }
+
+    @Override
+    public Iterator<DocumentReference> iterateChildFolderReferences()
+    {
+        return new ChildReferenceIterator(false);
+    }
+
+    @Override
+    public Iterator<DocumentReference> iterateChildFileReferences()
+    {
+        return new ChildReferenceIterator(true);
+    }
+
+    @Override
+    public int countChildFolders()
+    {
+        try {
+            return count(createChildFolderQuery(COUNT_CHILD_FOLDERS));
+        } catch (QueryException e) {
+            logger.error("Failed to count the child folders of [{}]", getReference(), e);
+            return 0;
+        }
+    }
+
+    @Override
+    public int countChildFiles()
+    {
+        try {
+            return count(createChildFileQuery(COUNT_CHILD_FILES));
+        } catch (QueryException e) {
+            logger.error("Failed to count the child files of [{}]", getReference(), e);
+            return 0;
+        }
+    }
+
+    @Override
+    public DocumentReference findChildFolderByName(String name)
+    {
+        try {
+            Query query = createChildFolderQuery(CHILD_FOLDERS_BY_NAME);
+            query.bindValue(PARAMETER_NAME, name);
+            // The database comparison may be case insensitive (depending on the collation) and the folder name is
+            // actually the rendered title (or the document name if the title is empty) so we need to check the name
+            // of the matched folders.
+            for (Folder child : fileSystemProvider.get().getFolders(getReferences(query))) {
+                if (name.equals(child.getName())) {
+                    return child.getReference();
+                }
+            }
+        } catch (QueryException e) {
+            logger.error("Failed to look for the child folder [{}] of [{}]", name, getReference(), e);
+        }
+        // The query compares the raw title, which differs from the rendered title when it has Velocity or wiki syntax.
+        return findChildByName(name, iterateChildFolderReferences(), false);
+    }
+
+    @Override
+    public DocumentReference findChildFileByName(String name)
+    {
+        try {
+            Query query = createChildFileQuery(CHILD_FILES_BY_NAME);
+            query.bindValue(PARAMETER_NAME, name);
+            // The database comparison may be case insensitive, depending on the collation.
+            for (File child : fileSystemProvider.get().getFiles(getReferences(query))) {
+                if (name.equals(child.getName())) {
+                    return child.getReference();
+                }
+            }
+        } catch (QueryException e) {
+            logger.error("Failed to look for the child file [{}] of [{}]", name, getReference(), e);
+        }
+        // The query compares the attachment file name, but the name of a file without attachment is its title.
+        return findChildByName(name, iterateChildFileReferences(), true);
+    }
+
+    /**
+     * Compares the given name with the name of each child file or folder. This is used when the query that looks for
+     * the child by name doesn't find it, because the query can't compare the rendered titles. This costs as much as
+     * loading all the child files or folders, but it happens only when no child has the given name.
+     * 
+     * @param name the name to look for
+     * @param childReferences the child files or folders
+     * @param files {@code true} if the children are files, {@code false} if they are folders
+     * @return the child file or folder with the given name, {@code null} if there's no such child
+     */
+    private DocumentReference findChildByName(String name, Iterator<DocumentReference> childReferences, boolean files)
+    {
+        FileSystem fileSystem = fileSystemProvider.get();
+        List<DocumentReference> batch = new ArrayList<DocumentReference>();
+        while (childReferences.hasNext()) {
+            batch.add(childReferences.next());
+            if (batch.size() == ITERATOR_BATCH_SIZE || !childReferences.hasNext()) {
+                List<? extends Document> children = files ? fileSystem.getFiles(batch) : fileSystem.getFolders(batch);
+                for (Document child : children) {
+                    if (name.equals(child.getName())) {
+                        return child.getReference();
+                    }
+                }
+                batch.clear();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param statement the query statement
+     * @return a query that targets the child folders
+     * @throws QueryException if creating the query fails
+     */
+    private Query createChildFolderQuery(String statement) throws QueryException
+    {
+        Query query = queryManager.createQuery(statement, Query.XWQL);
+        query.bindValue(PARAMETER_SPACE, getReference().getLastSpaceReference().getName());
+        query.bindValue("parent", localEntityReferenceSerializer.serialize(getReference()));
+        query.setWiki(getReference().getWikiReference().getName());
+        return query;
+    }
+
+    /**
+     * @param statement the query statement
+     * @return a query that targets the child files
+     * @throws QueryException if creating the query fails
+     */
+    private Query createChildFileQuery(String statement) throws QueryException
+    {
+        Query query = queryManager.createQuery(statement, Query.XWQL);
+        query.bindValue(PARAMETER_SPACE, getReference().getLastSpaceReference().getName());
+        query.bindValue("tag", getReference().getName());
+        query.setWiki(getReference().getWikiReference().getName());
+        return query;
+    }
+
+    /**
+     * @param query a query that returns document full names
+     * @return the references of the documents returned by the query
+     * @throws QueryException if executing the query fails
+     */
+    private List<DocumentReference> getReferences(Query query) throws QueryException
+    {
+        List<DocumentReference> references = new LinkedList<DocumentReference>();
+        for (Object result : query.execute()) {
+            references.add(documentReferenceResolver.resolve((String) result, getReference()));
+        }
+        return references;
+    }
+
+    /**
+     * @param query a count query
+     * @return the count returned by the query
+     * @throws QueryException if executing the query fails
+     */
+    private int count(Query query) throws QueryException
+    {
+        List<Object> results = query.execute();
+        return results.isEmpty() ? 0 : ((Number) results.get(0)).intValue();
+    }
+
+    /**
+     * Iterates the child files or folders using keyset pagination: each batch is retrieved with a query that selects
+     * the children whose full name follows the last full name from the previous batch. Unlike offset based pagination,
+     * this is not affected by the children that are moved or deleted while iterating.
+     */
+    private class ChildReferenceIterator implements Iterator<DocumentReference>
+    {
+        /**
+         * Whether to iterate the child files or the child folders.
+         */
+        private final boolean files;
+
+        /**
+         * The current batch of child document full names.
+         */
+        private Iterator<String> batch = Collections.<String>emptyList().iterator();
+
+        /**
+         * The full name of the last child document that has been retrieved.
+         */
+        private String lastFullName = "";
+
+        /**
+         * Whether the current batch is the last one.
+         */
+        private boolean lastBatch;
+
+        /**
+         * Creates a new iterator.
+         * 
+         * @param files {@code true} to iterate the child files, {@code false} to iterate the child folders
+         */
+        ChildReferenceIterator(boolean files)
+        {
+            this.files = files;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (!this.batch.hasNext() && !this.lastBatch) {
+                this.batch = nextBatch();
+            }
+            return this.batch.hasNext();
+        }
+
+        @Override
+        public DocumentReference next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return documentReferenceResolver.resolve(this.batch.next(), getReference());
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the next batch of child document full names
+         */
+        private Iterator<String> nextBatch()
+        {
+            String statement = (this.files ? CHILD_FILES : CHILD_FOLDERS) + " and doc.fullName > :lastFullName"
+                + " order by doc.fullName";
+            try {
+                Query query = this.files ? createChildFileQuery(statement) : createChildFolderQuery(statement);
+                query.bindValue("lastFullName", this.lastFullName);
+                query.setLimit(ITERATOR_BATCH_SIZE);
+                List<String> results = query.execute();
+                this.lastBatch = results.size() < ITERATOR_BATCH_SIZE;
+                if (!results.isEmpty()) {
+                    this.lastFullName = results.get(results.size() - 1);
+                }
+                return results.iterator();
+            } catch (QueryException e) {
+                logger.error("Failed to iterate the child {} of [{}]", this.files ? "files" : "folders",
+                    getReference(), e);
+                this.lastBatch = true;
+                return Collections.<String>emptyList().iterator();
+            }
+        }
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Holds the file and folder documents loaded, and the rights checked, while {@link DefaultFileSystem} caching is
+ * enabled. The documents are cached instead of the {@link org.xwiki.filemanager.Document} instances that wrap them
+ * because the cached documents are never modified (they are cloned first) while the wrappers can be.
+ * <p>
+ * A job shares the same cache between its own thread and its worker threads, so that a document invalidated by one
+ * of them is not served to the others, hence the synchronized methods. The least recently used entries are dropped
+ * when the cache is full so that a job touching a large tree doesn't keep all its documents in memory.
+ *
+ * @version $Id$
+ * @since 2.4
+ */
+public class FileSystemCache
+{
+    /**
+     * The maximum number of cached documents.
+     */
+    static final int MAX_DOCUMENTS = 500;
+
+    /**
+     * The maximum number of cached right checks.
+     */
+    static final int MAX_RIGHTS = 5000;
+
+    /**
+     * The cached file and folder documents.
+     */
+    private final Map<DocumentReference, XWikiDocument> documents = new LeastRecentlyUsedMap<DocumentReference,
+        XWikiDocument>(MAX_DOCUMENTS);
+
+    /**
+     * The cached access rights, indexed by (user, right, document reference).
+     */
+    private final Map<List<Object>, Boolean> rights = new LeastRecentlyUsedMap<List<Object>, Boolean>(MAX_RIGHTS);
+
+    /**
+     * A map that drops its least recently used entry when it exceeds its capacity.
+     * 
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    private static class LeastRecentlyUsedMap<K, V> extends LinkedHashMap<K, V>
+    {
+        /**
+         * Class version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The maximum number of entries.
+         */
+        private final int capacity;
+
+        /**
+         * @param capacity the maximum number of entries
+         */
+        LeastRecentlyUsedMap(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            return size() > this.capacity;
+        }
+    }
+
+    /**
+     * @param reference a file or folder reference
+     * @return the cached document, {@code null} if the document is not cached
+     */
+    synchronized XWikiDocument getDocument(DocumentReference reference)
+    {
+        return this.documents.get(reference);
+    }
+
+    /**
+     * @param document the file or folder document to cache
+     */
+    synchronized void putDocument(XWikiDocument document)
+    {
+        this.documents.put(document.getDocumentReference(), document);
+    }
+
+    /**
+     * @param reference the reference of the file or folder to remove from the cache
+     */
+    synchronized void removeDocument(DocumentReference reference)
+    {
+        this.documents.remove(reference);
+    }
+
+    /**
+     * @param user the user whose right is checked
+     * @param right the right to check
+     * @param reference the document on which the right is checked
+     * @return the cached result of the right check, {@code null} if it is not cached
+     */
+    synchronized Boolean getRight(String user, String right, DocumentReference reference)
+    {
+        return this.rights.get(Arrays.<Object>asList(user, right, reference));
+    }
+
+    /**
+     * @param user the user whose right is checked
+     * @param right the right to check
+     * @param reference the document on which the right is checked
+     * @param allowed the result of the right check
+     */
+    synchronized void putRight(String user, String right, DocumentReference reference, boolean allowed)
+    {
+        this.rights.put(Arrays.<Object>asList(user, right, reference), allowed);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Default {@link DriveHierarchyIndex} implementation. The hierarchy of a drive is loaded with a single query the first
+ * time it is needed and then it is updated by {@link DriveHierarchyIndexListener} whenever a document from that drive
+ * is created, updated or deleted. Only the hierarchies of the most recently used drives are kept in memory (see
+ * {@link FileManagerConfiguration#getHierarchyIndexSize()}).
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Singleton
+public class DefaultDriveHierarchyIndex implements DriveHierarchyIndex
+{
+    /**
+     * The class that marks folder documents.
+     */
+    private static final String FOLDER_CLASS = "FileManagerCode.FolderClass";
+
+    /**
+     * The class that marks drive documents.
+     */
+    private static final String DRIVE_CLASS = "FileManagerCode.DriveClass";
+
+    /**
+     * The reference to the folder class.
+     */
+    private static final EntityReference FOLDER_CLASS_REFERENCE = new EntityReference("FolderClass",
+        EntityType.DOCUMENT, new EntityReference("FileManagerCode", EntityType.SPACE));
+
+    /**
+     * The reference to the drive class.
+     */
+    private static final EntityReference DRIVE_CLASS_REFERENCE = new EntityReference("DriveClass",
+        EntityType.DOCUMENT, new EntityReference("FileManagerCode", EntityType.SPACE));
+
+    /**
+     * The query used to load the hierarchy of a drive. We need to use HQL in order to retrieve both the folders and the
+     * drive with a single query.
+     */
+    private static final String HIERARCHY = "select doc.name, doc.parent, obj.className"
+        + " from XWikiDocument doc, BaseObject obj where doc.space = :space and obj.name = doc.fullName"
+        + " and obj.className in (:classNames)";
+
+    /**
+     * The initial capacity of the map of indexed drives.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The load factor of the map of indexed drives.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Used to log messages.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Used to load the hierarchy of a drive.
+     */
+    @Inject
+    private QueryManager queryManager;
+
+    /**
+     * Used to resolve the parent references.
+     */
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    /**
+     * Used to get the maximum number of drives that are indexed.
+     */
+    @Inject
+    private FileManagerConfiguration configuration;
+
+    /**
+     * The drives whose hierarchy has been loaded (or is being loaded), from the least recently used to the most
+     * recently used.
+     */
+    private final Map<SpaceReference, DriveHierarchy> drives = new LinkedHashMap<SpaceReference, DriveHierarchy>(
+        INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+    @Override
+    public boolean isDescendantOrSelf(DocumentReference aliceReference, DocumentReference bobReference)
+    {
+        if (aliceReference.equals(bobReference)) {
+            return true;
+        } else if (!aliceReference.getLastSpaceReference().equals(bobReference.getLastSpaceReference())) {
+            // A folder and its parent are in the same space.
+            return false;
+        }
+        DriveHierarchy drive = getDrive(aliceReference.getLastSpaceReference());
+        return drive != null && drive.isDescendantOrSelf(aliceReference.getName(), bobReference.getName());
+    }
+
+    @Override
+    public List<DocumentReference> getPath(DocumentReference reference)
+    {
+        DriveHierarchy drive = getDrive(reference.getLastSpaceReference());
+        if (drive == null) {
+            return Collections.emptyList();
+        }
+        return asReferences(drive.getPath(reference.getName()), reference.getLastSpaceReference());
+    }
+
+    @Override
+    public boolean isOrphan(DocumentReference folderReference)
+    {
+        DriveHierarchy drive = getDrive(folderReference.getLastSpaceReference());
+        return drive != null && drive.isOrphan(folderReference.getName());
+    }
+
+    @Override
+    public List<DocumentReference> getOrphanFolders(SpaceReference driveReference)
+    {
+        DriveHierarchy drive = getDrive(driveReference);
+        if (drive == null) {
+            return Collections.emptyList();
+        }
+        return asReferences(drive.getOrphanFolders(), driveReference);
+    }
+
+    @Override
+    public List<DocumentReference> getDescendantFolders(DocumentReference reference)
+    {
+        DriveHierarchy drive = getDrive(reference.getLastSpaceReference());
+        if (drive == null) {
+            return Collections.emptyList();
+        }
+        return asReferences(drive.getDescendantFolders(reference.getName()), reference.getLastSpaceReference());
+    }
+
+    @Override
+    public void invalidate(SpaceReference driveReference)
+    {
+        synchronized (this.drives) {
+            this.drives.remove(driveReference);
+        }
+    }
+
+    /**
+     * Updates the index after a document has been created or updated. Nothing happens if the hierarchy of the drive
+     * that contains the given document hasn't been loaded yet.
+     * 
+     * @param document the document that has been created or updated
+     */
+    void update(XWikiDocument document)
+    {
+        DocumentReference reference = document.getDocumentReference();
+        DriveHierarchy drive = getIndexedDrive(reference.getLastSpaceReference());
+        if (drive != null) {
+            if (document.getXObject(FOLDER_CLASS_REFERENCE) != null) {
+                drive.put(reference.getName(), DriveHierarchy.FOLDER,
+                    getParentName(document.getParentReference(), reference));
+            } else if (document.getXObject(DRIVE_CLASS_REFERENCE) != null) {
+                drive.put(reference.getName(), DriveHierarchy.DRIVE,
+                    getParentName(document.getParentReference(), reference));
+            } else {
+                drive.remove(reference.getName());
+            }
+        }
+    }
+
+    /**
+     * Updates the index after a document has been deleted. Nothing happens if the hierarchy of the drive that
+     * contained the deleted document hasn't been loaded yet. The hierarchy is dropped when the drive document is
+     * deleted, which usually means the whole drive is being deleted.
+     * 
+     * @param reference the reference of the deleted document
+     */
+    void remove(DocumentReference reference)
+    {
+        DriveHierarchy drive = getIndexedDrive(reference.getLastSpaceReference());
+        if (drive != null) {
+            if (drive.isDrive(reference.getName())) {
+                invalidate(reference.getLastSpaceReference());
+            } else {
+                drive.remove(reference.getName());
+            }
+        }
+    }
+
+    /**
+     * @param driveReference a drive reference
+     * @return the hierarchy of the specified drive if it has been loaded or it is being loaded, {@code null} otherwise
+     */
+    private DriveHierarchy getIndexedDrive(SpaceReference driveReference)
+    {
+        synchronized (this.drives) {
+            return this.drives.get(driveReference);
+        }
+    }
+
+    /**
+     * @param driveReference a drive reference
+     * @return the hierarchy of the specified drive, {@code null} if it couldn't be loaded
+     */
+    private DriveHierarchy getDrive(SpaceReference driveReference)
+    {
+        DriveHierarchy drive;
+        synchronized (this.drives) {
+            drive = this.drives.get(driveReference);
+            if (drive == null) {
+                // Register the drive before loading it so that the changes made while loading are not lost.
+                drive = new DriveHierarchy();
+                this.drives.put(driveReference, drive);
+                evictLeastRecentlyUsedDrives();
+            }
+        }
+        // The query is executed without holding the lock of the hierarchy so that it can be updated in the mean time.
+        synchronized (drive.loadLock) {
+            if (!drive.isLoaded() && !load(drive, driveReference)) {
+                synchronized (this.drives) {
+                    if (this.drives.get(driveReference) == drive) {
+                        this.drives.remove(driveReference);
+                    }
+                }
+                return null;
+            }
+        }
+        return drive;
+    }
+
+    /**
+     * Drops the least recently used drives when there are more indexed drives than allowed.
+     */
+    private void evictLeastRecentlyUsedDrives()
+    {
+        int maxSize = this.configuration.getHierarchyIndexSize();
+        Iterator<SpaceReference> iterator = this.drives.keySet().iterator();
+        while (this.drives.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Loads the hierarchy of a drive.
+     * 
+     * @param drive where to load the hierarchy
+     * @param driveReference the drive whose hierarchy is loaded
+     * @return {@code true} if the hierarchy has been loaded, {@code false} otherwise
+     */
+    private boolean load(DriveHierarchy drive, SpaceReference driveReference)
+    {
+        try {
+            Query query = this.queryManager.createQuery(HIERARCHY, Query.HQL);
+            query.bindValue("space", driveReference.getName());
+            query.bindValue("classNames", Arrays.asList(FOLDER_CLASS, DRIVE_CLASS));
+            query.setWiki(driveReference.getParent().getName());
+            Map<String, Byte> kinds = new LinkedHashMap<String, Byte>();
+            Map<String, String> parentNames = new HashMap<String, String>();
+            for (Object result : query.execute()) {
+                Object[] row = (Object[]) result;
+                DocumentReference reference = new DocumentReference((String) row[0], driveReference);
+                String parentName = null;
+                if (!StringUtils.isEmpty((String) row[1])) {
+                    parentName =
+                        getParentName(this.documentReferenceResolver.resolve((String) row[1], reference), reference);
+                }
+                kinds.put(reference.getName(), FOLDER_CLASS.equals(row[2]) ? DriveHierarchy.FOLDER
+                    : DriveHierarchy.DRIVE);
+                parentNames.put(reference.getName(), parentName);
+            }
+            drive.load(kinds, parentNames);
+            return true;
+        } catch (QueryException e) {
+            this.logger.error("Failed to load the folder hierarchy of [{}].", driveReference, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param parentReference the parent of a folder or drive
+     * @param reference a folder or drive reference
+     * @return the name of the parent document if it's in the same space, {@code null} otherwise
+     */
+    private String getParentName(DocumentReference parentReference, DocumentReference reference)
+    {
+        if (parentReference != null
+            && parentReference.getLastSpaceReference().equals(reference.getLastSpaceReference())) {
+            return parentReference.getName();
+        }
+        return null;
+    }
+
+    /**
+     * @param names document names
+     * @param driveReference the drive that contains the documents
+     * @return the references of the specified documents
+     */
+    private List<DocumentReference> asReferences(List<String> names, SpaceReference driveReference)
+    {
+        List<DocumentReference> references = new ArrayList<DocumentReference>();
+        for (String name : names) {
+            references.add(new DocumentReference(name, driveReference));
+        }
+        return references;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The folder hierarchy of a drive. Each document name is mapped to an integer id and the hierarchy is stored using
+ * arrays indexed by these ids, which keeps the memory footprint low even for drives with many folders. The ids are
+ * never reused.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+class DriveHierarchy
+{
+    /**
+     * The kind of the documents that are neither folders nor drives (e.g. a parent document that doesn't exist).
+     */
+    static final byte NONE = 0;
+
+    /**
+     * The kind of the folder documents.
+     */
+    static final byte FOLDER = 1;
+
+    /**
+     * The kind of the drive documents.
+     */
+    static final byte DRIVE = 2;
+
+    /**
+     * The id used when a document has no parent or when the parent is in a different space.
+     */
+    private static final int NO_PARENT = -1;
+
+    /**
+     * The initial capacity of the arrays.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Used to load the hierarchy only once, without blocking the updates while the hierarchy is loading.
+     */
+    final Object loadLock = new Object();
+
+    /**
+     * Whether the hierarchy has been loaded.
+     */
+    private boolean loaded;
+
+    /**
+     * The documents that have been updated while the hierarchy was loading. The loaded data is older for them.
+     */
+    private final Set<String> updatedWhileLoading = new HashSet<String>();
+
+    /**
+     * Maps document names to ids.
+     */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /**
+     * Maps ids to document names.
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * The parent id of each document.
+     */
+    private int[] parents = new int[INITIAL_CAPACITY];
+
+    /**
+     * The kind of each document.
+     */
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * @return {@code true} if the hierarchy has been loaded, {@code false} otherwise
+     */
+    synchronized boolean isLoaded()
+    {
+        return this.loaded;
+    }
+
+    /**
+     * Adds the loaded documents to the hierarchy and marks it as loaded. The documents that have been updated since the
+     * hierarchy was registered are skipped because the loaded data may be older.
+     * 
+     * @param kinds the kind of each loaded document
+     * @param parentNames the parent name of each loaded document, {@code null} if it doesn't have a parent in the same
+     *            space
+     */
+    synchronized void load(Map<String, Byte> kinds, Map<String, String> parentNames)
+    {
+        for (Map.Entry<String, Byte> entry : kinds.entrySet()) {
+            if (!this.updatedWhileLoading.contains(entry.getKey())) {
+                set(entry.getKey(), entry.getValue(), parentNames.get(entry.getKey()));
+            }
+        }
+        this.updatedWhileLoading.clear();
+        this.loaded = true;
+    }
+
+    /**
+     * Adds or updates a document.
+     * 
+     * @param name the document name
+     * @param kind the document kind, i.e. {@link #FOLDER} or {@link #DRIVE}
+     * @param parentName the name of the parent document, {@code null} if the document doesn't have a parent in the
+     *            same space
+     */
+    synchronized void put(String name, byte kind, String parentName)
+    {
+        if (!this.loaded) {
+            this.updatedWhileLoading.add(name);
+        }
+        set(name, kind, parentName);
+    }
+
+    /**
+     * Removes a document. Its children become orphans.
+     * 
+     * @param name the document name
+     */
+    synchronized void remove(String name)
+    {
+        if (!this.loaded) {
+            this.updatedWhileLoading.add(name);
+        }
+        Integer id = this.ids.get(name);
+        if (id != null) {
+            this.kinds[id] = NONE;
+            this.parents[id] = NO_PARENT;
+        }
+    }
+
+    /**
+     * @param name a document name
+     * @return {@code true} if the specified document is a drive, {@code false} otherwise
+     */
+    synchronized boolean isDrive(String name)
+    {
+        Integer id = this.ids.get(name);
+        return id != null && this.kinds[id] == DRIVE;
+    }
+
+    /**
+     * @param aliceName a folder name
+     * @param bobName a folder name
+     * @return {@code true} if the first folder is the same as the second folder or one of its descendants,
+     *         {@code false} otherwise
+     */
+    synchronized boolean isDescendantOrSelf(String aliceName, String bobName)
+    {
+        if (aliceName.equals(bobName)) {
+            return true;
+        }
+        Integer aliceId = this.ids.get(aliceName);
+        Integer bobId = this.ids.get(bobName);
+        if (aliceId == null || bobId == null) {
+            return false;
+        }
+        // Limit the number of steps in case there's a cycle.
+        int id = aliceId;
+        for (int steps = 0; id != NO_PARENT && this.kinds[id] == FOLDER && steps <= this.names.size(); steps++) {
+            if (id == bobId) {
+                return true;
+            }
+            id = this.parents[id];
+        }
+        return false;
+    }
+
+    /**
+     * @param name a folder or drive name
+     * @return the names of the given folder and of its ancestors, in this order
+     */
+    synchronized List<String> getPath(String name)
+    {
+        List<String> path = new ArrayList<String>();
+        Set<Integer> visited = new HashSet<Integer>();
+        Integer id = this.ids.get(name);
+        while (id != null && id != NO_PARENT && this.kinds[id] != NONE && visited.add(id)) {
+            path.add(this.names.get(id));
+            // The path ends with the drive.
+            id = this.kinds[id] == FOLDER ? this.parents[id] : null;
+        }
+        return path;
+    }
+
+    /**
+     * @param name a folder name
+     * @return {@code true} if the specified folder has no parent or if its parent is neither a folder nor a drive
+     */
+    synchronized boolean isOrphan(String name)
+    {
+        Integer id = this.ids.get(name);
+        return id != null && isOrphan(id);
+    }
+
+    /**
+     * @return the names of the orphan folders
+     */
+    synchronized List<String> getOrphanFolders()
+    {
+        List<String> orphans = new ArrayList<String>();
+        for (int id = 0; id < this.names.size(); id++) {
+            if (isOrphan(id)) {
+                orphans.add(this.names.get(id));
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * @param name a folder or drive name
+     * @return the names of the descendant folders of the given folder or drive, in breadth-first order (i.e. a folder
+     *         is always listed after its parent)
+     */
+    synchronized List<String> getDescendantFolders(String name)
+    {
+        List<String> descendants = new ArrayList<String>();
+        Integer rootId = this.ids.get(name);
+        if (rootId == null) {
+            return descendants;
+        }
+
+        // Index the child folders of each document.
+        int size = this.names.size();
+        int[] firstChild = new int[size];
+        int[] nextSibling = new int[size];
+        Arrays.fill(firstChild, NO_PARENT);
+        for (int id = size - 1; id >= 0; id--) {
+            if (this.kinds[id] == FOLDER && this.parents[id] != NO_PARENT) {
+                nextSibling[id] = firstChild[this.parents[id]];
+                firstChild[this.parents[id]] = id;
+            }
+        }
+
+        // The visited flags protect us from cycles.
+        boolean[] visited = new boolean[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = rootId;
+        visited[rootId] = true;
+        while (head < tail) {
+            for (int child = firstChild[queue[head++]]; child != NO_PARENT; child = nextSibling[child]) {
+                if (!visited[child]) {
+                    visited[child] = true;
+                    queue[tail++] = child;
+                    descendants.add(this.names.get(child));
+                }
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * @param name the document name
+     * @param kind the document kind
+     * @param parentName the name of the parent document, {@code null} if there's no parent in the same space
+     */
+    private void set(String name, byte kind, String parentName)
+    {
+        int id = getOrCreateId(name);
+        this.kinds[id] = kind;
+        this.parents[id] = parentName == null ? NO_PARENT : getOrCreateId(parentName);
+    }
+
+    /**
+     * @param id a document id
+     * @return {@code true} if the specified document is an orphan folder
+     */
+    private boolean isOrphan(int id)
+    {
+        return this.kinds[id] == FOLDER && (this.parents[id] == NO_PARENT || this.kinds[this.parents[id]] == NONE);
+    }
+
+    /**
+     * @param name a document name
+     * @return the id of the specified document
+     */
+    private int getOrCreateId(String name)
+    {
+        Integer id = this.ids.get(name);
+        if (id == null) {
+            id = this.names.size();
+            if (id == this.parents.length) {
+                this.parents = Arrays.copyOf(this.parents, id * 2);
+                this.kinds = Arrays.copyOf(this.kinds, id * 2);
+            }
+            this.parents[id] = NO_PARENT;
+            this.kinds[id] = NONE;
+            this.ids.put(name, id);
+            this.names.add(name);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,759 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.FileSystem;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
+import org.xwiki.filemanager.internal.DefaultFileSystem;
+import org.xwiki.filemanager.internal.FileSystemCache;
+import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+import org.xwiki.filemanager.job.JobPlan;
+import org.xwiki.job.Job;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.job.internal.AbstractJob;
+import org.xwiki.job.internal.DefaultJobStatus;
+import org.xwiki.logging.event.LoggerListener;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Base class for jobs that operate on the file system.
+ *
+ * @param <R> the request type
+ * @version $Id$
+ * @since 2.4
+ */
+public abstract class AbstractFileSystemJob<R extends BatchPathRequest> extends AbstractJob<R, DefaultJobStatus<R>>
+{
+    /**
+     * The key under which a resumed job request stores the request paths that the job was processing when it was
+     * interrupted (see {@link #isInterruptedPath(Path)}).
+     */
+    static final String PROPERTY_INTERRUPTED_PATHS = "job.interruptedPaths";
+
+    /**
+     * The maximum number of child files or folders that are loaded at once while iterating the content of a folder.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The number of tasks that can wait in a {@link TaskPipeline} for each worker thread.
+     */
+    private static final int PIPELINE_CAPACITY_PER_THREAD = 4;
+
+    /**
+     * Signals the end of a {@link TaskPipeline} to a worker thread.
+     */
+    private static final Runnable END_OF_PIPELINE = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            // Nothing to do.
+        }
+    };
+
+    /**
+     * The pseudo file system.
+     */
+    @Inject
+    protected FileSystem fileSystem;
+
+    /**
+     * Used to get the number of worker threads.
+     */
+    @Inject
+    protected FileManagerConfiguration configuration;
+
+    /**
+     * Used to check the folder hierarchy without loading the folders.
+     */
+    @Inject
+    protected DriveHierarchyIndex driveHierarchyIndex;
+
+    /**
+     * Used to save the progress of the job.
+     */
+    @Inject
+    private JobCheckpointStore checkpointStore;
+
+    /**
+     * The queue of active jobs, used to check if the job has been canceled.
+     */
+    @Inject
+    @Named(ActiveJobQueue.NAME)
+    private EventListener activeJobQueue;
+
+    /**
+     * Used to initialize the execution context of the worker threads.
+     */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /**
+     * Used to set and remove the execution context of the worker threads.
+     */
+    @Inject
+    private Execution execution;
+
+    /**
+     * Used to access the current user and wiki.
+     */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /**
+     * Wraps the internal {@link DefaultJobStatus} and adds custom data such as the job plan. We wrap
+     * {@link DefaultJobStatus} instead of extending the class because the constructor of {@link DefaultJobStatus} has
+     * suffered a breaking change in XCOMMONS-811.
+     */
+    private FileSystemJobStatus fileSystemJobStatus;
+
+    /**
+     * The progress of the job, {@code null} if the job can't be resumed.
+     */
+    private JobCheckpoint checkpoint;
+
+    @Override
+    public void run()
+    {
+        // The same files and folders are retrieved many times while the job is running so we enable the file system
+        // cache for the job thread.
+        boolean caching =
+            this.fileSystem instanceof DefaultFileSystem && ((DefaultFileSystem) this.fileSystem).startCaching();
+        try {
+            super.run();
+        } finally {
+            if (caching) {
+                ((DefaultFileSystem) this.fileSystem).stopCaching();
+            }
+        }
+    }
+
+    /**
+     * @return the file system cache of the current thread, {@code null} if caching is disabled
+     */
+    private FileSystemCache getCache()
+    {
+        FileSystem actualFileSystem =
+            this.fileSystem instanceof ThrottledFileSystem ? ((ThrottledFileSystem) this.fileSystem).getFileSystem()
+                : this.fileSystem;
+        return actualFileSystem instanceof DefaultFileSystem ? ((DefaultFileSystem) actualFileSystem).getCache()
+            : null;
+    }
+
+    /**
+     * Defers the write throttle pauses of the current thread until {@link #resumeThrottling()} is called. Call this
+     * before acquiring a lock shared by the worker threads, so that a throttled write made while holding the lock
+     * doesn't block the other threads.
+     */
+    protected void deferThrottling()
+    {
+        if (this.fileSystem instanceof ThrottledFileSystem) {
+            ((ThrottledFileSystem) this.fileSystem).deferPauses();
+        }
+    }
+
+    /**
+     * Takes the write throttle pauses deferred by the current thread. Call this after releasing the lock.
+     * 
+     * @see #deferThrottling()
+     */
+    protected void resumeThrottling()
+    {
+        if (this.fileSystem instanceof ThrottledFileSystem) {
+            ((ThrottledFileSystem) this.fileSystem).resumePauses();
+        }
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        // The job may have been canceled while it was waiting to be executed.
+        if (isCanceled()) {
+            return;
+        }
+
+        // Compute the plan first so that the users know how much work the job is going to do.
+        getFileSystemStatus().setPlan(plan());
+        if (!getRequest().isDryRun()) {
+            // The file system jobs started by the file manager have ids like (prefix, jobId).
+            List<String> jobId = getRequest().getId();
+            if (isResumable() && jobId != null && jobId.size() == 2) {
+                this.checkpoint = new JobCheckpoint(getType(), getRequest());
+                saveCheckpoint();
+            }
+            // Measure and throttle the writes so that the job doesn't overload the database.
+            FileSystem actualFileSystem = this.fileSystem;
+            this.fileSystem = new ThrottledFileSystem(actualFileSystem,
+                new WriteThrottle(this.configuration.getWriteLatencyBudget(), getFileSystemStatus()));
+            try {
+                execute();
+            } finally {
+                this.fileSystem = actualFileSystem;
+                // Keep the checkpoint if the job has been interrupted (e.g. because the server is stopping) so that the
+                // job is resumed when the server is restarted.
+                if (this.checkpoint != null && !Thread.currentThread().isInterrupted()) {
+                    this.checkpointStore.delete(this.checkpoint.getJobId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the work that the job is going to do, without modifying the file system.
+     * 
+     * @return the job plan
+     */
+    protected abstract JobPlan plan();
+
+    /**
+     * Executes the job, after the plan has been computed.
+     * 
+     * @throws Exception if the job fails
+     */
+    protected abstract void execute() throws Exception;
+
+    /**
+     * Checks if the job has been canceled (see {@link org.xwiki.filemanager.job.FileManager#cancel(String)}). The job
+     * should call this method between steps and stop as soon as possible, leaving the file system in a consistent
+     * state. This method can be called from the worker threads.
+     * 
+     * @return {@code true} if the job has been canceled, {@code false} otherwise
+     */
+    protected boolean isCanceled()
+    {
+        FileSystemJobStatus jobStatus = getFileSystemStatus();
+        if (!jobStatus.isCanceled() && this.activeJobQueue instanceof ActiveJobQueue) {
+            List<String> jobId = getRequest().getId();
+            if (jobId != null && jobId.size() == 2 && ((ActiveJobQueue) this.activeJobQueue).isCanceled(jobId.get(1))) {
+                jobStatus.setCanceled(true);
+            }
+        }
+        return jobStatus.isCanceled();
+    }
+
+    /**
+     * @return {@code true} if the job can be resumed from its last checkpoint after a server restart, {@code false}
+     *         if the job is lost when the server is restarted
+     */
+    protected boolean isResumable()
+    {
+        return true;
+    }
+
+    /**
+     * Records that the job has started processing the given request path. The checkpoint is saved before the path is
+     * processed so that a resumed job knows which paths may have been partially processed (see
+     * {@link #isInterruptedPath(Path)}). This method can be called from the worker threads.
+     * 
+     * @param path one of the request paths
+     */
+    protected void startPath(Path path)
+    {
+        if (this.checkpoint != null) {
+            synchronized (this.checkpoint) {
+                this.checkpoint.getStartedPaths().add(path);
+                this.checkpoint.setCursor(path);
+                saveCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * Records that the job has finished processing the given request path. The checkpoint is saved for each completed
+     * path. A resumed job processes again the request paths that were not completed so processing a request path must
+     * be idempotent. This method can be called from the worker threads.
+     * 
+     * @param path one of the request paths
+     */
+    protected void completePath(Path path)
+    {
+        if (this.checkpoint != null) {
+            synchronized (this.checkpoint) {
+                this.checkpoint.getCompletedPaths().add(path);
+                saveCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * @param path one of the request paths
+     * @return {@code true} if this job has been resumed and the given request path was being processed when the job
+     *         was interrupted, in which case the path may have been partially processed; {@code false} otherwise
+     */
+    protected boolean isInterruptedPath(Path path)
+    {
+        Collection<Path> interruptedPaths = getRequest().getProperty(PROPERTY_INTERRUPTED_PATHS);
+        return interruptedPaths != null && interruptedPaths.contains(path);
+    }
+
+    /**
+     * Saves the job checkpoint.
+     */
+    private void saveCheckpoint()
+    {
+        this.checkpointStore.save(this.checkpoint);
+    }
+
+    /**
+     * @return the extended job status
+     */
+    public FileSystemJobStatus getFileSystemStatus()
+    {
+        // The internal AbstractJob and AbstractJobStatus classes have been refactored in XWiki 7.4M1 by XCOMMONS-880
+        // which seems to have broken the runtime compatibility in the sense that some protected fields and some public
+        // methods are not accessible anymore after they have been moved higher in the class hierarchy (and in a
+        // different package). The workaround I found is to cast 'this' to the interface/class that provides the public
+        // method I want to access.
+        JobStatus defaultJobStatus = ((Job) this).getStatus();
+        if (this.fileSystemJobStatus == null && defaultJobStatus != null) {
+            this.fileSystemJobStatus = createFileSystemStatus(defaultJobStatus);
+        }
+        return this.fileSystemJobStatus;
+    }
+
+    /**
+     * @param jobStatus the (default) job status to extend
+     * @return the extended job status
+     */
+    protected FileSystemJobStatus createFileSystemStatus(JobStatus jobStatus)
+    {
+        return new FileSystemJobStatus(jobStatus);
+    }
+
+    /**
+     * Computes a plan that includes the files and folders targeted by the request paths, including the descendants of
+     * the targeted folders, on which the current user has the specified right (see
+     * {@link #collectSubtree(DocumentReference, String, Collection)}).
+     * 
+     * @param right the right required to process a file or a folder
+     * @param fileReferences where to collect the planned files
+     * @return the job plan
+     */
+    protected JobPlan planSubtrees(String right, Collection<DocumentReference> fileReferences)
+    {
+        return planSubtrees(right, fileReferences, new LinkedHashSet<DocumentReference>());
+    }
+
+    /**
+     * Computes a plan that includes the files and folders targeted by the request paths, including the descendants of
+     * the targeted folders, on which the current user has the specified right.
+     * 
+     * @param right the right required to process a file or a folder
+     * @param fileReferences where to collect the planned files
+     * @param folderReferences where to collect the planned folders, initially empty
+     * @return the job plan
+     * @see #planSubtrees(String, Collection)
+     */
+    protected JobPlan planSubtrees(String right, Collection<DocumentReference> fileReferences,
+        Set<DocumentReference> folderReferences)
+    {
+        JobPlan plan = new JobPlan();
+        Collection<Path> paths = getRequest().getPaths();
+        if (paths == null) {
+            return plan;
+        }
+
+        Set<DocumentReference> candidateFileReferences = new LinkedHashSet<DocumentReference>();
+        for (Path path : paths) {
+            if (path.getFileReference() != null) {
+                candidateFileReferences.add(path.getFileReference());
+            } else if (path.getFolderReference() != null && fileSystem.exists(path.getFolderReference())
+                && !fileSystem.filterByRight(right, Collections.singleton(path.getFolderReference())).isEmpty()) {
+                for (List<DocumentReference> level : collectSubtree(path.getFolderReference(), right, null)) {
+                    folderReferences.addAll(level);
+                }
+            }
+        }
+        candidateFileReferences.addAll(fileSystem.findChildFiles(folderReferences));
+        fileReferences.addAll(fileSystem.filterByRight(right, candidateFileReferences));
+
+        plan.setFolderCount(folderReferences.size());
+        plan.setFileCount(fileReferences.size());
+        return plan;
+    }
+
+    /**
+     * Collects the given folder and its descendants, except for the descendants on which the current user doesn't have
+     * the specified right (and their descendants). The folder hierarchy is taken from the drive hierarchy index.
+     * 
+     * @param folderReference the root of the subtree
+     * @param right the right required on each descendant folder
+     * @param deniedFolderReferences where to collect the descendant folders on which the current user doesn't have the
+     *            specified right, {@code null} if they are not needed
+     * @return the collected folders, grouped by their depth in the subtree
+     */
+    protected List<List<DocumentReference>> collectSubtree(DocumentReference folderReference, String right,
+        Collection<DocumentReference> deniedFolderReferences)
+    {
+        List<DocumentReference> descendants = this.driveHierarchyIndex.getDescendantFolders(folderReference);
+        Set<DocumentReference> allowed = new HashSet<DocumentReference>(fileSystem.filterByRight(right, descendants));
+
+        List<List<DocumentReference>> levels = new ArrayList<List<DocumentReference>>();
+        levels.add(new ArrayList<DocumentReference>());
+        levels.get(0).add(folderReference);
+        Map<DocumentReference, Integer> depths = new HashMap<DocumentReference, Integer>();
+        depths.put(folderReference, 0);
+
+        // The descendants are in breadth-first order so the parent of a folder is processed before the folder.
+        for (DocumentReference descendant : descendants) {
+            List<DocumentReference> path = this.driveHierarchyIndex.getPath(descendant);
+            Integer parentDepth = path.size() > 1 ? depths.get(path.get(1)) : null;
+            if (parentDepth == null) {
+                // The parent folder is not collected.
+                continue;
+            } else if (!allowed.contains(descendant)) {
+                if (deniedFolderReferences != null) {
+                    deniedFolderReferences.add(descendant);
+                }
+                continue;
+            }
+            int depth = parentDepth + 1;
+            if (depth == levels.size()) {
+                levels.add(new ArrayList<DocumentReference>());
+            }
+            levels.get(depth).add(descendant);
+            depths.put(descendant, depth);
+        }
+        return levels;
+    }
+
+    /**
+     * Takes the next batch of references from the given iterator. This is useful to load the files and folders in
+     * batches, using {@link FileSystem#getFiles(java.util.Collection)} and
+     * {@link FileSystem#getFolders(java.util.Collection)}, while iterating the content of a folder.
+     * 
+     * @param iterator an iterator over file or folder references
+     * @return the next references from the given iterator (at most {@link #BATCH_SIZE})
+     */
+    protected List<DocumentReference> nextBatch(Iterator<DocumentReference> iterator)
+    {
+        List<DocumentReference> batch = new ArrayList<DocumentReference>();
+        while (batch.size() < BATCH_SIZE && iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Notifies the progress of multiple steps at once, e.g. after processing a batch of child files or folders.
+     * 
+     * @param steps the number of steps to notify
+     */
+    protected void notifyStepsProgress(int steps)
+    {
+        for (int i = 0; i < steps; i++) {
+            notifyStepPropress();
+        }
+    }
+
+    /**
+     * Runs the given tasks on a pool of worker threads (see {@link FileManagerConfiguration#getWorkerThreadCount()})
+     * and waits for all of them to finish. The tasks must be independent: they are executed in no particular order.
+     * Each worker thread gets its own execution context, with the job user and wiki, and its logs are added to the job
+     * status. One progress step is notified, from the job thread, for each finished task. The tasks are run on the job
+     * thread when there is only one worker thread or only one task.
+     * 
+     * @param tasks the tasks to run
+     */
+    protected void runInParallel(List<? extends Runnable> tasks)
+    {
+        int threadCount = Math.min(this.configuration.getWorkerThreadCount(), tasks.size());
+        if (threadCount <= 1) {
+            for (Runnable task : tasks) {
+                task.run();
+                notifyStepPropress();
+            }
+            return;
+        }
+
+        XWikiContext xcontext = this.xcontextProvider.get();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+        try {
+            CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+            for (Runnable task : tasks) {
+                completionService.submit(new WorkerTask(task, xcontext.getUserReference(), xcontext.getDatabase(),
+                    getCache()), null);
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    this.logger.error("A worker thread failed.", e.getCause());
+                }
+                // Progress listeners are bound to the job thread so we notify the progress from here.
+                notifyStepPropress();
+            }
+        } catch (InterruptedException e) {
+            this.logger.warn("Interrupted while waiting for the worker threads.");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts worker threads (see {@link FileManagerConfiguration#getWorkerThreadCount()}) that execute the tasks
+     * submitted to the returned pipeline. This way the job thread can produce tasks, e.g. while walking a folder tree,
+     * while the worker threads execute them. The caller must call {@link TaskPipeline#finish()} when there are no more
+     * tasks to submit.
+     * 
+     * @return the pipeline, {@code null} if the job is configured to use a single thread
+     */
+    protected TaskPipeline startPipeline()
+    {
+        int threadCount = this.configuration.getWorkerThreadCount();
+        return threadCount > 1 ? new TaskPipeline(threadCount) : null;
+    }
+
+    /**
+     * A bounded queue of tasks executed by worker threads, in the context of the job.
+     */
+    protected class TaskPipeline
+    {
+        /**
+         * The tasks waiting to be executed. The queue is bounded so that the producer doesn't get too far ahead of the
+         * worker threads, which keeps the progress of the job meaningful.
+         */
+        private final BlockingQueue<Runnable> queue;
+
+        /**
+         * The worker threads.
+         */
+        private final ExecutorService executor;
+
+        /**
+         * Used to wait for the worker threads to finish.
+         */
+        private final List<Future<?>> workers = new ArrayList<Future<?>>();
+
+        /**
+         * Starts the worker threads.
+         * 
+         * @param threadCount the number of worker threads
+         */
+        TaskPipeline(int threadCount)
+        {
+            this.queue = new ArrayBlockingQueue<Runnable>(threadCount * PIPELINE_CAPACITY_PER_THREAD);
+            this.executor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+            XWikiContext xcontext = xcontextProvider.get();
+            FileSystemCache cache = getCache();
+            for (int i = 0; i < threadCount; i++) {
+                this.workers.add(this.executor.submit(new WorkerTask(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        consume();
+                    }
+                }, xcontext.getUserReference(), xcontext.getDatabase(), cache)));
+            }
+        }
+
+        /**
+         * Adds a task to the pipeline, waiting if the pipeline is full.
+         * 
+         * @param task the task to execute
+         */
+        public void submit(Runnable task)
+        {
+            try {
+                this.queue.put(task);
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while submitting a task to the worker threads.");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits for the worker threads to execute all the submitted tasks and then stops them.
+         */
+        public void finish()
+        {
+            try {
+                for (int i = 0; i < this.workers.size(); i++) {
+                    this.queue.put(END_OF_PIPELINE);
+                }
+                for (Future<?> worker : this.workers) {
+                    try {
+                        worker.get();
+                    } catch (ExecutionException e) {
+                        logger.error("A worker thread failed.", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for the worker threads.");
+                Thread.currentThread().interrupt();
+            } finally {
+                this.executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Executes the tasks from the queue until the end of the pipeline.
+         */
+        private void consume()
+        {
+            try {
+                for (Runnable task = this.queue.take(); task != END_OF_PIPELINE; task = this.queue.take()) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to execute task.", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Worker thread interrupted.");
+            }
+        }
+    }
+
+    /**
+     * Creates the worker threads of the job.
+     */
+    private class WorkerThreadFactory implements ThreadFactory
+    {
+        /**
+         * Used to number the worker threads.
+         */
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, getType() + " worker " + this.counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Runs a task on a worker thread, in the context of the job.
+     */
+    private class WorkerTask implements Runnable
+    {
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * The user that started the job.
+         */
+        private final DocumentReference userReference;
+
+        /**
+         * The wiki where the job runs.
+         */
+        private final String wiki;
+
+        /**
+         * The file system cache of the job thread, {@code null} if caching is disabled.
+         */
+        private final FileSystemCache cache;
+
+        /**
+         * Creates a new worker task.
+         * 
+         * @param task the task to run
+         * @param userReference the user that started the job
+         * @param wiki the wiki where the job runs
+         * @param cache the file system cache of the job thread, shared with the worker thread
+         */
+        WorkerTask(Runnable task, DocumentReference userReference, String wiki, FileSystemCache cache)
+        {
+            this.task = task;
+            this.userReference = userReference;
+            this.wiki = wiki;
+            this.cache = cache;
+        }
+
+        @Override
+        public void run()
+        {
+            ExecutionContext context = new ExecutionContext();
+            execution.setContext(context);
+            try {
+                executionContextManager.initialize(context);
+            } catch (ExecutionContextException e) {
+                logger.error("Failed to initialize the worker thread execution context.", e);
+                execution.removeContext();
+                return;
+            }
+
+            loggerManager.pushLogListener(new LoggerListener(Thread.currentThread().getName(), getStatus().getLog()));
+            FileSystem actualFileSystem =
+                fileSystem instanceof ThrottledFileSystem ? ((ThrottledFileSystem) fileSystem).getFileSystem()
+                    : fileSystem;
+            // Share the cache of the job thread so that the documents changed by a worker are not served stale to the
+            // job thread or to the other workers.
+            boolean caching = this.cache != null && actualFileSystem instanceof DefaultFileSystem
+                && ((DefaultFileSystem) actualFileSystem).startCaching(this.cache);
+            try {
+                XWikiContext xcontext = xcontextProvider.get();
+                xcontext.setUserReference(this.userReference);
+                xcontext.setDatabase(this.wiki);
+
+                this.task.run();
+            } finally {
+                if (caching) {
+                    ((DefaultFileSystem) actualFileSystem).stopCaching();
+                }
+                loggerManager.popLogListener();
+                execution.removeContext();
+            }
+        }
+    }
+}
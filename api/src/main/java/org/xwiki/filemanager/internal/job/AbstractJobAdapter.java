@@ -56,6 +56,9 @@ public abstract class AbstractJobAdapter implements Job
     @Override
     public JobStatus getStatus()
     {
+        if (getJob() instanceof AbstractFileSystemJob) {
+            return ((AbstractFileSystemJob<?>) getJob()).getFileSystemStatus();
+        }
         return getJob().getStatus();
     }
 
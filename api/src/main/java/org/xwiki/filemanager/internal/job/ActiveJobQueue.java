@@ -21,6 +21,8 @@ package org.xwiki.filemanager.internal.job;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.inject.Named;
@@ -54,6 +56,11 @@ public class ActiveJobQueue extends ConcurrentLinkedQueue<String> implements Eve
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The active jobs that have been canceled.
+     */
+    private final Set<String> canceledJobs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     @Override
     public List<Event> getEvents()
     {
@@ -72,6 +79,31 @@ public class ActiveJobQueue extends ConcurrentLinkedQueue<String> implements Eve
         List<String> jobId = ((JobFinishedEvent) event).getJobId();
         if (jobId != null && jobId.size() == 2 && FileManager.JOB_ID_PREFIX.equals(jobId.get(0))) {
             remove(jobId.get(1));
+            this.canceledJobs.remove(jobId.get(1));
+        }
+    }
+
+    /**
+     * Marks the specified job as canceled. The job stops as soon as it notices.
+     * 
+     * @param jobId the id of the job to cancel
+     * @return {@code true} if the job is active and has been marked as canceled, {@code false} otherwise
+     */
+    public boolean cancel(String jobId)
+    {
+        if (contains(jobId)) {
+            this.canceledJobs.add(jobId);
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * @param jobId a job id
+     * @return {@code true} if the specified job has been canceled and is still active, {@code false} otherwise
+     */
+    public boolean isCanceled(String jobId)
+    {
+        return this.canceledJobs.contains(jobId);
     }
 }
@@ -19,15 +19,20 @@
  */
 package org.xwiki.filemanager.internal.job;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Named;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.model.reference.DocumentReference;
 
 /**
@@ -37,7 +42,7 @@ import org.xwiki.model.reference.DocumentReference;
  * @since 2.0M1
  */
 @Component
-@Named(CopyJob.JOB_TYPE)
+@Named(CopyJob.JOB_TYPE + "/actual")
 public class CopyJob extends MoveJob
 {
     /**
@@ -45,6 +50,24 @@ public class CopyJob extends MoveJob
      */
     public static final String JOB_TYPE = "fileManager/copy";
 
+    /**
+     * The pipeline used to copy the files on worker threads while the job thread walks the folder tree, {@code null}
+     * if the files are copied on the job thread.
+     */
+    private TaskPipeline pipeline;
+
+    /**
+     * The number of pending tasks for the request path that is being copied, {@code null} if the files are copied on
+     * the job thread.
+     */
+    private PendingTasks pendingTasks;
+
+    /**
+     * Whether the request path that is being copied was partially copied before the job was interrupted and resumed,
+     * in which case the files that already exist in the destination are skipped.
+     */
+    private boolean skipExisting;
+
     @Override
     public String getType()
     {
@@ -52,7 +75,21 @@ public class CopyJob extends MoveJob
     }
 
     @Override
-    protected void runInternal() throws Exception
+    protected JobPlan plan()
+    {
+        Path destination = getRequest().getDestination();
+        if (destination == null || destination.getFolderReference() == null) {
+            return new JobPlan();
+        }
+
+        // The copied files and folders must be viewable.
+        JobPlan plan = planSubtrees(FileSystem.RIGHT_VIEW, new ArrayList<DocumentReference>());
+        addConflicts(plan, getRequest().getPaths(), destination);
+        return plan;
+    }
+
+    @Override
+    protected void execute() throws Exception
     {
         Collection<Path> paths = getRequest().getPaths();
         Path destination = getRequest().getDestination();
@@ -63,12 +100,29 @@ public class CopyJob extends MoveJob
 
         notifyPushLevelProgress(paths.size());
 
+        this.pipeline = startPipeline();
         try {
             for (Path path : paths) {
-                copy(path, destination);
+                if (isCanceled()) {
+                    break;
+                }
+                startPath(path);
+                this.skipExisting = isInterruptedPath(path);
+                if (this.pipeline == null) {
+                    copy(path, destination);
+                    completePath(path);
+                } else {
+                    // The request path is completed when all the files it contains have been copied.
+                    this.pendingTasks = new PendingTasks(path);
+                    copy(path, destination);
+                    this.pendingTasks.finish();
+                }
                 notifyStepPropress();
             }
         } finally {
+            if (this.pipeline != null) {
+                this.pipeline.finish();
+            }
             notifyPopLevelProgress();
         }
     }
@@ -98,53 +152,110 @@ public class CopyJob extends MoveJob
     {
         File file = fileSystem.getFile(fileReference);
         if (file != null) {
-            if (fileSystem.canView(fileReference)) {
-                Collection<DocumentReference> parentReferences = file.getParentReferences();
-                boolean copyToDifferentFolder = !parentReferences.contains(destination.getFolderReference());
-                if (destination.getFileReference() == null && copyToDifferentFolder) {
-                    // Same name but a different folder.
-                    DocumentReference copyReference =
-                        new DocumentReference(file.getName(), fileReference.getLastSpaceReference());
-                    copyFile(file, new Path(destination.getFolderReference(), copyReference));
-                } else if (destination.getFileReference() != null
-                    && (!destination.getFileReference().getName().equals(file.getName()) || copyToDifferentFolder)) {
-                    // Either different name or different folder.
-                    copyFile(file, destination);
-                }
-            } else {
-                this.logger.error("You are not allowed to copy the file [{}].", fileReference);
+            copyFileIfAllowed(file, destination);
+        }
+    }
+
+    /**
+     * Copy the given file to the specified destination, if the current user is allowed to view it.
+     * 
+     * @param file the file to be copied
+     * @param destination the destination
+     */
+    private void copyFileIfAllowed(File file, Path destination)
+    {
+        DocumentReference fileReference = file.getReference();
+        if (fileSystem.canView(fileReference)) {
+            Collection<DocumentReference> parentReferences = file.getParentReferences();
+            boolean copyToDifferentFolder = !parentReferences.contains(destination.getFolderReference());
+            if (destination.getFileReference() == null && copyToDifferentFolder) {
+                // Same name but a different folder.
+                DocumentReference copyReference =
+                    new DocumentReference(file.getName(), fileReference.getLastSpaceReference());
+                submitCopyFile(file, new Path(destination.getFolderReference(), copyReference));
+            } else if (destination.getFileReference() != null
+                && (!destination.getFileReference().getName().equals(file.getName()) || copyToDifferentFolder)) {
+                // Either different name or different folder.
+                submitCopyFile(file, destination);
             }
+        } else {
+            this.logger.error("You are not allowed to copy the file [{}].", fileReference);
         }
     }
 
     /**
-     * Copy the given file to the specified path.
+     * Copy the given file to the specified path, on a worker thread if the job uses a pipeline.
      * 
      * @param file the file to copy
      * @param destination the destination path
      */
-    private void copyFile(File file, Path destination)
+    private void submitCopyFile(final File file, final Path destination)
     {
-        Folder folder = fileSystem.getFolder(destination.getFolderReference());
-        if (!prepareOverwrite(destination.getFileReference().getName(), folder, file.getReference())) {
-            return;
+        if (this.pipeline == null) {
+            copyFile(file, destination, this.skipExisting);
+        } else {
+            final PendingTasks currentPendingTasks = this.pendingTasks;
+            final boolean currentSkipExisting = this.skipExisting;
+            currentPendingTasks.add();
+            this.pipeline.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        // Skip the pending copies if the job has been canceled.
+                        if (!isCanceled()) {
+                            copyFile(file, destination, currentSkipExisting);
+                        }
+                    } finally {
+                        currentPendingTasks.finish();
+                    }
+                }
+            });
         }
+    }
 
-        DocumentReference copyReference = getUniqueReference(destination.getFileReference());
-        if (fileSystem.canEdit(copyReference)) {
-            fileSystem.copy(file.getReference(), copyReference);
-            File copy = fileSystem.getFile(copyReference);
-            if (copy != null) {
-                // Update the name ..
-                copy.setName(destination.getFileReference().getName());
-                // .. and the parent folder.
-                Collection<DocumentReference> parentReferences = copy.getParentReferences();
-                parentReferences.clear();
-                parentReferences.add(destination.getFolderReference());
-                fileSystem.save(copy);
+    /**
+     * Copy the given file to the specified path.
+     * 
+     * @param file the file to copy
+     * @param destination the destination path
+     * @param skipExisting {@code true} to skip the file if the destination folder has a file with the same name (i.e.
+     *            the file has been copied before the job was interrupted), {@code false} to handle the name conflict
+     */
+    private void copyFile(File file, Path destination, boolean skipExisting)
+    {
+        String name = destination.getFileReference().getName();
+        deferThrottling();
+        try {
+            synchronized (getDestinationLock(destination.getFolderReference(), name)) {
+                Folder folder = fileSystem.getFolder(destination.getFolderReference());
+                if (skipExisting && getChildFileByName(folder, name) != null) {
+                    return;
+                }
+                if (!prepareOverwrite(name, folder, file.getReference())) {
+                    return;
+                }
+
+                DocumentReference copyReference = getUniqueReference(destination.getFileReference());
+                if (fileSystem.canEdit(copyReference)) {
+                    fileSystem.copy(file.getReference(), copyReference);
+                    File copy = fileSystem.getFile(copyReference);
+                    if (copy != null) {
+                        // Update the name ..
+                        copy.setName(name);
+                        // .. and the parent folder.
+                        Collection<DocumentReference> parentReferences = copy.getParentReferences();
+                        parentReferences.clear();
+                        parentReferences.add(destination.getFolderReference());
+                        fileSystem.save(copy);
+                    }
+                } else {
+                    this.logger.error("You are not allowed to create the file [{}].", copyReference);
+                }
             }
-        } else {
-            this.logger.error("You are not allowed to create the file [{}].", copyReference);
+        } finally {
+            resumeThrottling();
         }
     }
 
@@ -221,22 +332,71 @@ public class CopyJob extends MoveJob
     private void copyContent(Folder source, DocumentReference destination)
     {
         Path destinationPath = new Path(destination);
-        List<DocumentReference> childFolderReferences = source.getChildFolderReferences();
-        List<DocumentReference> childFileReferences = source.getChildFileReferences();
-        notifyPushLevelProgress(childFolderReferences.size() + childFileReferences.size());
+        notifyPushLevelProgress(source.countChildFiles() + source.countChildFolders());
 
         try {
-            for (DocumentReference childFileReference : childFileReferences) {
-                copyFile(childFileReference, destinationPath);
-                notifyStepPropress();
+            Iterator<DocumentReference> childFileReferences = source.iterateChildFileReferences();
+            while (childFileReferences.hasNext() && !isCanceled()) {
+                // Step over the whole batch because the files that don't exist anymore are not returned.
+                List<DocumentReference> batch = nextBatch(childFileReferences);
+                for (File childFile : fileSystem.getFiles(batch)) {
+                    copyFileIfAllowed(childFile, destinationPath);
+                }
+                notifyStepsProgress(batch.size());
             }
 
-            for (DocumentReference childFolderReference : childFolderReferences) {
-                copyFolder(childFolderReference, destinationPath);
+            Iterator<DocumentReference> childFolderReferences = source.iterateChildFolderReferences();
+            while (childFolderReferences.hasNext() && !isCanceled()) {
+                copyFolder(childFolderReferences.next(), destinationPath);
                 notifyStepPropress();
             }
         } finally {
             notifyPopLevelProgress();
         }
     }
+
+    /**
+     * Counts the tasks that have been submitted to the pipeline for a request path and are not finished yet. The
+     * walk of the request path counts as a task too.
+     */
+    private class PendingTasks
+    {
+        /**
+         * The request path.
+         */
+        private final Path path;
+
+        /**
+         * The number of unfinished tasks.
+         */
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        /**
+         * Creates a new counter for the given request path.
+         * 
+         * @param path the request path
+         */
+        PendingTasks(Path path)
+        {
+            this.path = path;
+        }
+
+        /**
+         * Adds a pending task.
+         */
+        void add()
+        {
+            this.count.incrementAndGet();
+        }
+
+        /**
+         * Marks a task as finished. The request path is completed when there are no more pending tasks.
+         */
+        void finish()
+        {
+            if (this.count.decrementAndGet() == 0) {
+                completePath(this.path);
+            }
+        }
+    }
 }
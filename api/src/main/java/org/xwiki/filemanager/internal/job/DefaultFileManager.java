@@ -19,6 +19,7 @@
  */
 package org.xwiki.filemanager.internal.job;
 
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -30,18 +31,27 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.ObjectUtils;
 import org.jgroups.util.UUID;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Path;
 import org.xwiki.filemanager.job.BatchPathRequest;
 import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+import org.xwiki.filemanager.job.JobPlan;
+import org.xwiki.filemanager.job.JobPriority;
 import org.xwiki.filemanager.job.MoveRequest;
 import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.job.Job;
 import org.xwiki.job.JobException;
 import org.xwiki.job.JobManager;
+import org.xwiki.job.Request;
 import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 
 /**
@@ -58,7 +68,7 @@ public class DefaultFileManager implements FileManager
      * The key under which we store the reference to the current user in the job request (in order to know the user that
      * triggered the job and to verify access rights when performing the job actions).
      */
-    private static final String PROPERTY_USER_REFERENCE = "user.reference";
+    static final String PROPERTY_USER_REFERENCE = "user.reference";
 
     /**
      * The key under which we store the job type in the job request. This is useful when different jobs use the same
@@ -66,6 +76,11 @@ public class DefaultFileManager implements FileManager
      */
     private static final String PROPERTY_JOB_TYPE = "job.type";
 
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final long MEGABYTE = 1024L * 1024L;
+
     /**
      * Used to access the current user reference.
      */
@@ -73,7 +88,13 @@ public class DefaultFileManager implements FileManager
     private DocumentAccessBridge documentAccessBridge;
 
     /**
-     * Handles the execution of the file system jobs.
+     * Executes the file system jobs.
+     */
+    @Inject
+    private FileSystemJobExecutor jobExecutor;
+
+    /**
+     * Provides the status of the finished jobs.
      */
     @Inject
     private JobManager jobManager;
@@ -85,31 +106,51 @@ public class DefaultFileManager implements FileManager
     @Named("ActiveFileSystemJobQueue")
     private EventListener activeJobQueue;
 
+    /**
+     * Used to reuse the pack jobs that produce the same output.
+     */
+    @Inject
+    @Named(PackJobCoalescer.NAME)
+    private EventListener packJobCoalescer;
+
+    /**
+     * Used to compute the size of the files packed while the archive is streamed.
+     */
+    @Inject
+    private FileSystem fileSystem;
+
+    /**
+     * Used to limit the files packed while the archive is streamed.
+     */
+    @Inject
+    private FileManagerConfiguration configuration;
+
     @Override
     public String move(Collection<Path> paths, Path destination) throws JobException
     {
         MoveRequest moveRequest = createMoveRequest(paths, destination, MoveJob.JOB_TYPE);
+        // Moving or renaming a single file or folder doesn't touch the content so it's fast.
+        moveRequest.setPriority(paths.size() == 1 ? JobPriority.INTERACTIVE : JobPriority.NORMAL);
 
-        this.jobManager.addJob(MoveJob.JOB_TYPE, moveRequest);
-        return addToQueue(moveRequest);
+        return schedule(MoveJob.JOB_TYPE, moveRequest);
     }
 
     @Override
     public String copy(Collection<Path> paths, Path destination) throws JobException
     {
         MoveRequest moveRequest = createMoveRequest(paths, destination, CopyJob.JOB_TYPE);
+        moveRequest.setPriority(getPriority(paths, JobPriority.BULK));
 
-        this.jobManager.addJob(CopyJob.JOB_TYPE, moveRequest);
-        return addToQueue(moveRequest);
+        return schedule(CopyJob.JOB_TYPE, moveRequest);
     }
 
     @Override
     public String delete(Collection<Path> paths) throws JobException
     {
         BatchPathRequest deleteRequest = initBatchPathRequest(new BatchPathRequest(), paths, DeleteJob.JOB_TYPE);
+        deleteRequest.setPriority(getPriority(paths, JobPriority.NORMAL));
 
-        this.jobManager.addJob(DeleteJob.JOB_TYPE, deleteRequest);
-        return addToQueue(deleteRequest);
+        return schedule(DeleteJob.JOB_TYPE, deleteRequest);
     }
 
     @Override
@@ -117,15 +158,141 @@ public class DefaultFileManager implements FileManager
     {
         PackRequest packRequest = initBatchPathRequest(new PackRequest(), paths, PackJob.JOB_TYPE);
         packRequest.setOutputFileReference(outputFileReference);
+        packRequest.setPriority(JobPriority.BULK);
+
+        if (!(this.packJobCoalescer instanceof PackJobCoalescer)) {
+            return schedule(PackJob.JOB_TYPE, packRequest);
+        }
 
-        this.jobManager.addJob(PackJob.JOB_TYPE, packRequest);
-        return addToQueue(packRequest);
+        // Reuse the output of a pack job that is running or that has finished recently, if possible.
+        PackJobCoalescer coalescer = (PackJobCoalescer) this.packJobCoalescer;
+        synchronized (coalescer) {
+            String jobId = coalescer.getReusableJob(packRequest);
+            if (jobId == null) {
+                jobId = schedule(PackJob.JOB_TYPE, packRequest);
+                coalescer.register(packRequest, getJobStatus(jobId));
+            }
+            return jobId;
+        }
+    }
+
+    @Override
+    public JobStatus pack(Collection<Path> paths, OutputStream outputStream) throws JobException
+    {
+        // The archive is packed on the current thread (e.g. the HTTP request thread) so large selections are refused.
+        if (!canStreamPack(paths)) {
+            throw new JobException("The selection is too large to be streamed. Schedule a pack job instead.");
+        }
+
+        Job job = this.jobExecutor.createJob(PackJob.JOB_TYPE + "/actual");
+        if (!(job instanceof PackJob)) {
+            throw new JobException("The pack job doesn't support streaming.");
+        }
+
+        PackRequest packRequest = initBatchPathRequest(new PackRequest(), paths, PackJob.JOB_TYPE);
+        // The job runs on the current thread, as the current user, and it isn't tracked: without an id the job status
+        // is not stored and the job doesn't get the user from the request.
+        packRequest.setId((List<String>) null);
+        ((PackJob) job).setOutputStream(outputStream);
+        job.initialize(packRequest);
+        job.run();
+        return ((PackJob) job).getPackStatus();
+    }
+
+    @Override
+    public boolean canStreamPack(Collection<Path> paths)
+    {
+        if (paths.size() > this.configuration.getStreamPackMaxFileCount()) {
+            return false;
+        }
+
+        List<DocumentReference> fileReferences = new ArrayList<DocumentReference>();
+        for (Path path : paths) {
+            if (path.getFileReference() == null) {
+                // Walking the subtree of a folder can take arbitrarily long.
+                return false;
+            }
+            fileReferences.add(path.getFileReference());
+        }
+
+        return this.fileSystem.getTotalFileSize(fileReferences) <= this.configuration.getStreamPackMaxSize() * MEGABYTE;
+    }
+
+    @Override
+    public JobPlan planMove(Collection<Path> paths, Path destination) throws JobException
+    {
+        return plan(MoveJob.JOB_TYPE, createMoveRequest(paths, destination, MoveJob.JOB_TYPE));
+    }
+
+    @Override
+    public JobPlan planCopy(Collection<Path> paths, Path destination) throws JobException
+    {
+        return plan(CopyJob.JOB_TYPE, createMoveRequest(paths, destination, CopyJob.JOB_TYPE));
+    }
+
+    @Override
+    public JobPlan planDelete(Collection<Path> paths) throws JobException
+    {
+        return plan(DeleteJob.JOB_TYPE, initBatchPathRequest(new BatchPathRequest(), paths, DeleteJob.JOB_TYPE));
+    }
+
+    @Override
+    public JobPlan planPack(Collection<Path> paths) throws JobException
+    {
+        return plan(PackJob.JOB_TYPE, initBatchPathRequest(new PackRequest(), paths, PackJob.JOB_TYPE));
+    }
+
+    /**
+     * Executes the specified job in dry run mode, on the current thread, and returns its plan.
+     * 
+     * @param jobType the job type
+     * @param request the job request
+     * @return the job plan
+     * @throws JobException if executing the job fails
+     */
+    private JobPlan plan(String jobType, BatchPathRequest request) throws JobException
+    {
+        Job job = this.jobExecutor.createJob(jobType + "/actual");
+        if (!(job instanceof AbstractFileSystemJob)) {
+            throw new JobException(String.format("The [%s] job doesn't support dry runs.", jobType));
+        }
+
+        request.setDryRun(true);
+        // The dry run is not tracked: without an id the job status is not stored and the job doesn't change the
+        // context user (see ContextUserHandler), which matters because the job runs on the current thread.
+        request.setId((List<String>) null);
+        job.initialize(request);
+        job.run();
+        return ((AbstractFileSystemJob<?>) job).getFileSystemStatus().getPlan();
+    }
+
+    @Override
+    public boolean cancel(String jobId)
+    {
+        // Only the user that scheduled the job can cancel it.
+        Request request = this.jobExecutor.getJobRequest(getJobStatusId(jobId));
+        if (request == null || !ObjectUtils.equals(request.getProperty(PROPERTY_USER_REFERENCE),
+            this.documentAccessBridge.getCurrentUserReference())) {
+            return false;
+        } else if (!(this.activeJobQueue instanceof ActiveJobQueue)
+            || !((ActiveJobQueue) this.activeJobQueue).cancel(jobId)) {
+            return false;
+        }
+
+        // Report the cancellation right away if the job is running. The job marks its status otherwise.
+        JobStatus jobStatus = getJobStatus(jobId);
+        if (jobStatus instanceof FileSystemJobStatus) {
+            ((FileSystemJobStatus) jobStatus).setCanceled(true);
+        }
+        return true;
     }
 
     @Override
     public JobStatus getJobStatus(String jobId)
     {
-        return this.jobManager.getJobStatus(getJobStatusId(jobId));
+        List<String> jobStatusId = getJobStatusId(jobId);
+        JobStatus jobStatus = this.jobExecutor.getJobStatus(jobStatusId);
+        return jobStatus != null ? jobStatus : this.jobManager.getJobStatus(jobStatusId);
     }
 
     @Override
@@ -154,6 +321,21 @@ public class DefaultFileManager implements FileManager
         return request;
     }
 
+    /**
+     * @param paths the files and folders targeted by a job
+     * @param folderPriority the priority of the job if it targets folders
+     * @return the priority of a job that targets the given files and folders
+     */
+    private JobPriority getPriority(Collection<Path> paths, JobPriority folderPriority)
+    {
+        for (Path path : paths) {
+            if (path.getFileReference() == null) {
+                return folderPriority;
+            }
+        }
+        return paths.size() == 1 ? JobPriority.INTERACTIVE : JobPriority.NORMAL;
+    }
+
     /**
      * @param paths the files and folders to move or copy
      * @param destination where to move or copy the specified files and folders
@@ -178,14 +360,26 @@ public class DefaultFileManager implements FileManager
     }
 
     /**
-     * @param request the request to add to the queue
+     * Schedules a file system job.
+     * 
+     * @param jobType the job type
+     * @param request the job request
      * @return the id of the job that will perform the request; use this id to get the job status
+     * @throws JobException if scheduling the job fails
      */
     @SuppressWarnings("unchecked")
-    private String addToQueue(BatchPathRequest request)
+    private String schedule(String jobType, BatchPathRequest request) throws JobException
     {
         String jobId = request.getId().get(1);
-        ((Queue<String>) activeJobQueue).offer(jobId);
+        // Add the job to the queue of active jobs first because the job can finish before it is scheduled.
+        Queue<String> queue = (Queue<String>) this.activeJobQueue;
+        queue.offer(jobId);
+        try {
+            this.jobExecutor.execute(jobType, request);
+        } catch (JobException e) {
+            queue.remove(jobId);
+            throw e;
+        }
         return jobId;
     }
 }
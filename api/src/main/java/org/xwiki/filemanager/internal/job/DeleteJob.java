@@ -19,10 +19,13 @@
  */
 package org.xwiki.filemanager.internal.job;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
-import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.xwiki.component.annotation.Component;
@@ -31,8 +34,7 @@ import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
 import org.xwiki.filemanager.job.BatchPathRequest;
-import org.xwiki.job.internal.AbstractJob;
-import org.xwiki.job.internal.DefaultJobStatus;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.model.reference.DocumentReference;
 
 /**
@@ -42,8 +44,8 @@ import org.xwiki.model.reference.DocumentReference;
  * @since 2.0M1
  */
 @Component
-@Named(DeleteJob.JOB_TYPE)
-public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<BatchPathRequest>>
+@Named(DeleteJob.JOB_TYPE + "/actual")
+public class DeleteJob extends AbstractFileSystemJob<BatchPathRequest>
 {
     /**
      * The id of the job.
@@ -51,10 +53,10 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
     public static final String JOB_TYPE = "fileManager/delete";
 
     /**
-     * The pseudo file system.
+     * The error message logged when the current user is not allowed to delete a folder.
      */
-    @Inject
-    private FileSystem fileSystem;
+    private static final String ERROR_DELETE_FOLDER = "You are not allowed to delete the folder [{}].";
+
 
     @Override
     public String getType()
@@ -63,7 +65,13 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
     }
 
     @Override
-    protected void runInternal() throws Exception
+    protected JobPlan plan()
+    {
+        return planSubtrees(FileSystem.RIGHT_DELETE, new ArrayList<DocumentReference>());
+    }
+
+    @Override
+    protected void execute() throws Exception
     {
         Collection<Path> paths = getRequest().getPaths();
         if (paths == null) {
@@ -74,7 +82,12 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
 
         try {
             for (Path path : paths) {
+                if (isCanceled()) {
+                    break;
+                }
+                startPath(path);
                 delete(path);
+                completePath(path);
                 notifyStepPropress();
             }
         } finally {
@@ -92,7 +105,11 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
         if (path.getFileReference() != null) {
             deleteFile(path.getFileReference(), path.getFolderReference());
         } else if (path.getFolderReference() != null) {
-            deleteFolder(path.getFolderReference());
+            if (configuration.isBulkDeleteEnabled()) {
+                deleteSubtree(path.getFolderReference());
+            } else {
+                deleteFolder(path.getFolderReference());
+            }
         }
     }
 
@@ -108,20 +125,34 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
     {
         File file = fileSystem.getFile(fileReference);
         if (file != null) {
-            Collection<DocumentReference> parentReferences = file.getParentReferences();
-            boolean save = parentReferences.remove(parentReference);
-            if (parentReferences.isEmpty() || parentReference == null) {
-                if (fileSystem.canDelete(fileReference)) {
-                    fileSystem.delete(fileReference);
-                } else {
-                    this.logger.error("You are not allowed to delete the file [{}].", fileReference);
-                }
-            } else if (save) {
-                if (fileSystem.canEdit(fileReference)) {
-                    fileSystem.save(file);
-                } else {
-                    this.logger.error("You are not allowed to edit the file [{}].", fileReference);
-                }
+            deleteFile(file, parentReference);
+        }
+    }
+
+    /**
+     * Deletes the given file from one of its parent folders. If the given parent folder reference is {@code null} then
+     * the file is deleted from all of its parent folders.
+     * 
+     * @param file the file to delete
+     * @param parentReference the folder the file should be deleted from, {@code null} if the file should be delete from
+     *            all parents
+     */
+    private void deleteFile(File file, DocumentReference parentReference)
+    {
+        DocumentReference fileReference = file.getReference();
+        Collection<DocumentReference> parentReferences = file.getParentReferences();
+        boolean save = parentReferences.remove(parentReference);
+        if (parentReferences.isEmpty() || parentReference == null) {
+            if (fileSystem.canDelete(fileReference)) {
+                fileSystem.delete(fileReference);
+            } else {
+                this.logger.error("You are not allowed to delete the file [{}].", fileReference);
+            }
+        } else if (save) {
+            if (fileSystem.canEdit(fileReference)) {
+                fileSystem.save(file);
+            } else {
+                this.logger.error("You are not allowed to edit the file [{}].", fileReference);
             }
         }
     }
@@ -139,23 +170,27 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
                 return;
             }
 
-            List<DocumentReference> childFolderReferences = folder.getChildFolderReferences();
-            List<DocumentReference> childFileReferences = folder.getChildFileReferences();
-            notifyPushLevelProgress(childFolderReferences.size() + childFileReferences.size() + 1);
+            notifyPushLevelProgress(folder.countChildFolders() + folder.countChildFiles() + 1);
 
             try {
-                for (DocumentReference childFolderReference : childFolderReferences) {
-                    deleteFolder(childFolderReference);
+                Iterator<DocumentReference> childFolderReferences = folder.iterateChildFolderReferences();
+                while (childFolderReferences.hasNext() && !isCanceled()) {
+                    deleteFolder(childFolderReferences.next());
                     notifyStepPropress();
                 }
 
-                for (DocumentReference childFileReference : childFileReferences) {
-                    deleteFile(childFileReference, folderReference);
-                    notifyStepPropress();
+                Iterator<DocumentReference> childFileReferences = folder.iterateChildFileReferences();
+                while (childFileReferences.hasNext() && !isCanceled()) {
+                    // Step over the whole batch because the files that don't exist anymore are not returned.
+                    List<DocumentReference> batch = nextBatch(childFileReferences);
+                    for (File childFile : fileSystem.getFiles(batch)) {
+                        deleteFile(childFile, folderReference);
+                    }
+                    notifyStepsProgress(batch.size());
                 }
 
                 // Delete the folder if it's empty.
-                if (folder.getChildFolderReferences().isEmpty() && folder.getChildFileReferences().isEmpty()) {
+                if (!isCanceled() && folder.countChildFolders() == 0 && folder.countChildFiles() == 0) {
                     fileSystem.delete(folderReference);
                 }
                 notifyStepPropress();
@@ -163,7 +198,106 @@ public class DeleteJob extends AbstractJob<BatchPathRequest, DefaultJobStatus<Ba
                 notifyPopLevelProgress();
             }
         } else {
-            this.logger.error("You are not allowed to delete the folder [{}].", folderReference);
+            this.logger.error(ERROR_DELETE_FOLDER, folderReference);
         }
     }
+
+    /**
+     * Deletes the folder with the given reference together with its entire subtree. The subtree is collected upfront,
+     * using the drive hierarchy index and a few queries, and then the files and the folders are deleted in batches.
+     * 
+     * @param folderReference the reference to the folder to delete
+     */
+    private void deleteSubtree(DocumentReference folderReference)
+    {
+        if (!fileSystem.canDelete(folderReference)) {
+            this.logger.error(ERROR_DELETE_FOLDER, folderReference);
+            return;
+        } else if (fileSystem.getFolder(folderReference) == null) {
+            return;
+        }
+
+        // We don't enter the folders that the current user is not allowed to delete.
+        List<DocumentReference> deniedFolderReferences = new ArrayList<DocumentReference>();
+        List<List<DocumentReference>> levels =
+            collectSubtree(folderReference, FileSystem.RIGHT_DELETE, deniedFolderReferences);
+        for (DocumentReference deniedFolderReference : deniedFolderReferences) {
+            this.logger.error(ERROR_DELETE_FOLDER, deniedFolderReference);
+        }
+        List<DocumentReference> folderReferences = new ArrayList<DocumentReference>();
+        for (List<DocumentReference> level : levels) {
+            folderReferences.addAll(level);
+        }
+        List<DocumentReference> fileReferences = fileSystem.findChildFiles(folderReferences);
+
+        notifyPushLevelProgress(fileReferences.size() + folderReferences.size());
+
+        try {
+            Set<DocumentReference> folderSet = new HashSet<DocumentReference>(folderReferences);
+            Iterator<DocumentReference> fileIterator = fileReferences.iterator();
+            while (fileIterator.hasNext() && !isCanceled()) {
+                List<DocumentReference> batch = nextBatch(fileIterator);
+                deleteFiles(fileSystem.getFiles(batch), folderSet);
+                notifyStepsProgress(batch.size());
+            }
+
+            // Delete the folders bottom-up, level by level, so that a folder is checked after its child folders have
+            // been deleted.
+            for (int i = levels.size() - 1; i >= 0; i--) {
+                Iterator<DocumentReference> folderIterator = levels.get(i).iterator();
+                while (folderIterator.hasNext() && !isCanceled()) {
+                    List<DocumentReference> batch = nextBatch(folderIterator);
+                    deleteEmptyFolders(batch);
+                    notifyStepsProgress(batch.size());
+                }
+            }
+        } finally {
+            notifyPopLevelProgress();
+        }
+    }
+
+    /**
+     * Removes the given files from the folders that are deleted. The files that are left without parent folders are
+     * deleted.
+     * 
+     * @param files the files to delete
+     * @param folderReferences the folders that are deleted
+     */
+    private void deleteFiles(List<File> files, Set<DocumentReference> folderReferences)
+    {
+        List<DocumentReference> filesToDelete = new ArrayList<DocumentReference>();
+        List<File> filesToSave = new ArrayList<File>();
+        for (File file : files) {
+            DocumentReference fileReference = file.getReference();
+            Collection<DocumentReference> parentReferences = file.getParentReferences();
+            if (!parentReferences.removeAll(folderReferences)) {
+                continue;
+            } else if (parentReferences.isEmpty()) {
+                if (fileSystem.canDelete(fileReference)) {
+                    filesToDelete.add(fileReference);
+                } else {
+                    this.logger.error("You are not allowed to delete the file [{}].", fileReference);
+                }
+            } else if (fileSystem.canEdit(fileReference)) {
+                filesToSave.add(file);
+            } else {
+                this.logger.error("You are not allowed to edit the file [{}].", fileReference);
+            }
+        }
+        fileSystem.deleteAll(filesToDelete);
+        fileSystem.saveAll(filesToSave);
+    }
+
+    /**
+     * Deletes the given folders, if they are empty.
+     * 
+     * @param folderReferences the folders to delete
+     */
+    private void deleteEmptyFolders(List<DocumentReference> folderReferences)
+    {
+        List<DocumentReference> emptyFolderReferences = new ArrayList<DocumentReference>(folderReferences);
+        emptyFolderReferences.removeAll(fileSystem.hasChildFolders(folderReferences));
+        emptyFolderReferences.removeAll(fileSystem.hasChildFiles(folderReferences));
+        fileSystem.deleteAll(emptyFolderReferences);
+    }
 }
@@ -0,0 +1,520 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.filemanager.job.JobPriority;
+import org.xwiki.filemanager.job.MoveRequest;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.Request;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+
+/**
+ * Executes the file system jobs on a dedicated pool of threads (see
+ * {@link FileManagerConfiguration#getJobThreadCount()}), instead of the single thread of the
+ * {@link org.xwiki.job.JobManager}. Each drive has its own lane: the jobs that target the same drive are executed one
+ * after another, while the jobs that target different drives run in parallel. The next job of a lane is the one with
+ * the highest priority (see {@link JobPriority}) and, among the jobs with the same priority, the one that was scheduled
+ * first. A job that touches multiple drives (e.g. a move to a different drive) is added to the lane of each of them and
+ * it starts only when it is the next job of all these lanes and none of them has a running job. The lanes are served
+ * in a round-robin fashion so that a drive with many pending jobs doesn't block the other drives.
+ * <p>
+ * Among the lanes that can be served, the one whose next job has the highest priority is served first. A pending job
+ * is promoted to the next priority class each time it waits for 30 seconds, so that the bulk jobs are not delayed
+ * indefinitely. The bulk jobs that haven't been promoted never take all the job threads, in order to keep a thread
+ * available for the interactive jobs.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = FileSystemJobExecutor.class)
+@Singleton
+public class FileSystemJobExecutor implements Disposable
+{
+    /**
+     * The number of milliseconds after which a pending job is promoted to the next priority class.
+     */
+    private static final long PRIORITY_AGING_INTERVAL = 30000;
+
+    /**
+     * Used to create the jobs.
+     */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    /**
+     * Used to get the number of job threads.
+     */
+    @Inject
+    private FileManagerConfiguration configuration;
+
+    /**
+     * Used to initialize the execution context of the job threads.
+     */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /**
+     * Used to set and remove the execution context of the job threads.
+     */
+    @Inject
+    private Execution execution;
+
+    /**
+     * Used to log messages.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The jobs that are pending for execution, grouped by the drives they touch. The lanes are ordered by the time they
+     * were last served.
+     */
+    private final Map<SpaceReference, Queue<ScheduledJob>> lanes =
+        new LinkedHashMap<SpaceReference, Queue<ScheduledJob>>();
+
+    /**
+     * The drives that have a running job.
+     */
+    private final Set<SpaceReference> busyLanes = new HashSet<SpaceReference>();
+
+    /**
+     * The jobs that are running or are pending for execution, indexed by their id.
+     */
+    private final Map<List<String>, Job> activeJobs = new ConcurrentHashMap<List<String>, Job>();
+
+    /**
+     * The threads that execute the jobs, created when the first job is scheduled.
+     */
+    private ExecutorService threadPool;
+
+    /**
+     * The number of job threads.
+     */
+    private int threadCount;
+
+    /**
+     * The number of running jobs.
+     */
+    private int runningJobCount;
+
+    /**
+     * The number of running bulk jobs.
+     */
+    private int runningBulkJobCount;
+
+    /**
+     * The number of jobs scheduled so far, used to order the jobs that have the same rank.
+     */
+    private long scheduledJobCount;
+
+    /**
+     * Schedules a file system job.
+     * 
+     * @param jobType the job type
+     * @param request the job request
+     * @return the scheduled job
+     * @throws JobException if the job can't be created
+     */
+    public Job execute(String jobType, BatchPathRequest request) throws JobException
+    {
+        Job job = createJob(jobType);
+        job.initialize(request);
+        this.activeJobs.put(request.getId(), job);
+
+        synchronized (this) {
+            ScheduledJob scheduledJob =
+                new ScheduledJob(job, request.getPriority(), getDrives(request), this.scheduledJobCount++);
+            for (SpaceReference drive : scheduledJob.drives) {
+                Queue<ScheduledJob> lane = this.lanes.get(drive);
+                if (lane == null) {
+                    lane = new LinkedList<ScheduledJob>();
+                    this.lanes.put(drive, lane);
+                }
+                lane.add(scheduledJob);
+            }
+            dispatch();
+        }
+
+        return job;
+    }
+
+    /**
+     * Creates a new job without scheduling it.
+     * 
+     * @param jobType the job type
+     * @return the new job
+     * @throws JobException if the job can't be created
+     */
+    public Job createJob(String jobType) throws JobException
+    {
+        try {
+            return this.componentManagerProvider.get().getInstance(Job.class, jobType);
+        } catch (ComponentLookupException e) {
+            throw new JobException(String.format("Failed to lookup any Job for role hint [%s].", jobType), e);
+        }
+    }
+
+    /**
+     * @param jobId the job id
+     * @return the status of the specified job, {@code null} if the job is not running or pending for execution
+     */
+    public JobStatus getJobStatus(List<String> jobId)
+    {
+        Job job = this.activeJobs.get(jobId);
+        return job != null ? job.getStatus() : null;
+    }
+
+    /**
+     * @param jobId the job id
+     * @return the request of the specified job, {@code null} if the job is not running or pending for execution
+     */
+    public Request getJobRequest(List<String> jobId)
+    {
+        Job job = this.activeJobs.get(jobId);
+        return job != null ? job.getRequest() : null;
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if (this.threadPool != null) {
+            // The interrupted jobs keep their checkpoints so they are resumed when the server is restarted.
+            this.threadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts the pending jobs whose lanes don't have a running job, as long as there are free job threads.
+     */
+    private void dispatch()
+    {
+        if (this.threadPool == null) {
+            this.threadCount = this.configuration.getJobThreadCount();
+            this.threadPool = Executors.newFixedThreadPool(this.threadCount, new JobThreadFactory());
+        }
+
+        while (this.runningJobCount < this.threadCount && !this.threadPool.isShutdown()) {
+            long now = System.currentTimeMillis();
+            ScheduledJob job = getNextJob(now);
+            if (job == null) {
+                break;
+            }
+
+            // Move the lanes at the end so that the other lanes are served first next time.
+            for (SpaceReference drive : job.drives) {
+                Queue<ScheduledJob> lane = this.lanes.remove(drive);
+                lane.remove(job);
+                if (!lane.isEmpty()) {
+                    this.lanes.put(drive, lane);
+                }
+            }
+
+            this.busyLanes.addAll(job.drives);
+            this.runningJobCount++;
+            // A bulk job that has waited long enough is not counted as a bulk job anymore.
+            job.bulk = job.isBulk(now);
+            if (job.bulk) {
+                this.runningBulkJobCount++;
+            }
+            this.threadPool.execute(new JobRunner(job));
+        }
+    }
+
+    /**
+     * @param now the current time
+     * @return the next job to start, {@code null} if none of the pending jobs can be started
+     */
+    private ScheduledJob getNextJob(long now)
+    {
+        boolean canStartBulkJob = this.runningBulkJobCount < Math.max(1, this.threadCount - 1);
+        ScheduledJob nextJob = null;
+        for (Queue<ScheduledJob> lane : this.lanes.values()) {
+            ScheduledJob job = getFirstJob(lane, now, canStartBulkJob);
+            // The lanes are iterated in round-robin order so we keep the first job with the highest priority.
+            if (job != null && canStart(job, now, canStartBulkJob)
+                && (nextJob == null || job.getRank(now) < nextJob.getRank(now))) {
+                nextJob = job;
+            }
+        }
+        return nextJob;
+    }
+
+    /**
+     * @param lane a lane
+     * @param now the current time
+     * @param canStartBulkJob whether a bulk job can be started
+     * @return the pending job with the lowest rank from the given lane, the oldest one if there are more with the same
+     *         rank; {@code null} if the lane doesn't have any job that can be started
+     */
+    private ScheduledJob getFirstJob(Queue<ScheduledJob> lane, long now, boolean canStartBulkJob)
+    {
+        ScheduledJob firstJob = null;
+        for (ScheduledJob job : lane) {
+            if ((canStartBulkJob || !job.isBulk(now)) && (firstJob == null || job.isBefore(firstJob, now))) {
+                firstJob = job;
+            }
+        }
+        return firstJob;
+    }
+
+    /**
+     * @param job a pending job
+     * @param now the current time
+     * @param canStartBulkJob whether a bulk job can be started
+     * @return {@code true} if the given job is the next job in all its lanes and none of these lanes has a running job
+     */
+    private boolean canStart(ScheduledJob job, long now, boolean canStartBulkJob)
+    {
+        for (SpaceReference drive : job.drives) {
+            if (this.busyLanes.contains(drive) || getFirstJob(this.lanes.get(drive), now, canStartBulkJob) != job) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Frees the lanes of a finished job and starts the next pending jobs.
+     * 
+     * @param job the finished job
+     */
+    private synchronized void jobFinished(ScheduledJob job)
+    {
+        this.activeJobs.remove(job.job.getRequest().getId());
+        this.busyLanes.removeAll(job.drives);
+        this.runningJobCount--;
+        if (job.bulk) {
+            this.runningBulkJobCount--;
+        }
+        dispatch();
+    }
+
+    /**
+     * @param request a job request
+     * @return the drives touched by the given request, i.e. the drives of the request paths and of the destination
+     *         path; a single {@code null} drive if the request doesn't have any path
+     */
+    private Set<SpaceReference> getDrives(BatchPathRequest request)
+    {
+        Set<SpaceReference> drives = new LinkedHashSet<SpaceReference>();
+        Collection<Path> paths = request.getPaths();
+        if (paths != null) {
+            for (Path path : paths) {
+                addDrive(path, drives);
+            }
+        }
+        addDrive(request.<Path>getProperty(MoveRequest.PROPERTY_DESTINATION), drives);
+        if (drives.isEmpty()) {
+            drives.add(null);
+        }
+        return drives;
+    }
+
+    /**
+     * @param path a path, possibly {@code null}
+     * @param drives where to add the drive of the given path
+     */
+    private void addDrive(Path path, Set<SpaceReference> drives)
+    {
+        if (path != null) {
+            DocumentReference reference =
+                path.getFileReference() != null ? path.getFileReference() : path.getFolderReference();
+            if (reference != null) {
+                drives.add(reference.getLastSpaceReference());
+            }
+        }
+    }
+
+    /**
+     * A job that is pending for execution.
+     */
+    private static class ScheduledJob
+    {
+        /**
+         * The job.
+         */
+        private final Job job;
+
+        /**
+         * The priority class of the job.
+         */
+        private final JobPriority priority;
+
+        /**
+         * The drives touched by the job, i.e. the lanes of the job.
+         */
+        private final Set<SpaceReference> drives;
+
+        /**
+         * The time when the job was scheduled.
+         */
+        private final long scheduledTime = System.currentTimeMillis();
+
+        /**
+         * The order in which the job was scheduled.
+         */
+        private final long sequence;
+
+        /**
+         * Whether the job was still a bulk job when it started.
+         */
+        private boolean bulk;
+
+        /**
+         * Creates a new pending job.
+         * 
+         * @param job the job
+         * @param priority the priority class of the job
+         * @param drives the drives touched by the job
+         * @param sequence the order in which the job was scheduled
+         */
+        ScheduledJob(Job job, JobPriority priority, Set<SpaceReference> drives, long sequence)
+        {
+            this.job = job;
+            this.priority = priority;
+            this.drives = drives;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @param now the current time
+         * @return {@code true} if the job is a bulk job that hasn't waited enough to be promoted
+         */
+        boolean isBulk(long now)
+        {
+            return getRank(now) >= JobPriority.BULK.ordinal();
+        }
+
+        /**
+         * @param other another pending job
+         * @param now the current time
+         * @return {@code true} if this job should start before the other job
+         */
+        boolean isBefore(ScheduledJob other, long now)
+        {
+            long rank = getRank(now);
+            long otherRank = other.getRank(now);
+            return rank < otherRank || (rank == otherRank && this.sequence < other.sequence);
+        }
+
+        /**
+         * @param now the current time
+         * @return the rank of the job, taking into account the time it has waited; lower ranks are served first
+         */
+        long getRank(long now)
+        {
+            return this.priority.ordinal() - (now - this.scheduledTime) / PRIORITY_AGING_INTERVAL;
+        }
+    }
+
+    /**
+     * Creates the job threads.
+     */
+    private static class JobThreadFactory implements ThreadFactory
+    {
+        /**
+         * Used to number the job threads.
+         */
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "File manager job thread " + this.counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Runs a job in its own execution context.
+     */
+    private class JobRunner implements Runnable
+    {
+        /**
+         * The job to run.
+         */
+        private final ScheduledJob job;
+
+        /**
+         * Creates a new job runner.
+         * 
+         * @param job the job to run
+         */
+        JobRunner(ScheduledJob job)
+        {
+            this.job = job;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                ExecutionContext context = new ExecutionContext();
+                execution.setContext(context);
+                executionContextManager.initialize(context);
+
+                this.job.job.run();
+            } catch (ExecutionContextException e) {
+                logger.error("Failed to initialize the execution context of job [{}].",
+                    this.job.job.getRequest().getId(), e);
+            } finally {
+                execution.removeContext();
+                jobFinished(this.job);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.zip.ZipEightByteInteger;
+import org.apache.commons.compress.archivers.zip.ZipLong;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes a ZIP archive from entries that have been compressed ahead of time (see {@link ScatterZipEntry}), in the
+ * order they are given. The entry names are encoded in UTF-8 and the ZIP64 extensions are used only when needed.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+class GatherZipWriter implements Closeable
+{
+    /**
+     * The value used in the ZIP headers when the actual value is stored in the ZIP64 extra field or record.
+     */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * The maximum number of entries that can be recorded without the ZIP64 end of central directory record.
+     */
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+
+    /**
+     * The version needed to extract entries that don't use the ZIP64 extensions.
+     */
+    private static final int VERSION_DEFAULT = 20;
+
+    /**
+     * The version needed to extract entries that use the ZIP64 extensions.
+     */
+    private static final int VERSION_ZIP64 = 45;
+
+    /**
+     * The general purpose flag that marks UTF-8 encoded entry names.
+     */
+    private static final int UTF8_FLAG = 1 << 11;
+
+    /**
+     * The id of the ZIP64 extra field.
+     */
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /**
+     * The size of the ZIP64 extra field header (id and data size).
+     */
+    private static final int EXTRA_HEADER_SIZE = 4;
+
+    /**
+     * The size of the uncompressed and compressed sizes in the ZIP64 extra field.
+     */
+    private static final int ZIP64_SIZES_LENGTH = 16;
+
+    /**
+     * The size of the local file header offset in the ZIP64 extra field.
+     */
+    private static final int ZIP64_OFFSET_LENGTH = 8;
+
+    /**
+     * The MS-DOS directory attribute.
+     */
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+    /**
+     * The local file header signature.
+     */
+    private static final long LFH_SIG = 0x04034b50L;
+
+    /**
+     * The central file header signature.
+     */
+    private static final long CFH_SIG = 0x02014b50L;
+
+    /**
+     * The end of central directory record signature.
+     */
+    private static final long EOCD_SIG = 0x06054b50L;
+
+    /**
+     * The ZIP64 end of central directory record signature.
+     */
+    private static final long ZIP64_EOCD_SIG = 0x06064b50L;
+
+    /**
+     * The ZIP64 end of central directory locator signature.
+     */
+    private static final long ZIP64_EOCD_LOC_SIG = 0x07064b50L;
+
+    /**
+     * The size of the ZIP64 end of central directory record, without the signature and the size field.
+     */
+    private static final long ZIP64_EOCD_SIZE = 44;
+
+    /**
+     * The name encoding.
+     */
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * The archive output.
+     */
+    private final CountingOutputStream output;
+
+    /**
+     * The entries that have been written, needed for the central directory.
+     */
+    private final List<ScatterZipEntry> entries = new ArrayList<ScatterZipEntry>();
+
+    /**
+     * The offsets of the local file headers of the written entries.
+     */
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    /**
+     * The number of uncompressed bytes written.
+     */
+    private long bytesWritten;
+
+    /**
+     * Creates a new ZIP archive.
+     * 
+     * @param file the archive file
+     * @throws IOException if the archive file can't be created
+     */
+    GatherZipWriter(File file) throws IOException
+    {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a new ZIP archive that is written to the given stream. The archive doesn't need to seek back so the
+     * stream can be sent to the client while the archive is being written.
+     * 
+     * @param outputStream where to write the archive; the stream is closed when the archive is closed
+     */
+    GatherZipWriter(OutputStream outputStream)
+    {
+        this.output = new CountingOutputStream(new BufferedOutputStream(outputStream));
+    }
+
+    /**
+     * Writes an entry to the archive. The compressed content of the entry can be deleted afterwards.
+     * 
+     * @param entry the entry to write
+     * @throws IOException if writing the entry fails
+     */
+    void write(ScatterZipEntry entry) throws IOException
+    {
+        long offset = this.output.getByteCount();
+        byte[] name = entry.getName().getBytes(UTF8);
+        boolean zip64 = isZip64(entry);
+
+        writeInt(LFH_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.getMethod());
+        this.output.write(ZipUtil.toDosTime(entry.getTime()));
+        writeInt(entry.getCrc());
+        writeInt(zip64 ? ZIP64_MAGIC : entry.getCompressedSize());
+        writeInt(zip64 ? ZIP64_MAGIC : entry.getSize());
+        writeShort(name.length);
+        writeShort(zip64 ? EXTRA_HEADER_SIZE + ZIP64_SIZES_LENGTH : 0);
+        this.output.write(name);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(ZIP64_SIZES_LENGTH);
+            writeLong(entry.getSize());
+            writeLong(entry.getCompressedSize());
+        }
+        entry.writeDataTo(this.output);
+
+        this.entries.add(entry);
+        this.offsets.add(offset);
+        this.bytesWritten += entry.getSize();
+    }
+
+    /**
+     * Flushes the entries written so far to the underlying stream.
+     * 
+     * @throws IOException if flushing fails
+     */
+    void flush() throws IOException
+    {
+        this.output.flush();
+    }
+
+    /**
+     * @return the number of uncompressed bytes written
+     */
+    long getBytesWritten()
+    {
+        return this.bytesWritten;
+    }
+
+    /**
+     * Writes the central directory and closes the archive.
+     * 
+     * @throws IOException if writing the central directory fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            long centralDirectoryOffset = this.output.getByteCount();
+            for (int i = 0; i < this.entries.size(); i++) {
+                writeCentralFileHeader(this.entries.get(i), this.offsets.get(i));
+            }
+            long centralDirectorySize = this.output.getByteCount() - centralDirectoryOffset;
+            writeCentralDirectoryEnd(centralDirectoryOffset, centralDirectorySize);
+        } finally {
+            this.output.close();
+        }
+    }
+
+    /**
+     * Writes the central directory file header of an entry.
+     * 
+     * @param entry the entry
+     * @param offset the offset of the local file header of the entry
+     * @throws IOException if writing fails
+     */
+    private void writeCentralFileHeader(ScatterZipEntry entry, long offset) throws IOException
+    {
+        byte[] name = entry.getName().getBytes(UTF8);
+        boolean zip64Size = isZip64(entry);
+        boolean zip64Offset = offset >= ZIP64_MAGIC;
+        int extraSize = (zip64Size ? ZIP64_SIZES_LENGTH : 0) + (zip64Offset ? ZIP64_OFFSET_LENGTH : 0);
+        int version = extraSize > 0 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        writeInt(CFH_SIG);
+        // Version made by and version needed to extract.
+        writeShort(version);
+        writeShort(version);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.getMethod());
+        this.output.write(ZipUtil.toDosTime(entry.getTime()));
+        writeInt(entry.getCrc());
+        writeInt(zip64Size ? ZIP64_MAGIC : entry.getCompressedSize());
+        writeInt(zip64Size ? ZIP64_MAGIC : entry.getSize());
+        writeShort(name.length);
+        writeShort(extraSize > 0 ? EXTRA_HEADER_SIZE + extraSize : 0);
+        // Comment length, disk number start and internal attributes.
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(entry.isDirectory() ? DIRECTORY_ATTRIBUTE : 0);
+        writeInt(zip64Offset ? ZIP64_MAGIC : offset);
+        this.output.write(name);
+        if (extraSize > 0) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraSize);
+            if (zip64Size) {
+                writeLong(entry.getSize());
+                writeLong(entry.getCompressedSize());
+            }
+            if (zip64Offset) {
+                writeLong(offset);
+            }
+        }
+    }
+
+    /**
+     * Writes the end of central directory record, preceded by the ZIP64 end of central directory record and locator
+     * if needed.
+     * 
+     * @param offset the central directory offset
+     * @param size the central directory size
+     * @throws IOException if writing fails
+     */
+    private void writeCentralDirectoryEnd(long offset, long size) throws IOException
+    {
+        int count = this.entries.size();
+        if (count >= ZIP64_MAGIC_SHORT || offset >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+            long zip64Offset = this.output.getByteCount();
+            writeInt(ZIP64_EOCD_SIG);
+            writeLong(ZIP64_EOCD_SIZE);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            // The number of this disk and of the disk with the start of the central directory.
+            writeInt(0);
+            writeInt(0);
+            // The number of entries on this disk and in total.
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(offset);
+
+            writeInt(ZIP64_EOCD_LOC_SIG);
+            writeInt(0);
+            writeLong(zip64Offset);
+            // The total number of disks.
+            writeInt(1);
+        }
+
+        writeInt(EOCD_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_SHORT));
+        writeShort(Math.min(count, ZIP64_MAGIC_SHORT));
+        writeInt(Math.min(size, ZIP64_MAGIC));
+        writeInt(Math.min(offset, ZIP64_MAGIC));
+        // Comment length.
+        writeShort(0);
+    }
+
+    /**
+     * @param entry an entry
+     * @return {@code true} if the sizes of the given entry don't fit in the standard ZIP headers
+     */
+    private boolean isZip64(ScatterZipEntry entry)
+    {
+        return entry.getSize() >= ZIP64_MAGIC || entry.getCompressedSize() >= ZIP64_MAGIC;
+    }
+
+    /**
+     * @param value a 2 bytes value to write in little endian order
+     * @throws IOException if writing fails
+     */
+    private void writeShort(int value) throws IOException
+    {
+        this.output.write(ZipShort.getBytes(value));
+    }
+
+    /**
+     * @param value a 4 bytes value to write in little endian order
+     * @throws IOException if writing fails
+     */
+    private void writeInt(long value) throws IOException
+    {
+        this.output.write(ZipLong.getBytes(value));
+    }
+
+    /**
+     * @param value an 8 bytes value to write in little endian order
+     * @throws IOException if writing fails
+     */
+    private void writeLong(long value) throws IOException
+    {
+        this.output.write(ZipEightByteInteger.getBytes(value));
+    }
+}
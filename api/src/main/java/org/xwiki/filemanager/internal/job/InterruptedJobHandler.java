@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.job.JobException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Resumes the file system jobs that have been interrupted by a server restart, from their last checkpoint.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Named(InterruptedJobHandler.NAME)
+@Singleton
+public class InterruptedJobHandler implements EventListener
+{
+    /**
+     * The name of the event listener.
+     */
+    public static final String NAME = "InterruptedFileSystemJobHandler";
+
+    /**
+     * Used to read the job checkpoints.
+     */
+    @Inject
+    private JobCheckpointStore checkpointStore;
+
+    /**
+     * Used to schedule the resumed jobs.
+     */
+    @Inject
+    private FileSystemJobExecutor jobExecutor;
+
+    /**
+     * The queue of active (unfinished) jobs.
+     */
+    @Inject
+    @Named(ActiveJobQueue.NAME)
+    private EventListener activeJobQueue;
+
+    /**
+     * Used to log messages.
+     */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Collections.<Event>singletonList(new ApplicationReadyEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        for (JobCheckpoint checkpoint : this.checkpointStore.getAll()) {
+            resume(checkpoint);
+        }
+    }
+
+    /**
+     * Schedules a job that processes the request paths that were not completed before the given checkpoint was saved.
+     * 
+     * @param checkpoint the job checkpoint
+     */
+    @SuppressWarnings("unchecked")
+    private void resume(JobCheckpoint checkpoint)
+    {
+        List<Path> remainingPaths = checkpoint.getRemainingPaths();
+        if (remainingPaths.isEmpty()) {
+            this.checkpointStore.delete(checkpoint.getJobId());
+            return;
+        }
+
+        BatchPathRequest request = checkpoint.getRequest();
+        request.setPaths(remainingPaths);
+        // The job may have to skip the changes it made before it was interrupted.
+        request.setProperty(AbstractFileSystemJob.PROPERTY_INTERRUPTED_PATHS, checkpoint.getInterruptedPaths());
+        this.logger.info("Resuming job [{}] from [{}].", checkpoint.getJobId(), checkpoint.getCursor());
+        // Add the job to the queue of active jobs first because the job can finish before it is scheduled.
+        Queue<String> queue = (Queue<String>) this.activeJobQueue;
+        queue.offer(checkpoint.getJobId());
+        try {
+            this.jobExecutor.execute(checkpoint.getJobType(), request);
+        } catch (JobException e) {
+            queue.remove(checkpoint.getJobId());
+            this.logger.error("Failed to resume job [{}].", checkpoint.getJobId(), e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.BatchPathRequest;
+
+/**
+ * The progress of a file system job, saved each time the job starts or completes a request path, so that the job can
+ * be resumed after a server restart.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class JobCheckpoint implements Serializable
+{
+    /**
+     * Serialization identifier.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The job type.
+     */
+    private final String jobType;
+
+    /**
+     * The job request.
+     */
+    private final BatchPathRequest request;
+
+    /**
+     * The request paths whose processing has started.
+     */
+    private final Set<Path> startedPaths = new LinkedHashSet<Path>();
+
+    /**
+     * The request paths that have been processed.
+     */
+    private final Set<Path> completedPaths = new LinkedHashSet<Path>();
+
+    /**
+     * The request path that was processed last.
+     */
+    private Path cursor;
+
+    /**
+     * Creates a new checkpoint.
+     * 
+     * @param jobType the job type
+     * @param request the job request
+     */
+    public JobCheckpoint(String jobType, BatchPathRequest request)
+    {
+        this.jobType = jobType;
+        this.request = request;
+    }
+
+    /**
+     * @return the job id
+     */
+    public String getJobId()
+    {
+        return this.request.getId().get(1);
+    }
+
+    /**
+     * @return the job type
+     */
+    public String getJobType()
+    {
+        return this.jobType;
+    }
+
+    /**
+     * @return the job request
+     */
+    public BatchPathRequest getRequest()
+    {
+        return this.request;
+    }
+
+    /**
+     * @return the request paths whose processing has started
+     */
+    public Collection<Path> getStartedPaths()
+    {
+        return this.startedPaths;
+    }
+
+    /**
+     * @return the request paths that have been processed
+     */
+    public Collection<Path> getCompletedPaths()
+    {
+        return this.completedPaths;
+    }
+
+    /**
+     * @return the request paths that have not been processed yet, in the order of the request
+     */
+    public List<Path> getRemainingPaths()
+    {
+        List<Path> remainingPaths = new ArrayList<Path>();
+        if (this.request.getPaths() != null) {
+            for (Path path : this.request.getPaths()) {
+                if (!this.completedPaths.contains(path)) {
+                    remainingPaths.add(path);
+                }
+            }
+        }
+        return remainingPaths;
+    }
+
+    /**
+     * @return the request paths whose processing has started but has not been completed, in the order of the request;
+     *         these paths may have been partially processed, possibly before the job was resumed a first time
+     */
+    public List<Path> getInterruptedPaths()
+    {
+        Collection<Path> previouslyInterruptedPaths =
+            this.request.getProperty(AbstractFileSystemJob.PROPERTY_INTERRUPTED_PATHS);
+        List<Path> interruptedPaths = new ArrayList<Path>();
+        for (Path path : getRemainingPaths()) {
+            if (this.startedPaths.contains(path)
+                || (previouslyInterruptedPaths != null && previouslyInterruptedPaths.contains(path))) {
+                interruptedPaths.add(path);
+            }
+        }
+        return interruptedPaths;
+    }
+
+    /**
+     * @return the request path that was processed last, {@code null} if the job hasn't processed any path yet
+     */
+    public Path getCursor()
+    {
+        return this.cursor;
+    }
+
+    /**
+     * Sets the request path that is being processed.
+     * 
+     * @param cursor the request path that is being processed
+     */
+    public void setCursor(Path cursor)
+    {
+        this.cursor = cursor;
+    }
+}
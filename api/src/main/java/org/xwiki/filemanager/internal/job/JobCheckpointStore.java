@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+
+/**
+ * Stores the {@link JobCheckpoint}s of the file system jobs in the permanent directory, so that they survive a server
+ * restart.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = JobCheckpointStore.class)
+@Singleton
+public class JobCheckpointStore
+{
+    /**
+     * The directory, relative to the permanent directory, where the checkpoints are stored.
+     */
+    private static final String CHECKPOINT_DIRECTORY = "filemanager/checkpoints";
+
+    /**
+     * The extension of the checkpoint files.
+     */
+    private static final String EXTENSION = ".ser";
+
+    /**
+     * Used to access the permanent directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Used to log messages.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Saves the given checkpoint, replacing the previous checkpoint of the same job. The checkpoint is written to a
+     * temporary file first so that a crash while saving doesn't corrupt the previous checkpoint.
+     * 
+     * @param checkpoint the checkpoint to save
+     */
+    public synchronized void save(JobCheckpoint checkpoint)
+    {
+        File directory = getDirectory();
+        if (!((directory.exists() || directory.mkdirs()) && directory.isDirectory())) {
+            this.logger.warn("Failed to create the checkpoint directory [{}].", directory);
+            return;
+        }
+
+        File file = getFile(checkpoint.getJobId());
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        ObjectOutputStream output = null;
+        try {
+            output = new ObjectOutputStream(new FileOutputStream(tempFile));
+            output.writeObject(checkpoint);
+            output.close();
+            output = null;
+            if (!(tempFile.renameTo(file) || (file.delete() && tempFile.renameTo(file)))) {
+                this.logger.warn("Failed to replace the checkpoint of job [{}].", checkpoint.getJobId());
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the checkpoint of job [{}].", checkpoint.getJobId(), e);
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint of the specified job, if any.
+     * 
+     * @param jobId the job id
+     */
+    public synchronized void delete(String jobId)
+    {
+        File file = getFile(jobId);
+        if (file.exists() && !file.delete()) {
+            this.logger.warn("Failed to delete the checkpoint of job [{}].", jobId);
+        }
+    }
+
+    /**
+     * @return all the stored checkpoints; the checkpoints that can't be read are deleted
+     */
+    public synchronized List<JobCheckpoint> getAll()
+    {
+        List<JobCheckpoint> checkpoints = new ArrayList<JobCheckpoint>();
+        File[] files = getDirectory().listFiles();
+        if (files == null) {
+            return checkpoints;
+        }
+
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) {
+                JobCheckpoint checkpoint = read(file);
+                if (checkpoint != null) {
+                    checkpoints.add(checkpoint);
+                } else if (!file.delete()) {
+                    this.logger.warn("Failed to delete the invalid checkpoint [{}].", file);
+                }
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * @param file a checkpoint file
+     * @return the checkpoint read from the given file, {@code null} if the file can't be read
+     */
+    private JobCheckpoint read(File file)
+    {
+        ObjectInputStream input = null;
+        try {
+            input = new ObjectInputStream(new FileInputStream(file));
+            return (JobCheckpoint) input.readObject();
+        } catch (Exception e) {
+            this.logger.warn("Failed to read the checkpoint [{}].", file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return the directory where the checkpoints are stored
+     */
+    private File getDirectory()
+    {
+        return new File(this.environment.getPermanentDirectory(), CHECKPOINT_DIRECTORY);
+    }
+
+    /**
+     * @param jobId the job id
+     * @return the file where the checkpoint of the specified job is stored
+     */
+    private File getFile(String jobId)
+    {
+        return new File(getDirectory(), jobId + EXTENSION);
+    }
+}
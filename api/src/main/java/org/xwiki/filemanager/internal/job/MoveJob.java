@@ -19,8 +19,14 @@
  */
 package org.xwiki.filemanager.internal.job;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -28,15 +34,13 @@ import javax.inject.Named;
 import org.apache.commons.lang3.ObjectUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.filemanager.File;
-import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
 import org.xwiki.filemanager.internal.reference.DocumentNameSequence;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.filemanager.job.MoveRequest;
 import org.xwiki.filemanager.job.OverwriteQuestion;
 import org.xwiki.filemanager.reference.UniqueDocumentReferenceGenerator;
-import org.xwiki.job.internal.AbstractJob;
-import org.xwiki.job.internal.DefaultJobStatus;
 import org.xwiki.model.reference.DocumentReference;
 
 /**
@@ -47,8 +51,8 @@ import org.xwiki.model.reference.DocumentReference;
  * @since 2.0M1
  */
 @Component
-@Named(MoveJob.JOB_TYPE)
-public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveRequest>>
+@Named(MoveJob.JOB_TYPE + "/actual")
+public class MoveJob extends AbstractFileSystemJob<MoveRequest>
 {
     /**
      * The id of the job.
@@ -61,10 +65,9 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
     private static final String ERROR_DESTINATION_NOT_FOUND = "The destination folder [{}] doesn't exist.";
 
     /**
-     * The pseudo file system.
+     * The number of locks used to serialize the changes made to the destination folders.
      */
-    @Inject
-    protected FileSystem fileSystem;
+    private static final int DESTINATION_LOCK_COUNT = 64;
 
     /**
      * Used to generate unique document references.
@@ -79,6 +82,25 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     private Boolean overwriteAll;
 
+    /**
+     * Used to ask the overwrite questions one at a time when the files are moved or copied in parallel.
+     */
+    private final Object questionLock = new Object();
+
+    /**
+     * The locks used to serialize the name conflict checks, and the subsequent changes, per destination folder and
+     * name when the files and folders are moved or copied in parallel. The locks are striped so that their number
+     * doesn't grow with the number of moved or copied files: different destinations may share a lock, which only
+     * serializes their changes.
+     */
+    private final Object[] destinationLocks = createLocks(DESTINATION_LOCK_COUNT);
+
+    /**
+     * The folder paths whose move requires a merge with an existing destination folder, collected while the paths are
+     * moved in parallel; {@code null} when the folders are merged right away.
+     */
+    private List<Path> deferredMerges;
+
     @Override
     public String getType()
     {
@@ -86,7 +108,91 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
     }
 
     @Override
-    protected void runInternal() throws Exception
+    protected JobPlan plan()
+    {
+        JobPlan plan = new JobPlan();
+        Collection<Path> paths = getRequest().getPaths();
+        Path destination = getRequest().getDestination();
+        if (paths == null || destination == null) {
+            return plan;
+        } else if (destination.getFileReference() == null) {
+            // Only the moved files and folders are modified, unless they are merged with the conflicting ones.
+            for (Path path : paths) {
+                if (path.getFileReference() != null) {
+                    plan.setFileCount(plan.getFileCount() + 1);
+                } else if (path.getFolderReference() != null) {
+                    plan.setFolderCount(plan.getFolderCount() + 1);
+                }
+            }
+            addConflicts(plan, paths, destination);
+        } else if (paths.size() == 1) {
+            // The children of a renamed folder are updated to reference the new folder.
+            Path path = paths.iterator().next();
+            if (path.getFileReference() != null) {
+                plan.setFileCount(1);
+            } else if (path.getFolderReference() != null) {
+                Folder folder = fileSystem.getFolder(path.getFolderReference());
+                if (folder != null) {
+                    plan.setFolderCount(folder.countChildFolders() + 1);
+                    plan.setFileCount(folder.countChildFiles());
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Looks for the files and folders from the destination folder that have the same name as the given files and
+     * folders.
+     * 
+     * @param plan where to add the conflicts
+     * @param paths the files and folders that are moved or copied
+     * @param destination the destination path; if it specifies a file then its name is used instead of the names of
+     *            the given files and folders
+     */
+    protected void addConflicts(JobPlan plan, Collection<Path> paths, Path destination)
+    {
+        DocumentReference destinationReference = destination.getFolderReference();
+        Folder destinationFolder = destinationReference != null ? fileSystem.getFolder(destinationReference) : null;
+        if (destinationFolder == null) {
+            return;
+        }
+
+        for (Path path : paths) {
+            if (path.getFileReference() != null) {
+                File file = fileSystem.getFile(path.getFileReference());
+                if (file != null) {
+                    DocumentReference conflict =
+                        destinationFolder.findChildFileByName(getTargetName(file.getName(), destination));
+                    if (conflict != null && !conflict.equals(file.getReference())) {
+                        plan.getConflicts().add(new Path(destinationReference, conflict));
+                    }
+                }
+            } else if (path.getFolderReference() != null) {
+                Folder folder = fileSystem.getFolder(path.getFolderReference());
+                if (folder != null) {
+                    DocumentReference conflict =
+                        destinationFolder.findChildFolderByName(getTargetName(folder.getName(), destination));
+                    if (conflict != null && !conflict.equals(folder.getReference())) {
+                        plan.getConflicts().add(new Path(conflict));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name the name of a file or folder that is moved or copied
+     * @param destination the destination path
+     * @return the name of the file or folder after it is moved or copied
+     */
+    private String getTargetName(String name, Path destination)
+    {
+        return destination.getFileReference() != null ? destination.getFileReference().getName() : name;
+    }
+
+    @Override
+    protected void execute() throws Exception
     {
         Collection<Path> paths = getRequest().getPaths();
         Path destination = getRequest().getDestination();
@@ -101,23 +207,127 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
     }
 
     /**
-     * Moves a collection of files and folders to the destination folder.
+     * Moves a collection of files and folders to the destination folder. The paths that belong to independent subtrees
+     * can be moved in parallel (see {@link #runInParallel(List)}). The folders that have to be merged with an existing
+     * destination folder are merged afterwards, one after another: a merge moves the descendant files, which can be
+     * reached from other groups of paths (a file can have multiple parent folders), and two merges can target the same
+     * destination folder.
      * 
      * @param paths the paths to the files and folders to move
      * @param destination the destination folder where to move the files and folders
      */
-    private void move(Collection<Path> paths, DocumentReference destination)
+    private void move(Collection<Path> paths, final DocumentReference destination)
     {
-        notifyPushLevelProgress(paths.size());
+        List<List<Path>> groups = partition(paths);
+        final List<Path> merges = Collections.synchronizedList(new ArrayList<Path>());
+        if (groups.size() > 1 && this.configuration.getWorkerThreadCount() > 1) {
+            this.deferredMerges = merges;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final List<Path> group : groups) {
+            tasks.add(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (Path path : group) {
+                        // Each path is moved entirely, to keep the moved folders consistent.
+                        if (isCanceled()) {
+                            break;
+                        }
+                        startPath(path);
+                        move(path, destination);
+                        if (!merges.contains(path)) {
+                            completePath(path);
+                        }
+                    }
+                }
+            });
+        }
+
+        notifyPushLevelProgress(tasks.size() + 1);
 
         try {
-            for (Path path : paths) {
+            runInParallel(tasks);
+            this.deferredMerges = null;
+            mergeDeferredFolders(merges, destination);
+        } finally {
+            this.deferredMerges = null;
+            notifyPopLevelProgress();
+        }
+    }
+
+    /**
+     * Moves again, on the current thread, the folders that couldn't be merged while the paths were moved in parallel.
+     * 
+     * @param merges the folder paths whose merge has been deferred
+     * @param destination the destination folder
+     */
+    private void mergeDeferredFolders(List<Path> merges, DocumentReference destination)
+    {
+        notifyPushLevelProgress(merges.size());
+
+        try {
+            for (Path path : merges) {
+                if (isCanceled()) {
+                    break;
+                }
                 move(path, destination);
+                completePath(path);
                 notifyStepPropress();
             }
         } finally {
             notifyPopLevelProgress();
         }
+        notifyStepPropress();
+    }
+
+    /**
+     * Groups the given paths so that paths from different groups don't overlap: a path is put in the same group as the
+     * paths whose folder is an ancestor or a descendant of its folder, and as the paths that target the same file (a
+     * file can have multiple parent folders). The paths are kept in their original order inside each group.
+     * 
+     * @param paths the paths to partition
+     * @return the groups of paths that can be moved independently
+     */
+    private List<List<Path>> partition(Collection<Path> paths)
+    {
+        List<Path> pathList = new ArrayList<Path>(paths);
+        int[] groupIds = new int[pathList.size()];
+        for (int i = 0; i < pathList.size(); i++) {
+            groupIds[i] = i;
+            DocumentReference folderReference = pathList.get(i).getFolderReference();
+            DocumentReference fileReference = pathList.get(i).getFileReference();
+            for (int j = 0; j < i; j++) {
+                DocumentReference otherFolderReference = pathList.get(j).getFolderReference();
+                // A file path without a folder targets the file in all its parent folders so it can overlap with any
+                // other path. The paths that target the same file, from different folders, modify the same document.
+                if (folderReference == null || otherFolderReference == null
+                    || (fileReference != null && fileReference.equals(pathList.get(j).getFileReference()))
+                    || isDescendantOrSelf(folderReference, otherFolderReference)
+                    || isDescendantOrSelf(otherFolderReference, folderReference)) {
+                    // Merge the group of the current path into the group of the other path.
+                    int oldGroupId = groupIds[i];
+                    int newGroupId = groupIds[j];
+                    for (int k = 0; k <= i; k++) {
+                        if (groupIds[k] == oldGroupId) {
+                            groupIds[k] = newGroupId;
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<Integer, List<Path>> groups = new LinkedHashMap<Integer, List<Path>>();
+        for (int i = 0; i < pathList.size(); i++) {
+            List<Path> group = groups.get(groupIds[i]);
+            if (group == null) {
+                group = new ArrayList<Path>();
+                groups.put(groupIds[i], group);
+            }
+            group.add(pathList.get(i));
+        }
+        return new ArrayList<List<Path>>(groups.values());
     }
 
     /**
@@ -170,16 +380,7 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     protected boolean isDescendantOrSelf(DocumentReference aliceReference, DocumentReference bobReference)
     {
-        DocumentReference parentReference = aliceReference;
-        while (parentReference != null && !parentReference.equals(bobReference)) {
-            Folder parent = fileSystem.getFolder(parentReference);
-            if (parent == null) {
-                return false;
-            } else {
-                parentReference = parent.getParentReference();
-            }
-        }
-        return parentReference != null;
+        return this.driveHierarchyIndex.isDescendantOrSelf(aliceReference, bobReference);
     }
 
     /**
@@ -190,16 +391,53 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     private void moveFolder(Folder folder, Folder newParent)
     {
-        // Check if the new parent has a child folder with the same name.
-        Folder child = getChildFolderByName(newParent, folder.getName());
-        if (child != null) {
+        Folder child;
+        deferThrottling();
+        try {
+            synchronized (getDestinationLock(newParent.getReference(), folder.getName())) {
+                // Check if the new parent has a child folder with the same name.
+                child = getChildFolderByName(newParent, folder.getName());
+                if (child == null) {
+                    folder.setParentReference(newParent.getReference());
+                    fileSystem.save(folder);
+                }
+            }
+        } finally {
+            resumeThrottling();
+        }
+        if (child != null && this.deferredMerges != null) {
+            // The folders are merged after the parallel moves, see move(Collection, DocumentReference).
+            this.deferredMerges.add(new Path(folder.getReference()));
+        } else if (child != null) {
             mergeFolders(folder, child.getReference());
-        } else {
-            folder.setParentReference(newParent.getReference());
-            fileSystem.save(folder);
         }
     }
 
+    /**
+     * @param count the number of locks to create
+     * @return the created locks
+     */
+    private static Object[] createLocks(int count)
+    {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * @param folderReference a destination folder
+     * @param name a file or folder name
+     * @return the lock used to serialize the changes made to the child files and folders with the given name of the
+     *         given destination folder
+     */
+    protected Object getDestinationLock(DocumentReference folderReference, String name)
+    {
+        int hash = Arrays.<Object>asList(folderReference, name).hashCode();
+        return this.destinationLocks[(hash & Integer.MAX_VALUE) % this.destinationLocks.length];
+    }
+
     /**
      * Looks for a folder with the given name under the specified parent.
      * 
@@ -210,13 +448,8 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     protected Folder getChildFolderByName(Folder parent, String name)
     {
-        for (DocumentReference childReference : parent.getChildFolderReferences()) {
-            Folder child = fileSystem.getFolder(childReference);
-            if (child.getName().equals(name)) {
-                return child;
-            }
-        }
-        return null;
+        DocumentReference childReference = parent.findChildFolderByName(name);
+        return childReference != null ? fileSystem.getFolder(childReference) : null;
     }
 
     /**
@@ -292,16 +525,23 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     private void moveFile(File file, DocumentReference oldParentReference, Folder newParent)
     {
-        // Check if a file with the same name already exits under the new parent folder.
-        if (!prepareOverwrite(file.getName(), newParent, file.getReference())) {
-            return;
-        }
+        deferThrottling();
+        try {
+            synchronized (getDestinationLock(newParent.getReference(), file.getName())) {
+                // Check if a file with the same name already exits under the new parent folder.
+                if (!prepareOverwrite(file.getName(), newParent, file.getReference())) {
+                    return;
+                }
 
-        Collection<DocumentReference> parentReferences = file.getParentReferences();
-        boolean save = parentReferences.remove(oldParentReference);
-        save |= parentReferences.add(newParent.getReference());
-        if (save) {
-            fileSystem.save(file);
+                Collection<DocumentReference> parentReferences = file.getParentReferences();
+                boolean save = parentReferences.remove(oldParentReference);
+                save |= parentReferences.add(newParent.getReference());
+                if (save) {
+                    fileSystem.save(file);
+                }
+            }
+        } finally {
+            resumeThrottling();
         }
     }
 
@@ -335,13 +575,8 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
      */
     protected File getChildFileByName(Folder parent, String name)
     {
-        for (DocumentReference childReference : parent.getChildFileReferences()) {
-            File child = fileSystem.getFile(childReference);
-            if (child.getName().equals(name)) {
-                return child;
-            }
-        }
-        return null;
+        DocumentReference childReference = parent.findChildFileByName(name);
+        return childReference != null ? fileSystem.getFile(childReference) : null;
     }
 
     /**
@@ -354,19 +589,22 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
     protected boolean shouldOverwrite(DocumentReference source, DocumentReference destination)
     {
         if (getRequest().isInteractive() && getStatus() != null) {
-            if (overwriteAll == null) {
-                OverwriteQuestion question = new OverwriteQuestion(source, destination);
-                try {
-                    getStatus().ask(question);
-                    if (!question.isAskAgain()) {
-                        overwriteAll = question.isOverwrite();
+            // The job status can hold only one question at a time.
+            synchronized (this.questionLock) {
+                if (overwriteAll == null) {
+                    OverwriteQuestion question = new OverwriteQuestion(source, destination);
+                    try {
+                        getStatus().ask(question);
+                        if (!question.isAskAgain()) {
+                            overwriteAll = question.isOverwrite();
+                        }
+                        return question.isOverwrite();
+                    } catch (InterruptedException e) {
+                        this.logger.warn("Overwrite question has been interrupted.");
                     }
-                    return question.isOverwrite();
-                } catch (InterruptedException e) {
-                    this.logger.warn("Overwrite question has been interrupted.");
+                } else {
+                    return overwriteAll;
                 }
-            } else {
-                return overwriteAll;
             }
         }
 
@@ -489,19 +727,25 @@ public class MoveJob extends AbstractJob<MoveRequest, DefaultJobStatus<MoveReque
             newFolder.setName(newReference.getName());
             fileSystem.save(newFolder);
 
-            // Update the child folders.
-            for (DocumentReference childFolderReference : folder.getChildFolderReferences()) {
-                Folder childFolder = fileSystem.getFolder(childFolderReference);
-                childFolder.setParentReference(actualNewReference);
-                fileSystem.save(childFolder);
+            // Update the child folders, saving them in batches.
+            Iterator<DocumentReference> childFolderReferences = folder.iterateChildFolderReferences();
+            while (childFolderReferences.hasNext()) {
+                List<Folder> childFolders = fileSystem.getFolders(nextBatch(childFolderReferences));
+                for (Folder childFolder : childFolders) {
+                    childFolder.setParentReference(actualNewReference);
+                }
+                fileSystem.saveAll(childFolders);
             }
 
-            // Update the child files.
-            for (DocumentReference childFileReference : folder.getChildFileReferences()) {
-                File childFile = fileSystem.getFile(childFileReference);
-                childFile.getParentReferences().remove(folder.getReference());
-                childFile.getParentReferences().add(actualNewReference);
-                fileSystem.save(childFile);
+            // Update the child files, saving them in batches.
+            Iterator<DocumentReference> childFileReferences = folder.iterateChildFileReferences();
+            while (childFileReferences.hasNext()) {
+                List<File> childFiles = fileSystem.getFiles(nextBatch(childFileReferences));
+                for (File childFile : childFiles) {
+                    childFile.getParentReferences().remove(folder.getReference());
+                    childFile.getParentReferences().add(actualNewReference);
+                }
+                fileSystem.saveAll(childFiles);
             }
         } else {
             this.logger.error("You are not allowed to create the folder [{}].", actualNewReference);
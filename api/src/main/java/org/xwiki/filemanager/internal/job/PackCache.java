@@ -0,0 +1,311 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Caches the ZIP archives produced by the pack jobs so that the same files and folders are not packed again, even by a
+ * different user. An archive is identified by the packed files and folders, with their versions, and by the pack
+ * options, so a modified file or folder leads to a different key and the stale archives are simply not used anymore.
+ * The least recently used archives are removed when the cache exceeds its disk budget (see
+ * {@link FileManagerConfiguration#getPackCacheSize()}).
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component(roles = PackCache.class)
+@Singleton
+public class PackCache implements Initializable
+{
+    /**
+     * The directory, relative to the temporary directory, where the archives are cached. It must not be under the
+     * 'temp' directory which is accessible through the 'temp' action.
+     */
+    private static final String CACHE_DIRECTORY = "filemanager/pack-cache";
+
+    /**
+     * The extension of the cached archives.
+     */
+    private static final String EXTENSION = ".zip";
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final long MEGABYTE = 1024 * 1024L;
+
+    /**
+     * The initial capacity of the cache index.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The load factor of the cache index.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The algorithm used to compute the cache keys.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * The encoding used to compute the cache keys.
+     */
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * The radix used to encode the cache keys.
+     */
+    private static final int HEX_RADIX = 16;
+
+    /**
+     * The mask used to get the 4 low bits of a byte.
+     */
+    private static final int LOW_BITS = 0x0F;
+
+    /**
+     * The number of bits in a hexadecimal digit.
+     */
+    private static final int HEX_DIGIT_BITS = 4;
+
+    /**
+     * Used to access the temporary directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Used to get the disk budget of the cache.
+     */
+    @Inject
+    private FileManagerConfiguration configuration;
+
+    /**
+     * Used to log messages.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The size of the cached archives, indexed by key, from the least recently used to the most recently used.
+     */
+    private final Map<String, Long> archives = new LinkedHashMap<String, Long>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+    /**
+     * The total size, in bytes, of the cached archives.
+     */
+    private long size;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        // The cache index is kept in memory so the archives cached before a restart can't be used anymore.
+        FileUtils.deleteQuietly(getDirectory());
+    }
+
+    /**
+     * Computes the key that identifies the content of the ZIP archive produced by a pack job.
+     * 
+     * @param request the pack request
+     * @param versions the version of each file and folder packed by the given request; only the files and folders
+     *            that the current user is allowed to view are packed
+     * @return the cache key, {@code null} if it can't be computed
+     */
+    public String getKey(PackRequest request, Map<DocumentReference, String> versions)
+    {
+        // The order doesn't matter.
+        List<String> documents = new ArrayList<String>();
+        for (Map.Entry<DocumentReference, String> entry : versions.entrySet()) {
+            documents.add(entry.getKey() + "@" + entry.getValue());
+        }
+        Collections.sort(documents);
+        // The request paths determine the path of the entries in the ZIP archive.
+        List<String> paths = new ArrayList<String>();
+        if (request.getPaths() != null) {
+            for (Path path : request.getPaths()) {
+                paths.add(path.getFolderReference() + "/" + path.getFileReference());
+            }
+        }
+        Collections.sort(paths);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            for (String document : documents) {
+                digest.update((document + '\n').getBytes(UTF8));
+            }
+            for (String path : paths) {
+                digest.update(("path:" + path + '\n').getBytes(UTF8));
+            }
+            digest.update(("compressionLevel:" + request.getCompressionLevel()).getBytes(UTF8));
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            this.logger.error("Failed to compute the pack cache key.", e);
+        } catch (UnsupportedEncodingException e) {
+            this.logger.error("Failed to compute the pack cache key.", e);
+        }
+        return null;
+    }
+
+    /**
+     * @param key the cache key
+     * @return the cached archive with the given key, {@code null} if there's none
+     */
+    public synchronized File get(String key)
+    {
+        Long length = this.archives.get(key);
+        if (length == null) {
+            return null;
+        }
+        File archive = getFile(key);
+        if (!archive.isFile()) {
+            this.archives.remove(key);
+            this.size -= length;
+            return null;
+        }
+        return archive;
+    }
+
+    /**
+     * Adds a copy of the given archive to the cache, removing the least recently used archives if the cache exceeds
+     * its disk budget. The archive is not cached if it's larger than the disk budget.
+     * 
+     * @param key the cache key
+     * @param archive the archive to cache
+     */
+    public void put(String key, File archive)
+    {
+        long limit = this.configuration.getPackCacheSize() * MEGABYTE;
+        long length = archive.length();
+        if (length == 0 || length > limit || get(key) != null) {
+            return;
+        }
+
+        File directory = getDirectory();
+        if (!((directory.exists() || directory.mkdirs()) && directory.isDirectory())) {
+            this.logger.warn("Failed to create the pack cache directory [{}].", directory);
+            return;
+        }
+
+        // Copy the archive outside the lock because it takes time.
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(key, ".tmp", directory);
+            FileUtils.copyFile(archive, tempFile);
+        } catch (IOException e) {
+            this.logger.warn("Failed to cache the archive [{}].", archive, e);
+            FileUtils.deleteQuietly(tempFile);
+            return;
+        }
+
+        synchronized (this) {
+            if (this.archives.containsKey(key) || !tempFile.renameTo(getFile(key))) {
+                // The same archive has been cached in the mean time.
+                FileUtils.deleteQuietly(tempFile);
+                return;
+            }
+            this.archives.put(key, length);
+            this.size += length;
+            evict(limit);
+        }
+    }
+
+    /**
+     * @return the total size, in bytes, of the cached archives
+     */
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * Removes the least recently used archives until the cache fits the given disk budget.
+     * 
+     * @param limit the disk budget, in bytes
+     */
+    private void evict(long limit)
+    {
+        Iterator<Map.Entry<String, Long>> iterator = this.archives.entrySet().iterator();
+        while (this.size > limit && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            this.size -= entry.getValue();
+            iterator.remove();
+            File archive = getFile(entry.getKey());
+            if (archive.exists() && !archive.delete()) {
+                this.logger.warn("Failed to delete the cached archive [{}].", archive);
+            }
+        }
+    }
+
+    /**
+     * @return the directory where the archives are cached
+     */
+    private File getDirectory()
+    {
+        return new File(this.environment.getTemporaryDirectory(), CACHE_DIRECTORY);
+    }
+
+    /**
+     * @param key a cache key
+     * @return the file where the archive with the given key is cached
+     */
+    private File getFile(String key)
+    {
+        return new File(getDirectory(), key + EXTENSION);
+    }
+
+    /**
+     * @param bytes the bytes to encode
+     * @return the hexadecimal representation of the given bytes
+     */
+    private String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> HEX_DIGIT_BITS) & LOW_BITS, HEX_RADIX));
+            hex.append(Character.forDigit(b & LOW_BITS, HEX_RADIX));
+        }
+        return hex.toString();
+    }
+}
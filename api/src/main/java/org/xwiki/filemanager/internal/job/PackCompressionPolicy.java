@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Decides whether a packed file is worth compressing, based on its media type and on its file name extension. Most
+ * image, audio and video formats, as well as archives and office documents (which are ZIP archives themselves), are
+ * already compressed so deflating them again costs CPU time without making the ZIP archive smaller.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+final class PackCompressionPolicy
+{
+    /**
+     * The media types that are compressible even though their top level type usually isn't.
+     */
+    private static final Set<String> COMPRESSIBLE_MEDIA_TYPES = new HashSet<String>(Arrays.asList("image/svg+xml",
+        "image/bmp", "image/x-ms-bmp", "image/x-icon", "image/tiff", "audio/wav", "audio/x-wav", "audio/midi"));
+
+    /**
+     * The top level media types that are usually compressed.
+     */
+    private static final Set<String> INCOMPRESSIBLE_TOP_LEVEL_TYPES = new HashSet<String>(Arrays.asList("image",
+        "audio", "video"));
+
+    /**
+     * The media types that are compressed.
+     */
+    private static final Set<String> INCOMPRESSIBLE_MEDIA_TYPES = new HashSet<String>(Arrays.asList(
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+        "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+        "application/java-archive", "application/epub+zip", "application/x-shockwave-flash"));
+
+    /**
+     * The prefixes of the office document media types, which are ZIP archives.
+     */
+    private static final String[] INCOMPRESSIBLE_MEDIA_TYPE_PREFIXES = {
+        "application/vnd.openxmlformats-officedocument.", "application/vnd.oasis.opendocument.",
+        "application/vnd.ms-excel.sheet.macroenabled.", "application/vnd.ms-word.document.macroenabled.",
+        "application/vnd.ms-powerpoint.presentation.macroenabled."};
+
+    /**
+     * The extensions of the files that are compressed, used when the media type is not known.
+     */
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = new HashSet<String>(Arrays.asList("jpg", "jpeg",
+        "png", "gif", "webp", "heic", "avif", "mp3", "aac", "ogg", "oga", "opus", "flac", "m4a", "wma", "mp4", "m4v",
+        "mov", "avi", "mkv", "webm", "wmv", "flv", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "war", "ear",
+        "apk", "docx", "docm", "xlsx", "xlsm", "pptx", "pptm", "odt", "ods", "odp", "odg", "epub"));
+
+    /**
+     * The media type used when the actual media type is not known.
+     */
+    private static final String UNKNOWN_MEDIA_TYPE = "application/octet-stream";
+
+    /**
+     * Utility class.
+     */
+    private PackCompressionPolicy()
+    {
+    }
+
+    /**
+     * @param mediaType the media type of the file content, {@code null} if it's not known
+     * @param fileName the file name
+     * @return {@code true} if the file content is worth compressing, {@code false} if it's most probably compressed
+     *         already
+     */
+    static boolean isCompressible(String mediaType, String fileName)
+    {
+        String type = StringUtils.substringBefore(StringUtils.defaultString(mediaType), ";").trim()
+            .toLowerCase(Locale.ROOT);
+        if (StringUtils.isEmpty(type) || UNKNOWN_MEDIA_TYPE.equals(type)) {
+            String extension = FilenameUtils.getExtension(StringUtils.defaultString(fileName));
+            return !INCOMPRESSIBLE_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+        } else if (COMPRESSIBLE_MEDIA_TYPES.contains(type)) {
+            return true;
+        } else if (INCOMPRESSIBLE_TOP_LEVEL_TYPES.contains(StringUtils.substringBefore(type, "/"))
+            || INCOMPRESSIBLE_MEDIA_TYPES.contains(type)) {
+            return false;
+        }
+        for (String prefix : INCOMPRESSIBLE_MEDIA_TYPE_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
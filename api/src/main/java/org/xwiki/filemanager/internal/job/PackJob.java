@@ -19,29 +19,44 @@
  */
 package org.xwiki.filemanager.internal.job;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.environment.Environment;
 import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.filemanager.job.PackJobStatus;
 import org.xwiki.filemanager.job.PackRequest;
-import org.xwiki.job.Job;
 import org.xwiki.job.event.status.JobStatus;
-import org.xwiki.job.internal.AbstractJob;
-import org.xwiki.job.internal.DefaultJobStatus;
+import org.xwiki.logging.LogLevel;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 
@@ -53,7 +68,7 @@ import org.xwiki.model.reference.DocumentReference;
  */
 @Component
 @Named(PackJob.JOB_TYPE + "/actual")
-public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackRequest>>
+public class PackJob extends AbstractFileSystemJob<PackRequest>
 {
     /**
      * The id of the job.
@@ -71,10 +86,14 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
     private static final String MODULE_NAME = "filemanager";
 
     /**
-     * The pseudo file system.
+     * The maximum number of compressed files, per worker thread, waiting to be written to the ZIP archive.
      */
-    @Inject
-    private FileSystem fileSystem;
+    private static final int MAX_PENDING_ENTRIES_PER_THREAD = 4;
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final long MEGABYTE = 1024 * 1024L;
 
     /**
      * Used to access the temporary directory.
@@ -83,11 +102,20 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
     private Environment environment;
 
     /**
-     * Wraps the internal {@link DefaultJobStatus} and adds custom data such as the number of bytes written and the size
-     * of the output file. We wrap {@link DefaultJobStatus} instead of extending the class because the constructor of
-     * {@link DefaultJobStatus} has suffered a breaking change in XCOMMONS-811.
+     * Used to reuse the archives that have the same content.
+     */
+    @Inject
+    private PackCache packCache;
+
+    /**
+     * Where to write the ZIP archive, {@code null} if the archive is written to a temporary file.
+     */
+    private OutputStream outputStream;
+
+    /**
+     * The files and folders that are packed, collected by the plan.
      */
-    private PackJobStatus packJobStatus;
+    private List<DocumentReference> packedDocuments;
 
     @Override
     public String getType()
@@ -96,31 +124,146 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
     }
 
     @Override
-    protected void runInternal() throws Exception
+    protected JobPlan plan()
+    {
+        if (isStreaming()) {
+            // Walking the folder trees before writing the first entry would delay the response.
+            return new JobPlan();
+        }
+
+        List<DocumentReference> fileReferences = new ArrayList<DocumentReference>();
+        Set<DocumentReference> folderReferences = new LinkedHashSet<DocumentReference>();
+        JobPlan plan = planSubtrees(FileSystem.RIGHT_VIEW, fileReferences, folderReferences);
+        plan.setByteCount(fileSystem.getTotalFileSize(fileReferences));
+        this.packedDocuments = new ArrayList<DocumentReference>(folderReferences);
+        this.packedDocuments.addAll(fileReferences);
+        return plan;
+    }
+
+    @Override
+    protected boolean isResumable()
+    {
+        // The archive is written to a temporary file which can't be appended after a restart.
+        return false;
+    }
+
+    @Override
+    protected void execute() throws Exception
     {
         Collection<Path> paths = getRequest().getPaths();
         if (paths == null) {
             return;
         }
 
-        File outputFile = getTemporaryFile(getRequest().getOutputFileReference());
-        // TODO: Use java.util.zip.ZipOutputStream when moving to Java 7.
-        // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=4244499
-        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(outputFile);
+        File outputFile = isStreaming() ? null : getTemporaryFile(getRequest().getOutputFileReference());
+        String cacheKey = null;
+        if (outputFile != null) {
+            // The packed files and folders, with their versions, identify the content of the archive.
+            cacheKey = this.packCache.getKey(getRequest(), fileSystem.getVersions(this.packedDocuments));
+            if (cacheKey != null && copyCachedArchive(cacheKey, outputFile)) {
+                return;
+            }
+        }
+
+        PackOutput output = createOutput(outputFile);
         String pathPrefix = "";
 
         notifyPushLevelProgress(paths.size());
 
         try {
             for (Path path : paths) {
-                pack(path, zip, pathPrefix);
+                if (isCanceled()) {
+                    break;
+                }
+                pack(path, output, pathPrefix);
                 notifyStepPropress();
             }
         } finally {
-            IOUtils.closeQuietly(zip);
-            getPackStatus().setOutputFileSize(outputFile.length());
+            output.close();
+            if (outputFile != null) {
+                if (isCanceled() && outputFile.exists() && !outputFile.delete()) {
+                    this.logger.warn("Failed to delete the partial ZIP archive [{}].", outputFile);
+                }
+                getPackStatus().setOutputFileSize(outputFile.length());
+            }
             notifyPopLevelProgress();
         }
+
+        // Cache only the complete archives.
+        if (cacheKey != null && !isCanceled() && !Thread.currentThread().isInterrupted()
+            && getStatus().getLog().getLogsFrom(LogLevel.WARN).isEmpty()) {
+            this.packCache.put(cacheKey, outputFile);
+        }
+    }
+
+    /**
+     * Copies the cached archive with the given key to the output file, instead of packing the files and folders again.
+     * 
+     * @param cacheKey identifies the content of the archive
+     * @param outputFile the archive file
+     * @return {@code true} if the cached archive has been copied, {@code false} if there's no cached archive
+     */
+    private boolean copyCachedArchive(String cacheKey, File outputFile)
+    {
+        File cachedArchive = this.packCache.get(cacheKey);
+        if (cachedArchive == null) {
+            return false;
+        }
+
+        try {
+            FileUtils.copyFile(cachedArchive, outputFile);
+        } catch (IOException e) {
+            // The cached archive may have been evicted in the mean time.
+            this.logger.warn("Failed to copy the cached archive [{}].", cachedArchive, e);
+            return false;
+        }
+
+        this.logger.info("Reused the cached archive [{}].", cacheKey);
+        getPackStatus().setBytesWritten(getPackStatus().getPlan().getByteCount());
+        getPackStatus().setOutputFileSize(outputFile.length());
+        return true;
+    }
+
+    /**
+     * Sets the stream where to write the ZIP archive, instead of a temporary file. The entries are flushed as soon as
+     * they are written so that the client (e.g. a browser downloading the archive) starts receiving the archive while
+     * the files are being packed. The stream is not closed by the job.
+     * 
+     * @param outputStream where to write the ZIP archive
+     * @since 2.4
+     */
+    public void setOutputStream(OutputStream outputStream)
+    {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * @return {@code true} if the ZIP archive is written to the output stream set by the caller, {@code false} if it
+     *         is written to a temporary file
+     */
+    private boolean isStreaming()
+    {
+        return this.outputStream != null;
+    }
+
+    /**
+     * @param outputFile the archive file, {@code null} if the archive is written to the output stream
+     * @return where to write the packed files and folders
+     * @throws IOException if the archive can't be created
+     */
+    private PackOutput createOutput(File outputFile) throws IOException
+    {
+        // Compress the files in parallel if the job has worker threads.
+        boolean parallel = this.configuration.getWorkerThreadCount() > 1;
+        if (outputFile != null) {
+            return parallel ? new ParallelPackOutput(new GatherZipWriter(outputFile))
+                : new SerialPackOutput(new ZipArchiveOutputStream(outputFile));
+        }
+
+        // The stream belongs to the caller so it must remain open after the archive is finished.
+        OutputStream stream = new CloseShieldOutputStream(this.outputStream);
+        return parallel ? new ParallelPackOutput(new GatherZipWriter(stream))
+            : new SerialPackOutput(new ZipArchiveOutputStream(stream));
     }
 
     /**
@@ -157,15 +300,15 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
      * Packs a file or a folder.
      * 
      * @param path the file or folder to add to the ZIP archive
-     * @param zip the ZIP archive to add the file or folder to
+     * @param output the ZIP archive to add the file or folder to
      * @param pathPrefix the current path prefix, used to ensure the folder hierarchy is preserved in the ZIP file
      */
-    private void pack(Path path, ZipArchiveOutputStream zip, String pathPrefix)
+    private void pack(Path path, PackOutput output, String pathPrefix)
     {
         if (path.getFileReference() != null) {
-            packFile(path.getFileReference(), zip, pathPrefix);
+            packFile(path.getFileReference(), output, pathPrefix);
         } else if (path.getFolderReference() != null) {
-            packFolder(path.getFolderReference(), zip, pathPrefix);
+            packFolder(path.getFolderReference(), output, pathPrefix);
         }
     }
 
@@ -173,23 +316,14 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
      * Packs a file.
      * 
      * @param fileReference the file to add to the ZIP archive
-     * @param zip the ZIP archive to add the file to
+     * @param output the ZIP archive to add the file to
      * @param pathPrefix the file path
      */
-    private void packFile(DocumentReference fileReference, ZipArchiveOutputStream zip, String pathPrefix)
+    private void packFile(DocumentReference fileReference, PackOutput output, String pathPrefix)
     {
         org.xwiki.filemanager.File file = fileSystem.getFile(fileReference);
         if (file != null && fileSystem.canView(fileReference)) {
-            try {
-                String path = pathPrefix + file.getName();
-                this.logger.info("Packing file [{}]", path);
-                zip.putArchiveEntry(new ZipArchiveEntry(path));
-                IOUtils.copy(file.getContent(), zip);
-                zip.closeArchiveEntry();
-                getPackStatus().setBytesWritten(zip.getBytesWritten());
-            } catch (IOException e) {
-                this.logger.warn("Failed to pack file [{}].", fileReference, e);
-            }
+            output.putFile(file, pathPrefix + file.getName());
         }
     }
 
@@ -197,55 +331,516 @@ public class PackJob extends AbstractJob<PackRequest, DefaultJobStatus<PackReque
      * Packs a folder.
      * 
      * @param folderReference the folder to add to the ZIP archive
-     * @param zip the ZIP archive to add the folder to
+     * @param output the ZIP archive to add the folder to
      * @param pathPrefix the folder path
      */
-    private void packFolder(DocumentReference folderReference, ZipArchiveOutputStream zip, String pathPrefix)
+    private void packFolder(DocumentReference folderReference, PackOutput output, String pathPrefix)
     {
         Folder folder = fileSystem.getFolder(folderReference);
         if (folder != null && fileSystem.canView(folderReference)) {
-            List<DocumentReference> childFolderReferences = folder.getChildFolderReferences();
-            List<DocumentReference> childFileReferences = folder.getChildFileReferences();
-            notifyPushLevelProgress(childFolderReferences.size() + childFileReferences.size() + 1);
+            packFolder(folder, output, pathPrefix);
+        }
+    }
 
-            try {
-                String path = pathPrefix + folder.getName() + '/';
-                this.logger.info("Packing folder [{}]", path);
-                zip.putArchiveEntry(new ZipArchiveEntry(path));
-                zip.closeArchiveEntry();
-                notifyStepPropress();
+    /**
+     * Packs a folder that the current user is allowed to view.
+     * 
+     * @param folder the folder to add to the ZIP archive
+     * @param output the ZIP archive to add the folder to
+     * @param pathPrefix the folder path
+     */
+    private void packFolder(Folder folder, PackOutput output, String pathPrefix)
+    {
+        notifyPushLevelProgress(folder.countChildFolders() + folder.countChildFiles() + 1);
+
+        try {
+            String path = pathPrefix + folder.getName() + '/';
+            this.logger.info("Packing folder [{}]", path);
+            output.putFolder(path);
+            notifyStepPropress();
 
-                for (DocumentReference childFolderReference : childFolderReferences) {
-                    packFolder(childFolderReference, zip, path);
-                    notifyStepPropress();
+            // Skip the child files and folders that the current user is not allowed to view.
+            Iterator<DocumentReference> childFolderReferences = folder.iterateChildFolderReferences();
+            while (childFolderReferences.hasNext() && !isCanceled()) {
+                List<DocumentReference> batch = nextBatch(childFolderReferences);
+                List<DocumentReference> visibleBatch = fileSystem.filterByRight(FileSystem.RIGHT_VIEW, batch);
+                for (Folder childFolder : fileSystem.getFolders(visibleBatch)) {
+                    packFolder(childFolder, output, path);
                 }
+                notifyStepsProgress(batch.size());
+            }
 
-                for (DocumentReference childFileReference : childFileReferences) {
-                    packFile(childFileReference, zip, path);
-                    notifyStepPropress();
+            Iterator<DocumentReference> childFileReferences = folder.iterateChildFileReferences();
+            while (childFileReferences.hasNext() && !isCanceled()) {
+                List<DocumentReference> batch = nextBatch(childFileReferences);
+                List<DocumentReference> visibleBatch = fileSystem.filterByRight(FileSystem.RIGHT_VIEW, batch);
+                for (org.xwiki.filemanager.File childFile : fileSystem.getFiles(visibleBatch)) {
+                    output.putFile(childFile, path + childFile.getName());
                 }
-            } catch (IOException e) {
-                this.logger.warn("Failed to pack folder [{}].", folderReference, e);
-            } finally {
-                notifyPopLevelProgress();
+                notifyStepsProgress(batch.size());
             }
+        } catch (IOException e) {
+            this.logger.warn("Failed to pack folder [{}].", folder.getReference(), e);
+        } finally {
+            notifyPopLevelProgress();
         }
     }
 
+    /**
+     * @param file a file to pack
+     * @return the level used to compress the given file, {@link Deflater#NO_COMPRESSION} if the file should be stored
+     *         without compression because it's most probably compressed already
+     */
+    private int getCompressionLevel(org.xwiki.filemanager.File file)
+    {
+        return PackCompressionPolicy.isCompressible(file.getMediaType(), file.getName())
+            ? getRequest().getCompressionLevel() : Deflater.NO_COMPRESSION;
+    }
+
+    @Override
+    protected FileSystemJobStatus createFileSystemStatus(JobStatus jobStatus)
+    {
+        return new PackJobStatus(jobStatus);
+    }
+
     /**
      * @return the extended job status
      */
     public PackJobStatus getPackStatus()
     {
-        // The internal AbstractJob and AbstractJobStatus classes have been refactored in XWiki 7.4M1 by XCOMMONS-880
-        // which seems to have broken the runtime compatibility in the sense that some protected fields and some public
-        // methods are not accessible anymore after they have been moved higher in the class hierarchy (and in a
-        // different package). The workaround I found is to cast 'this' to the interface/class that provides the public
-        // method I want to access.
-        JobStatus defaultJobStatus = ((Job) this).getStatus();
-        if (this.packJobStatus == null && defaultJobStatus != null) {
-            this.packJobStatus = new PackJobStatus(defaultJobStatus);
+        return (PackJobStatus) getFileSystemStatus();
+    }
+
+    /**
+     * Where the packed files and folders are written.
+     */
+    private interface PackOutput
+    {
+        /**
+         * Adds a folder to the ZIP archive.
+         * 
+         * @param path the folder path, ending with a slash
+         * @throws IOException if adding the folder fails
+         */
+        void putFolder(String path) throws IOException;
+
+        /**
+         * Adds a file that the current user is allowed to view to the ZIP archive. Failures are logged.
+         * 
+         * @param file the file to add
+         * @param path the file path
+         */
+        void putFile(org.xwiki.filemanager.File file, String path);
+
+        /**
+         * Finishes the ZIP archive.
+         */
+        void close();
+    }
+
+    /**
+     * Compresses the files one after another, on the job thread. The content of the next files is read ahead on
+     * separate threads (see {@link org.xwiki.filemanager.FileManagerConfiguration#getPackReadAheadCount()}), within a
+     * memory budget, so that the compression doesn't wait for the attachment store.
+     */
+    private class SerialPackOutput implements PackOutput
+    {
+        /**
+         * The ZIP archive.
+         */
+        private final ZipArchiveOutputStream zip;
+
+        /**
+         * Reads the content of the next files, {@code null} if the files are read when they are compressed.
+         */
+        private final TaskPipeline readAhead;
+
+        /**
+         * The entries that are waiting to be written, in order.
+         */
+        private final Queue<PendingEntry> pendingEntries = new LinkedList<PendingEntry>();
+
+        /**
+         * The maximum number of entries waiting to be written.
+         */
+        private final int maxPendingEntries;
+
+        /**
+         * The maximum number of bytes read ahead.
+         */
+        private final long maxBufferedBytes;
+
+        /**
+         * The number of bytes reserved for the content of the pending entries.
+         */
+        private long bufferedBytes;
+
+        /**
+         * Wraps the ZIP archive.
+         * 
+         * @param zip the ZIP archive
+         */
+        SerialPackOutput(ZipArchiveOutputStream zip)
+        {
+            // TODO: Use java.util.zip.ZipOutputStream when moving to Java 7.
+            // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=4244499
+            this.zip = zip;
+            this.maxPendingEntries = configuration.getPackReadAheadCount();
+            this.maxBufferedBytes = configuration.getPackReadAheadMemory() * MEGABYTE;
+            boolean readAheadEnabled = this.maxPendingEntries > 0 && this.maxBufferedBytes > 0;
+            this.readAhead = readAheadEnabled ? new TaskPipeline(this.maxPendingEntries) : null;
+        }
+
+        @Override
+        public void putFolder(String path) throws IOException
+        {
+            if (this.readAhead == null) {
+                writeFolder(path);
+            } else {
+                // Keep the order of the entries.
+                this.pendingEntries.add(new PendingEntry(null, path, null, 0));
+                writeEntries(false);
+            }
+        }
+
+        @Override
+        public void putFile(final org.xwiki.filemanager.File file, String path)
+        {
+            if (this.readAhead == null) {
+                writeFile(file, path, null);
+                return;
+            }
+
+            // The files that don't fit the memory budget are read when they are compressed.
+            long size = file.getSize();
+            boolean buffered = size <= this.maxBufferedBytes;
+            while (!this.pendingEntries.isEmpty() && (this.pendingEntries.size() >= this.maxPendingEntries
+                || (buffered && this.bufferedBytes + size > this.maxBufferedBytes))) {
+                writeEntry(this.pendingEntries.poll());
+            }
+
+            FutureTask<byte[]> content = null;
+            if (buffered) {
+                content = new FutureTask<byte[]>(new Callable<byte[]>()
+                {
+                    @Override
+                    public byte[] call() throws IOException
+                    {
+                        // Skip the pending files if the job has been canceled.
+                        return isCanceled() ? null : IOUtils.toByteArray(file.getContent());
+                    }
+                });
+                this.bufferedBytes += size;
+                this.readAhead.submit(content);
+            }
+            this.pendingEntries.add(new PendingEntry(file, path, content, buffered ? size : 0));
+            writeEntries(false);
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                // The partial archive is deleted if the job has been canceled.
+                if (!isCanceled()) {
+                    writeEntries(true);
+                }
+            } finally {
+                if (this.readAhead != null) {
+                    this.readAhead.finish();
+                }
+                this.pendingEntries.clear();
+                IOUtils.closeQuietly(this.zip);
+            }
+        }
+
+        /**
+         * Writes the pending entries, in order, as long as their content has been read.
+         * 
+         * @param all {@code true} to wait for the content of all the pending entries to be read, {@code false} to
+         *            write only the entries that are ready
+         */
+        private void writeEntries(boolean all)
+        {
+            while (!this.pendingEntries.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                PendingEntry entry = this.pendingEntries.peek();
+                if (!all && entry.content != null && !entry.content.isDone()) {
+                    break;
+                }
+                writeEntry(this.pendingEntries.poll());
+            }
+        }
+
+        /**
+         * Writes a pending entry, waiting for its content to be read.
+         * 
+         * @param entry the entry to write
+         */
+        private void writeEntry(PendingEntry entry)
+        {
+            if (entry.file == null) {
+                try {
+                    writeFolder(entry.path);
+                } catch (IOException e) {
+                    logger.warn("Failed to pack folder [{}].", entry.path, e);
+                }
+                return;
+            }
+
+            byte[] content = null;
+            if (entry.content != null) {
+                try {
+                    content = entry.content.get();
+                } catch (ExecutionException e) {
+                    // Try again on the job thread.
+                    logger.debug("Failed to read ahead the content of [{}].", entry.path, e.getCause());
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for the content of [{}].", entry.path);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            writeFile(entry.file, entry.path, content);
+            this.bufferedBytes -= entry.size;
+        }
+
+        /**
+         * Adds a folder to the ZIP archive.
+         * 
+         * @param path the folder path
+         * @throws IOException if adding the folder fails
+         */
+        private void writeFolder(String path) throws IOException
+        {
+            this.zip.putArchiveEntry(new ZipArchiveEntry(path));
+            this.zip.closeArchiveEntry();
+        }
+
+        /**
+         * Compresses a file and adds it to the ZIP archive.
+         * 
+         * @param file the file to add
+         * @param path the file path
+         * @param content the file content, if it has been read ahead, {@code null} otherwise
+         */
+        private void writeFile(org.xwiki.filemanager.File file, String path, byte[] content)
+        {
+            try {
+                logger.info("Packing file [{}]", path);
+                int level = getCompressionLevel(file);
+                ZipArchiveEntry entry = new ZipArchiveEntry(path);
+                // Stored entries need the size and the CRC before the content, which are known only when the archive
+                // file can be updated afterwards. The streamed entries are deflated without compression instead.
+                if (level == Deflater.NO_COMPRESSION && !isStreaming()) {
+                    entry.setMethod(ZipArchiveOutputStream.STORED);
+                } else {
+                    this.zip.setLevel(level);
+                }
+                this.zip.putArchiveEntry(entry);
+                IOUtils.copy(content != null ? new ByteArrayInputStream(content) : file.getContent(), this.zip);
+                this.zip.closeArchiveEntry();
+                if (isStreaming()) {
+                    this.zip.flush();
+                }
+                getPackStatus().setBytesWritten(this.zip.getBytesWritten());
+            } catch (IOException e) {
+                logger.warn("Failed to pack file [{}].", file.getReference(), e);
+            }
+        }
+    }
+
+    /**
+     * A ZIP entry waiting to be written.
+     */
+    private static final class PendingEntry
+    {
+        /**
+         * The file to add, {@code null} if the entry is a folder.
+         */
+        private final org.xwiki.filemanager.File file;
+
+        /**
+         * The entry path.
+         */
+        private final String path;
+
+        /**
+         * The file content being read ahead, {@code null} if the file is read when it is compressed.
+         */
+        private final Future<byte[]> content;
+
+        /**
+         * The number of bytes reserved for the file content.
+         */
+        private final long size;
+
+        /**
+         * Creates a new pending entry.
+         * 
+         * @param file the file to add, {@code null} if the entry is a folder
+         * @param path the entry path
+         * @param content the file content being read ahead, {@code null} if the file is read when it is compressed
+         * @param size the number of bytes reserved for the file content
+         */
+        PendingEntry(org.xwiki.filemanager.File file, String path, Future<byte[]> content, long size)
+        {
+            this.file = file;
+            this.path = path;
+            this.content = content;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Compresses the files on the worker threads (see {@link #startPipeline()}) while the job thread walks the folder
+     * tree and writes the compressed entries to the ZIP archive, in order.
+     */
+    private class ParallelPackOutput implements PackOutput
+    {
+        /**
+         * The ZIP archive.
+         */
+        private final GatherZipWriter zip;
+
+        /**
+         * Used to compress the files.
+         */
+        private final TaskPipeline pipeline;
+
+        /**
+         * The entries that are waiting to be written, in order.
+         */
+        private final Queue<Future<ScatterZipEntry>> pendingEntries = new LinkedList<Future<ScatterZipEntry>>();
+
+        /**
+         * The maximum number of compressed entries waiting to be written.
+         */
+        private final int maxPendingEntries;
+
+        /**
+         * Starts the worker threads.
+         * 
+         * @param zip the ZIP archive
+         */
+        ParallelPackOutput(GatherZipWriter zip)
+        {
+            this.zip = zip;
+            this.pipeline = startPipeline();
+            this.maxPendingEntries = MAX_PENDING_ENTRIES_PER_THREAD * configuration.getWorkerThreadCount();
+        }
+
+        @Override
+        public void putFolder(final String path) throws IOException
+        {
+            FutureTask<ScatterZipEntry> entry = new FutureTask<ScatterZipEntry>(new Callable<ScatterZipEntry>()
+            {
+                @Override
+                public ScatterZipEntry call()
+                {
+                    return ScatterZipEntry.directory(path);
+                }
+            });
+            entry.run();
+            this.pendingEntries.add(entry);
+            writeEntries(false);
+        }
+
+        @Override
+        public void putFile(final org.xwiki.filemanager.File file, final String path)
+        {
+            FutureTask<ScatterZipEntry> entry = new FutureTask<ScatterZipEntry>(new Callable<ScatterZipEntry>()
+            {
+                @Override
+                public ScatterZipEntry call()
+                {
+                    // Skip the pending files if the job has been canceled.
+                    if (isCanceled()) {
+                        return null;
+                    }
+                    try {
+                        logger.info("Packing file [{}]", path);
+                        return ScatterZipEntry.compress(path, file.getContent(), getCompressionLevel(file),
+                            environment.getTemporaryDirectory());
+                    } catch (IOException e) {
+                        logger.warn("Failed to pack file [{}].", file.getReference(), e);
+                        return null;
+                    }
+                }
+            });
+            this.pendingEntries.add(entry);
+            this.pipeline.submit(entry);
+            writeEntries(false);
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                writeEntries(true);
+            } finally {
+                this.pipeline.finish();
+                // Release the entries that were not written (e.g. because the job thread has been interrupted).
+                for (Future<ScatterZipEntry> entry : this.pendingEntries) {
+                    ScatterZipEntry scatterEntry = getEntry(entry);
+                    if (scatterEntry != null) {
+                        scatterEntry.delete();
+                    }
+                }
+                try {
+                    this.zip.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to finish the ZIP archive.", e);
+                }
+            }
+        }
+
+        /**
+         * Writes the pending entries, in order, as long as they are compressed.
+         * 
+         * @param all {@code true} to wait for all the pending entries to be compressed, {@code false} to wait only if
+         *            there are too many pending entries
+         */
+        private void writeEntries(boolean all)
+        {
+            while (!this.pendingEntries.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                if (!all && !this.pendingEntries.peek().isDone()
+                    && this.pendingEntries.size() <= this.maxPendingEntries) {
+                    break;
+                }
+                ScatterZipEntry entry = getEntry(this.pendingEntries.poll());
+                if (entry != null) {
+                    try {
+                        this.zip.write(entry);
+                        if (isStreaming()) {
+                            this.zip.flush();
+                        }
+                        getPackStatus().setBytesWritten(this.zip.getBytesWritten());
+                    } catch (IOException e) {
+                        logger.warn("Failed to pack file [{}].", entry.getName(), e);
+                    } finally {
+                        entry.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for an entry to be compressed.
+         * 
+         * @param entry the pending entry
+         * @return the compressed entry, {@code null} if the compression failed or was skipped
+         */
+        private ScatterZipEntry getEntry(Future<ScatterZipEntry> entry)
+        {
+            try {
+                return entry.get();
+            } catch (ExecutionException e) {
+                logger.error("Failed to compress file.", e.getCause());
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for a file to be compressed.");
+                Thread.currentThread().interrupt();
+            }
+            return null;
         }
-        return this.packJobStatus;
     }
 }
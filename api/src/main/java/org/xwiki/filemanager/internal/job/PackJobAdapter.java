@@ -24,7 +24,6 @@ import javax.inject.Named;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.job.Job;
-import org.xwiki.job.event.status.JobStatus;
 
 /**
  * Wraps the actual {@link PackJob} in order to add custom data to the {@link org.xwiki.job.internal.DefaultJobStatus}
@@ -48,13 +47,4 @@ public class PackJobAdapter extends AbstractJobAdapter
     {
         return actualPackJob;
     }
-
-    @Override
-    public JobStatus getStatus()
-    {
-        if (this.actualPackJob instanceof PackJob) {
-            return ((PackJob) this.actualPackJob).getPackStatus();
-        }
-        return super.getStatus();
-    }
 }
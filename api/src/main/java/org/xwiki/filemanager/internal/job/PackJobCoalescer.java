@@ -0,0 +1,241 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.PackJobStatus;
+import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.job.event.status.JobStatus.State;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Keeps track of the pack jobs that are running or have finished recently so that the same files and folders are not
+ * packed again, in the same output file, for the same user (the user rights determine the content of the ZIP archive).
+ * A pack job can't be reused anymore after a document from one of the packed drives is modified.
+ * <p>
+ * Coalescing only works for the same user: the user is part of the key, and so is the output file, which the drive
+ * sheet creates per user (e.g. {@code Download-<user>-<id>}). Different users packing the same files get separate jobs.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Component
+@Named(PackJobCoalescer.NAME)
+@Singleton
+public class PackJobCoalescer implements EventListener
+{
+    /**
+     * The name of the event listener.
+     */
+    public static final String NAME = "FileSystemPackJobCoalescer";
+
+    /**
+     * The number of milliseconds during which the output of a finished pack job can be reused.
+     */
+    private static final long REUSE_PERIOD = 10 * 60 * 1000L;
+
+    /**
+     * The name prefix of the documents used to access the output of the pack jobs started from the drive sheet.
+     */
+    private static final String DOWNLOAD_DOCUMENT_PREFIX = "Download-";
+
+    /**
+     * The class of the documents used to access the output of the pack jobs started from the drive sheet.
+     */
+    private static final EntityReference DOWNLOAD_CLASS_REFERENCE = new EntityReference("DownloadClass",
+        EntityType.DOCUMENT, new EntityReference("FileManagerCode", EntityType.SPACE));
+
+    /**
+     * The pack jobs that can be reused, indexed by (user, output file, paths).
+     */
+    private final Map<List<Object>, PackJob> packJobs = new HashMap<List<Object>, PackJob>();
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public synchronized void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        if (this.packJobs.isEmpty() || isDownloadDocument(document)) {
+            // The download documents are saved for each pack job but they don't change the packed files.
+            return;
+        }
+
+        DocumentReference documentReference = document.getDocumentReference();
+        Iterator<PackJob> iterator = this.packJobs.values().iterator();
+        while (iterator.hasNext()) {
+            PackJob packJob = iterator.next();
+            // The document used to access the output file is usually saved after the pack job is scheduled.
+            if (packJob.drives.contains(documentReference.getLastSpaceReference())
+                && !documentReference.equals(packJob.request.getOutputFileReference().getDocumentReference())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param document a document
+     * @return {@code true} if the given document is used to access the output of a pack job, {@code false} otherwise
+     */
+    private boolean isDownloadDocument(XWikiDocument document)
+    {
+        // The name is checked too because a deleted document has no objects.
+        return document.getDocumentReference().getName().startsWith(DOWNLOAD_DOCUMENT_PREFIX)
+            || document.getXObject(DOWNLOAD_CLASS_REFERENCE) != null;
+    }
+
+    /**
+     * @param request a pack request
+     * @return the id of a pack job that is running or has finished recently and that produces the output expected by
+     *         the given request, {@code null} if there's no such job
+     */
+    public synchronized String getReusableJob(PackRequest request)
+    {
+        List<Object> key = getKey(request);
+        PackJob packJob = this.packJobs.get(key);
+        if (packJob != null && !packJob.isReusable(System.currentTimeMillis())) {
+            this.packJobs.remove(key);
+            packJob = null;
+        }
+        return packJob != null ? packJob.request.getId().get(1) : null;
+    }
+
+    /**
+     * Registers a pack job that has been scheduled.
+     * 
+     * @param request the pack request
+     * @param jobStatus the status of the pack job
+     */
+    public synchronized void register(PackRequest request, JobStatus jobStatus)
+    {
+        // Forget the jobs that can't be reused anymore.
+        long now = System.currentTimeMillis();
+        Iterator<PackJob> iterator = this.packJobs.values().iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().isReusable(now)) {
+                iterator.remove();
+            }
+        }
+
+        if (jobStatus instanceof PackJobStatus) {
+            this.packJobs.put(getKey(request), new PackJob(request, (PackJobStatus) jobStatus));
+        }
+    }
+
+    /**
+     * @param request a pack request
+     * @return the key used to find the pack jobs that produce the same output as the given request
+     */
+    private List<Object> getKey(PackRequest request)
+    {
+        // The order of the paths doesn't matter.
+        return Arrays.<Object>asList(request.getProperty(DefaultFileManager.PROPERTY_USER_REFERENCE),
+            request.getOutputFileReference(), new HashSet<Path>(request.getPaths()), request.getCompressionLevel());
+    }
+
+    /**
+     * A pack job that can be reused.
+     */
+    private static class PackJob
+    {
+        /**
+         * The pack request.
+         */
+        private final PackRequest request;
+
+        /**
+         * The status of the pack job.
+         */
+        private final PackJobStatus status;
+
+        /**
+         * The drives that contain the packed files and folders.
+         */
+        private final Set<SpaceReference> drives = new HashSet<SpaceReference>();
+
+        /**
+         * Creates a new entry.
+         * 
+         * @param request the pack request
+         * @param status the status of the pack job
+         */
+        PackJob(PackRequest request, PackJobStatus status)
+        {
+            this.request = request;
+            this.status = status;
+            for (Path path : request.getPaths()) {
+                DocumentReference reference =
+                    path.getFileReference() != null ? path.getFileReference() : path.getFolderReference();
+                if (reference != null) {
+                    this.drives.add(reference.getLastSpaceReference());
+                }
+            }
+        }
+
+        /**
+         * @param now the current time
+         * @return {@code true} if the pack job is still running or if it has finished recently and successfully
+         */
+        boolean isReusable(long now)
+        {
+            if (this.status.isCanceled()) {
+                return false;
+            } else if (this.status.getState() != State.FINISHED) {
+                return true;
+            }
+            return this.status.getOutputFileSize() > 0 && this.status.getEndDate() != null
+                && now - this.status.getEndDate().getTime() < REUSE_PERIOD;
+        }
+    }
+}
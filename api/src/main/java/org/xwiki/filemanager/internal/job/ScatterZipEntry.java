@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * A ZIP archive entry whose content has been compressed ahead of time, possibly on a different thread than the one
+ * that writes the archive (see {@link GatherZipWriter}). The compressed content is kept in memory when it's small and
+ * in a temporary file otherwise.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+class ScatterZipEntry
+{
+    /**
+     * The maximum number of compressed bytes kept in memory.
+     */
+    private static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The size of the buffer used to read the content.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The entry name.
+     */
+    private final String name;
+
+    /**
+     * The compression method.
+     */
+    private final int method;
+
+    /**
+     * The last modification time.
+     */
+    private final long time = System.currentTimeMillis();
+
+    /**
+     * The CRC-32 checksum of the uncompressed content.
+     */
+    private long crc;
+
+    /**
+     * The size of the uncompressed content.
+     */
+    private long size;
+
+    /**
+     * The size of the compressed content.
+     */
+    private long compressedSize;
+
+    /**
+     * The compressed content, {@code null} for directories.
+     */
+    private DeferredFileOutputStream data;
+
+    /**
+     * Creates a new entry.
+     * 
+     * @param name the entry name
+     * @param method the compression method
+     */
+    private ScatterZipEntry(String name, int method)
+    {
+        this.name = name;
+        this.method = method;
+    }
+
+    /**
+     * @param name the directory name, ending with a slash
+     * @return a directory entry
+     */
+    static ScatterZipEntry directory(String name)
+    {
+        return new ScatterZipEntry(name, ZipArchiveOutputStream.STORED);
+    }
+
+    /**
+     * Compresses the given content. The content stream is closed afterwards.
+     * 
+     * @param name the entry name
+     * @param content the content to compress
+     * @param level the compression level, {@code 0} to store the content without compression
+     * @param tempDirectory where to store the compressed content when it's too large to be kept in memory
+     * @return the compressed entry
+     * @throws IOException if reading or compressing the content fails
+     */
+    static ScatterZipEntry compress(String name, InputStream content, int level, File tempDirectory)
+        throws IOException
+    {
+        boolean stored = level == Deflater.NO_COMPRESSION;
+        ScatterZipEntry entry =
+            new ScatterZipEntry(name, stored ? ZipArchiveOutputStream.STORED : ZipArchiveOutputStream.DEFLATED);
+        entry.data = new DeferredFileOutputStream(MEMORY_THRESHOLD, "filemanager-pack-", ".tmp", tempDirectory);
+        // Raw deflate data, without the ZLIB header and checksum, as required by the ZIP format.
+        Deflater deflater = stored ? null : new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        try {
+            OutputStream output =
+                stored ? entry.data : new DeflaterOutputStream(entry.data, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer)) {
+                crc.update(buffer, 0, count);
+                output.write(buffer, 0, count);
+                entry.size += count;
+            }
+            output.close();
+        } catch (IOException e) {
+            entry.delete();
+            throw e;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            IOUtils.closeQuietly(content);
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = entry.data.getByteCount();
+        return entry;
+    }
+
+    /**
+     * @return the entry name
+     */
+    String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return the compression method
+     */
+    int getMethod()
+    {
+        return this.method;
+    }
+
+    /**
+     * @return the last modification time
+     */
+    long getTime()
+    {
+        return this.time;
+    }
+
+    /**
+     * @return the CRC-32 checksum of the uncompressed content
+     */
+    long getCrc()
+    {
+        return this.crc;
+    }
+
+    /**
+     * @return the size of the uncompressed content
+     */
+    long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the size of the compressed content
+     */
+    long getCompressedSize()
+    {
+        return this.compressedSize;
+    }
+
+    /**
+     * @return {@code true} if this entry is a directory, {@code false} otherwise
+     */
+    boolean isDirectory()
+    {
+        return this.name.endsWith("/");
+    }
+
+    /**
+     * Writes the compressed content to the given output stream.
+     * 
+     * @param output where to write the compressed content
+     * @throws IOException if writing the compressed content fails
+     */
+    void writeDataTo(OutputStream output) throws IOException
+    {
+        if (this.data != null) {
+            this.data.writeTo(output);
+        }
+    }
+
+    /**
+     * Releases the compressed content.
+     */
+    void delete()
+    {
+        if (this.data != null) {
+            IOUtils.closeQuietly(this.data);
+            if (!this.data.isInMemory()) {
+                File file = this.data.getFile();
+                if (file != null && file.exists() && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+            this.data = null;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.filemanager.Document;
+import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileSystem;
+import org.xwiki.filemanager.Folder;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Wraps the {@link FileSystem} used by a job in order to measure and throttle (see {@link WriteThrottle}) the writes.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+class ThrottledFileSystem implements FileSystem
+{
+    /**
+     * The wrapped file system.
+     */
+    private final FileSystem fileSystem;
+
+    /**
+     * The throttle.
+     */
+    private final WriteThrottle throttle;
+
+    /**
+     * Wraps the given file system.
+     * 
+     * @param fileSystem the file system to wrap
+     * @param throttle the throttle
+     */
+    ThrottledFileSystem(FileSystem fileSystem, WriteThrottle throttle)
+    {
+        this.fileSystem = fileSystem;
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return the wrapped file system
+     */
+    FileSystem getFileSystem()
+    {
+        return this.fileSystem;
+    }
+
+    /**
+     * Defers the throttle pauses of the current thread, e.g. while it holds a lock shared with other threads.
+     * 
+     * @see WriteThrottle#defer()
+     */
+    void deferPauses()
+    {
+        this.throttle.defer();
+    }
+
+    /**
+     * Takes the throttle pauses deferred by the current thread.
+     * 
+     * @see WriteThrottle#resume()
+     */
+    void resumePauses()
+    {
+        this.throttle.resume();
+    }
+
+    @Override
+    public Folder getFolder(DocumentReference folderReference)
+    {
+        return this.fileSystem.getFolder(folderReference);
+    }
+
+    @Override
+    public File getFile(DocumentReference fileReference)
+    {
+        return this.fileSystem.getFile(fileReference);
+    }
+
+    @Override
+    public List<Folder> getFolders(Collection<DocumentReference> folderReferences)
+    {
+        return this.fileSystem.getFolders(folderReferences);
+    }
+
+    @Override
+    public List<File> getFiles(Collection<DocumentReference> fileReferences)
+    {
+        return this.fileSystem.getFiles(fileReferences);
+    }
+
+    @Override
+    public boolean exists(DocumentReference reference)
+    {
+        return this.fileSystem.exists(reference);
+    }
+
+    @Override
+    public boolean canView(DocumentReference reference)
+    {
+        return this.fileSystem.canView(reference);
+    }
+
+    @Override
+    public boolean canEdit(DocumentReference reference)
+    {
+        return this.fileSystem.canEdit(reference);
+    }
+
+    @Override
+    public boolean canDelete(DocumentReference reference)
+    {
+        return this.fileSystem.canDelete(reference);
+    }
+
+    @Override
+    public List<DocumentReference> filterByRight(String right, Collection<DocumentReference> references)
+    {
+        return this.fileSystem.filterByRight(right, references);
+    }
+
+    @Override
+    public List<DocumentReference> hasChildFolders(Collection<DocumentReference> folderReferences)
+    {
+        return this.fileSystem.hasChildFolders(folderReferences);
+    }
+
+    @Override
+    public List<DocumentReference> hasChildFiles(Collection<DocumentReference> folderReferences)
+    {
+        return this.fileSystem.hasChildFiles(folderReferences);
+    }
+
+    @Override
+    public List<DocumentReference> findChildFiles(Collection<DocumentReference> folderReferences)
+    {
+        return this.fileSystem.findChildFiles(folderReferences);
+    }
+
+    @Override
+    public long getTotalFileSize(Collection<DocumentReference> fileReferences)
+    {
+        return this.fileSystem.getTotalFileSize(fileReferences);
+    }
+
+    @Override
+    public Map<DocumentReference, String> getVersions(Collection<DocumentReference> references)
+    {
+        return this.fileSystem.getVersions(references);
+    }
+
+    @Override
+    public void save(Document document)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.save(document);
+        this.throttle.written(startTime, 1);
+    }
+
+    @Override
+    public void saveAll(Collection<? extends Document> documents)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.saveAll(documents);
+        this.throttle.written(startTime, documents.size());
+    }
+
+    @Override
+    public void delete(DocumentReference reference)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.delete(reference);
+        this.throttle.written(startTime, 1);
+    }
+
+    @Override
+    public void deleteAll(Collection<DocumentReference> references)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.deleteAll(references);
+        this.throttle.written(startTime, references.size());
+    }
+
+    @Override
+    public void rename(DocumentReference oldReference, DocumentReference newReference)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.rename(oldReference, newReference);
+        this.throttle.written(startTime, 1);
+    }
+
+    @Override
+    public void copy(DocumentReference source, DocumentReference target)
+    {
+        long startTime = System.nanoTime();
+        this.fileSystem.copy(source, target);
+        this.throttle.written(startTime, 1);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+
+/**
+ * Slows down a file system job when saving or deleting files and folders takes longer than a given latency budget, and
+ * speeds it up again when the writes are fast. The job pauses after each write for a delay proportional to the number
+ * of written files and folders. The delay is doubled while the average write latency exceeds the budget and halved
+ * while the average write latency is below half of the budget. This class is thread safe.
+ * <p>
+ * A thread that writes while holding a lock shared with other threads should defer the pause (see {@link #defer()})
+ * until the lock is released (see {@link #resume()}), otherwise the other threads would be slowed down too.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+class WriteThrottle
+{
+    /**
+     * The first (smallest) non-zero delay, in milliseconds.
+     */
+    private static final long MIN_DELAY = 10;
+
+    /**
+     * The maximum delay, in milliseconds.
+     */
+    private static final long MAX_DELAY = 1000;
+
+    /**
+     * The maximum number of milliseconds to pause after a single write (e.g. after saving a batch of files).
+     */
+    private static final long MAX_PAUSE = 10000;
+
+    /**
+     * The weight of the last measured latency in the average latency.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * The minimum period, in nanoseconds, over which the throughput is measured.
+     */
+    private static final long THROUGHPUT_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The latency budget, in nanoseconds; {@code 0} means the writes are not throttled.
+     */
+    private final long latencyBudget;
+
+    /**
+     * Where to expose the throughput and the delay.
+     */
+    private final FileSystemJobStatus jobStatus;
+
+    /**
+     * The average write latency per file or folder, in nanoseconds; negative if no write has been measured yet.
+     */
+    private double latency = -1;
+
+    /**
+     * The number of milliseconds to pause after writing a file or folder.
+     */
+    private long delay;
+
+    /**
+     * When the current throughput period started; negative if no write has been measured yet.
+     */
+    private long periodStart = -1;
+
+    /**
+     * The number of files and folders written during the current throughput period.
+     */
+    private int periodCount;
+
+    /**
+     * How many times the pause has been deferred, and not yet resumed, by the current thread.
+     */
+    private final ThreadLocal<Integer> deferCount = new ThreadLocal<Integer>();
+
+    /**
+     * The number of milliseconds the current thread has to pause once it resumes.
+     */
+    private final ThreadLocal<Long> deferredPause = new ThreadLocal<Long>();
+
+    /**
+     * Creates a new throttle.
+     * 
+     * @param latencyBudget the maximum average number of milliseconds to write a file or folder; {@code 0} to only
+     *            measure the throughput
+     * @param jobStatus where to expose the throughput and the delay
+     */
+    WriteThrottle(long latencyBudget, FileSystemJobStatus jobStatus)
+    {
+        this.latencyBudget = TimeUnit.MILLISECONDS.toNanos(Math.max(latencyBudget, 0));
+        this.jobStatus = jobStatus;
+    }
+
+    /**
+     * Records a write and pauses the current thread if the job is throttled, unless the pause is deferred.
+     * 
+     * @param startTime the value of {@link System#nanoTime()} before the write
+     * @param count the number of written files and folders
+     */
+    void written(long startTime, int count)
+    {
+        if (count <= 0) {
+            return;
+        }
+
+        long pause;
+        synchronized (this) {
+            long now = System.nanoTime();
+            update((double) (now - startTime) / count);
+
+            if (this.periodStart < 0) {
+                this.periodStart = startTime;
+            }
+            this.periodCount += count;
+            if (now - this.periodStart >= THROUGHPUT_PERIOD) {
+                this.jobStatus.setThroughput(this.periodCount * (double) THROUGHPUT_PERIOD / (now - this.periodStart));
+                this.periodStart = now;
+                this.periodCount = 0;
+            }
+
+            pause = Math.min(this.delay * count, MAX_PAUSE);
+        }
+
+        if (this.deferCount.get() != null) {
+            Long previousPause = this.deferredPause.get();
+            this.deferredPause.set(previousPause != null ? previousPause + pause : pause);
+        } else {
+            pause(pause);
+        }
+    }
+
+    /**
+     * Defers the pauses of the current thread until {@link #resume()} is called. Calls can be nested.
+     */
+    void defer()
+    {
+        Integer count = this.deferCount.get();
+        this.deferCount.set(count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Ends a {@link #defer()} call and, if it was the outermost one, takes the pauses deferred by the current thread.
+     */
+    void resume()
+    {
+        Integer count = this.deferCount.get();
+        if (count != null && count > 1) {
+            this.deferCount.set(count - 1);
+        } else {
+            this.deferCount.remove();
+            Long pause = this.deferredPause.get();
+            this.deferredPause.remove();
+            if (pause != null) {
+                pause(Math.min(pause, MAX_PAUSE));
+            }
+        }
+    }
+
+    /**
+     * Pauses the current thread.
+     * 
+     * @param pause the number of milliseconds to pause
+     */
+    private void pause(long pause)
+    {
+        if (pause > 0) {
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                // Let the job stop.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Updates the average latency and adjusts the delay.
+     * 
+     * @param lastLatency the last measured latency per file or folder, in nanoseconds
+     */
+    private void update(double lastLatency)
+    {
+        this.latency = this.latency < 0 ? lastLatency : SMOOTHING * lastLatency + (1 - SMOOTHING) * this.latency;
+        if (this.latencyBudget == 0) {
+            return;
+        }
+
+        if (this.latency > this.latencyBudget) {
+            this.delay = this.delay == 0 ? MIN_DELAY : Math.min(this.delay * 2, MAX_DELAY);
+        } else if (this.latency < this.latencyBudget / 2.0) {
+            this.delay = this.delay / 2 < MIN_DELAY ? 0 : this.delay / 2;
+        }
+        this.jobStatus.setThrottleDelay(this.delay);
+    }
+}
@@ -39,6 +39,18 @@ public class BatchPathRequest extends AbstractRequest
      */
     public static final String PROPERTY_PATHS = "paths";
 
+    /**
+     * @see #isDryRun()
+     * @since 2.4
+     */
+    public static final String PROPERTY_DRY_RUN = "dryRun";
+
+    /**
+     * @see #getPriority()
+     * @since 2.4
+     */
+    public static final String PROPERTY_PRIORITY = "priority";
+
     /**
      * Serialization identifier.
      */
@@ -61,4 +73,45 @@ public class BatchPathRequest extends AbstractRequest
     {
         setProperty(PROPERTY_PATHS, paths);
     }
+
+    /**
+     * @return {@code true} if the job should only compute its plan (see {@link FileSystemJobStatus#getPlan()})
+     *         without modifying the file system, {@code false} otherwise
+     * @since 2.4
+     */
+    public boolean isDryRun()
+    {
+        return getProperty(PROPERTY_DRY_RUN, false);
+    }
+
+    /**
+     * Sets whether the job should only compute its plan, without modifying the file system.
+     * 
+     * @param dryRun {@code true} to only compute the job plan, {@code false} to execute the job
+     * @since 2.4
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        setProperty(PROPERTY_DRY_RUN, dryRun);
+    }
+
+    /**
+     * @return the priority class of the job
+     * @since 2.4
+     */
+    public JobPriority getPriority()
+    {
+        return getProperty(PROPERTY_PRIORITY, JobPriority.NORMAL);
+    }
+
+    /**
+     * Sets the priority class of the job.
+     * 
+     * @param priority the priority class of the job
+     * @since 2.4
+     */
+    public void setPriority(JobPriority priority)
+    {
+        setProperty(PROPERTY_PRIORITY, priority);
+    }
 }
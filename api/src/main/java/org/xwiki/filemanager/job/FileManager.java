@@ -19,6 +19,7 @@
  */
 package org.xwiki.filemanager.job;
 
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
 
@@ -92,6 +93,93 @@ public interface FileManager
      */
     String pack(Collection<Path> paths, AttachmentReference outputFileReference) throws JobException;
 
+    /**
+     * Packs the specified files and folders in a single ZIP archive that is written directly to the given output
+     * stream (e.g. the HTTP response), on the current thread. The entries are flushed as soon as they are written so
+     * the client starts receiving the archive right away, without waiting for a temporary file to be written. Only
+     * small selections of files can be streamed (see {@link #canStreamPack(Collection)}); the others must be packed by
+     * a job (see {@link #pack(Collection, AttachmentReference)}) that doesn't hold the current thread.
+     * <p>
+     * The pack job is not scheduled so it doesn't show up in the list of active jobs and its status is not stored.
+     * 
+     * @param paths the files to be packed
+     * @param outputStream where to write the ZIP archive; the stream is not closed
+     * @return the status of the pack job, after the archive has been written
+     * @throws JobException if creating the pack job fails or if the given selection can't be streamed, in which case
+     *             nothing is written to the output stream
+     * @since 2.4
+     */
+    JobStatus pack(Collection<Path> paths, OutputStream outputStream) throws JobException;
+
+    /**
+     * Checks if the specified selection can be packed while the ZIP archive is streamed (see
+     * {@link #pack(Collection, OutputStream)}). Folders can't be streamed because packing their subtree can take
+     * arbitrarily long, and the number and the total size of the files are limited by the configuration.
+     * 
+     * @param paths the files and folders to be packed
+     * @return {@code true} if the specified selection can be streamed, {@code false} if it must be packed by a job
+     * @since 2.4
+     */
+    boolean canStreamPack(Collection<Path> paths);
+
+    /**
+     * Computes the plan of a job that moves the specified files and folders to the given destination, without
+     * modifying the file system (dry run).
+     * 
+     * @param paths the files and folders to move
+     * @param destination where to move the specified files and folders
+     * @return the work that the move job would do
+     * @throws JobException if computing the plan fails
+     * @since 2.4
+     */
+    JobPlan planMove(Collection<Path> paths, Path destination) throws JobException;
+
+    /**
+     * Computes the plan of a job that copies the specified files and folders to the given destination, without
+     * modifying the file system (dry run).
+     * 
+     * @param paths the files and folders to copy
+     * @param destination where to copy the specified files and folders
+     * @return the work that the copy job would do
+     * @throws JobException if computing the plan fails
+     * @since 2.4
+     */
+    JobPlan planCopy(Collection<Path> paths, Path destination) throws JobException;
+
+    /**
+     * Computes the plan of a job that deletes the specified files and folders, without modifying the file system (dry
+     * run).
+     * 
+     * @param paths the files and folders to delete
+     * @return the work that the delete job would do
+     * @throws JobException if computing the plan fails
+     * @since 2.4
+     */
+    JobPlan planDelete(Collection<Path> paths) throws JobException;
+
+    /**
+     * Computes the plan of a job that packs the specified files and folders, without writing the ZIP archive (dry
+     * run).
+     * 
+     * @param paths the files and folders to be packed
+     * @return the work that the pack job would do, including the total size of the packed files
+     * @throws JobException if computing the plan fails
+     * @since 2.4
+     */
+    JobPlan planPack(Collection<Path> paths) throws JobException;
+
+    /**
+     * Cancels a job that is running or is pending for execution. The job stops between two steps, leaving the file
+     * system in a consistent state (the files and folders processed so far are not restored), and its status is marked
+     * as canceled (see {@link FileSystemJobStatus#isCanceled()}). A canceled pack job deletes its partial ZIP archive.
+     * 
+     * @param jobId the id of the job to cancel
+     * @return {@code true} if the job has been canceled, {@code false} if the job is not active or if it was
+     *         scheduled by a different user
+     * @since 2.4
+     */
+    boolean cancel(String jobId);
+
     /**
      * @param jobId the job whose status to return
      * @return the status of the specified job
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.job;
+
+import java.io.Serializable;
+
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.stability.Unstable;
+
+/**
+ * The status of a file system job.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public class FileSystemJobStatus extends JobStatusAdapter implements Serializable
+{
+    /**
+     * Serialization identifier.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The work that the job is going to do.
+     */
+    private JobPlan plan;
+
+    /**
+     * Whether the job has been canceled.
+     */
+    private volatile boolean canceled;
+
+    /**
+     * The number of files and folders written (saved or deleted) per second.
+     */
+    private volatile double throughput;
+
+    /**
+     * The number of milliseconds the job pauses after writing a file or folder.
+     */
+    private volatile long throttleDelay;
+
+    /**
+     * Creates a new job status by extending the provided (default) job status.
+     * 
+     * @param jobStatus the (default) job status to extend
+     */
+    public FileSystemJobStatus(JobStatus jobStatus)
+    {
+        super(jobStatus);
+    }
+
+    /**
+     * @return the work that the job is going to do, {@code null} if it hasn't been computed yet
+     */
+    public JobPlan getPlan()
+    {
+        return plan;
+    }
+
+    /**
+     * Sets the work that the job is going to do.
+     * 
+     * @param plan the job plan
+     */
+    public void setPlan(JobPlan plan)
+    {
+        this.plan = plan;
+    }
+
+    /**
+     * @return {@code true} if the job has been canceled before doing all its work, {@code false} otherwise
+     */
+    public boolean isCanceled()
+    {
+        return canceled;
+    }
+
+    /**
+     * Sets whether the job has been canceled.
+     * 
+     * @param canceled {@code true} if the job has been canceled
+     */
+    public void setCanceled(boolean canceled)
+    {
+        this.canceled = canceled;
+    }
+
+    /**
+     * @return the number of files and folders written (saved or deleted) per second, measured recently
+     */
+    public double getThroughput()
+    {
+        return throughput;
+    }
+
+    /**
+     * Sets the number of files and folders written per second.
+     * 
+     * @param throughput the current write throughput
+     */
+    public void setThroughput(double throughput)
+    {
+        this.throughput = throughput;
+    }
+
+    /**
+     * @return the number of milliseconds the job pauses after writing a file or folder in order to keep the write
+     *         latency under the configured budget (see
+     *         {@link org.xwiki.filemanager.FileManagerConfiguration#getWriteLatencyBudget()}); {@code 0} means the job
+     *         is not throttled
+     */
+    public long getThrottleDelay()
+    {
+        return throttleDelay;
+    }
+
+    /**
+     * Sets the number of milliseconds the job pauses after writing a file or folder.
+     * 
+     * @param throttleDelay the current throttle delay
+     */
+    public void setThrottleDelay(long throttleDelay)
+    {
+        this.throttleDelay = throttleDelay;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.job;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.filemanager.Path;
+import org.xwiki.stability.Unstable;
+
+/**
+ * The work that a file system job is going to do, computed before the job starts modifying the file system.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public class JobPlan implements Serializable
+{
+    /**
+     * Serialization identifier.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of folders processed by the job.
+     */
+    private int folderCount;
+
+    /**
+     * The number of files processed by the job.
+     */
+    private int fileCount;
+
+    /**
+     * The total size (in bytes) of the files processed by the job.
+     */
+    private long byteCount;
+
+    /**
+     * The files and folders from the destination that have the same name as the files and folders processed by the
+     * job.
+     */
+    private final List<Path> conflicts = new ArrayList<Path>();
+
+    /**
+     * @return the number of folders processed by the job
+     */
+    public int getFolderCount()
+    {
+        return folderCount;
+    }
+
+    /**
+     * Sets the number of folders processed by the job.
+     * 
+     * @param folderCount the number of folders
+     */
+    public void setFolderCount(int folderCount)
+    {
+        this.folderCount = folderCount;
+    }
+
+    /**
+     * @return the number of files processed by the job
+     */
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * Sets the number of files processed by the job.
+     * 
+     * @param fileCount the number of files
+     */
+    public void setFileCount(int fileCount)
+    {
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * @return the total number of documents (files and folders) processed by the job
+     */
+    public int getDocumentCount()
+    {
+        return folderCount + fileCount;
+    }
+
+    /**
+     * @return the total size (in bytes) of the files processed by the job, computed only by the jobs that read the
+     *         file content (e.g. pack)
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Sets the total size of the files processed by the job.
+     * 
+     * @param byteCount the total size, in bytes
+     */
+    public void setByteCount(long byteCount)
+    {
+        this.byteCount = byteCount;
+    }
+
+    /**
+     * @return the paths to the files and folders from the destination that have the same name as the files and folders
+     *         moved or copied by the job (the files are either overwritten or skipped and the folders are merged)
+     */
+    public List<Path> getConflicts()
+    {
+        return conflicts;
+    }
+}
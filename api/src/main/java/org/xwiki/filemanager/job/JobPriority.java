@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.job;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The priority classes of the file system jobs. The jobs with a higher priority are executed first, but the jobs that
+ * wait for a long time are promoted so that they are not delayed indefinitely.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+@Unstable
+public enum JobPriority
+{
+    /**
+     * Small operations that the user is waiting for, such as renaming or moving a file.
+     */
+    INTERACTIVE,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Long running operations, such as packing or copying entire folders. Bulk jobs never take all the job threads.
+     */
+    BULK
+}
@@ -19,8 +19,6 @@
  */
 package org.xwiki.filemanager.job;
 
-import java.io.Serializable;
-
 import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.stability.Unstable;
 
@@ -31,7 +29,7 @@ import org.xwiki.stability.Unstable;
  * @since 2.0M2
  */
 @Unstable
-public class PackJobStatus extends JobStatusAdapter implements Serializable
+public class PackJobStatus extends FileSystemJobStatus
 {
     /**
      * Serialization identifier.
@@ -19,6 +19,8 @@
  */
 package org.xwiki.filemanager.job;
 
+import java.util.zip.Deflater;
+
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.stability.Unstable;
 
@@ -37,6 +39,12 @@ public class PackRequest extends BatchPathRequest
      */
     public static final String PROPERTY_OUTPUT_FILE_REFERENCE = "output.fileReference";
 
+    /**
+     * @see #getCompressionLevel()
+     * @since 2.4
+     */
+    public static final String PROPERTY_COMPRESSION_LEVEL = "compressionLevel";
+
     /**
      * Serialization identifier.
      */
@@ -67,4 +75,28 @@ public class PackRequest extends BatchPathRequest
     {
         setProperty(PROPERTY_OUTPUT_FILE_REFERENCE, outputFileReference);
     }
+
+    /**
+     * @return the level (from 0 to 9) used to compress the packed files; {@code 0} means the files are stored without
+     *         compression and {@link Deflater#DEFAULT_COMPRESSION} (the default) lets the compressor choose the best
+     *         trade-off between speed and size; files that are already compressed (e.g. JPEG images or MP4 videos) are
+     *         always stored without compression
+     * @since 2.4
+     */
+    public int getCompressionLevel()
+    {
+        return getProperty(PROPERTY_COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Sets the level used to compress the packed files.
+     * 
+     * @param compressionLevel the compression level, from 0 (no compression) to 9 (best compression), or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     * @since 2.4
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        setProperty(PROPERTY_COMPRESSION_LEVEL, compressionLevel);
+    }
 }
@@ -19,10 +19,13 @@
  */
 package org.xwiki.filemanager.script;
 
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
@@ -32,10 +35,13 @@ import org.apache.commons.lang3.StringUtils;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.filemanager.internal.reference.DocumentNameSequence;
 import org.xwiki.filemanager.job.BatchPathRequest;
 import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.filemanager.reference.UniqueDocumentReferenceGenerator;
 import org.xwiki.job.JobException;
 import org.xwiki.job.event.status.JobStatus;
@@ -94,6 +100,18 @@ public class DriveScriptService implements ScriptService
     @Inject
     private UniqueDocumentReferenceGenerator uniqueDocRefGenerator;
 
+    /**
+     * Used to check if folders have child folders.
+     */
+    @Inject
+    private FileSystem fileSystem;
+
+    /**
+     * Used to answer questions about the folder hierarchy.
+     */
+    @Inject
+    private DriveHierarchyIndex driveHierarchyIndex;
+
     /**
      * Schedules a job to move the specified files and folders to the given destination.
      * 
@@ -178,6 +196,136 @@ public class DriveScriptService implements ScriptService
         }
     }
 
+    /**
+     * Packs the specified files and folders into a single ZIP archive that is written directly to the given output
+     * stream (e.g. {@code $response.outputStream}) while the files are read. The current request is held until the
+     * archive is written so only small selections of files can be streamed (see {@link #canStreamPack(Collection)}).
+     * 
+     * @param paths the files to be packed
+     * @param outputStream where to write the ZIP archive
+     * @return the status of the pack job, after the archive has been written
+     * @since 2.4
+     */
+    public JobStatus pack(Collection<String> paths, OutputStream outputStream)
+    {
+        setError(null);
+
+        try {
+            return fileManager.pack(asPath(paths), outputStream);
+        } catch (JobException e) {
+            setError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the specified selection can be packed while the ZIP archive is streamed (see
+     * {@link #pack(Collection, OutputStream)}). Selections that include folders, too many files or too much content
+     * must be packed by a job (see {@link #pack(Collection, AttachmentReference)}).
+     * 
+     * @param paths the files and folders to be packed
+     * @return {@code true} if the specified selection can be streamed, {@code false} otherwise
+     * @since 2.4
+     */
+    public boolean canStreamPack(Collection<String> paths)
+    {
+        return fileManager.canStreamPack(asPath(paths));
+    }
+
+    /**
+     * Computes the work that a job moving the specified files and folders to the given destination would do, without
+     * modifying the drive.
+     * 
+     * @param paths the files and folders to move
+     * @param destination where to move the specified files and folders
+     * @return the plan of the move job
+     * @since 2.4
+     */
+    public JobPlan planMove(Collection<String> paths, String destination)
+    {
+        setError(null);
+
+        try {
+            return fileManager.planMove(asPath(paths), asPath(destination));
+        } catch (JobException e) {
+            setError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the work that a job copying the specified files and folders to the given destination would do, without
+     * modifying the drive.
+     * 
+     * @param paths the files and folders to copy
+     * @param destination where to copy the specified files and folders
+     * @return the plan of the copy job
+     * @since 2.4
+     */
+    public JobPlan planCopy(Collection<String> paths, String destination)
+    {
+        setError(null);
+
+        try {
+            return fileManager.planCopy(asPath(paths), asPath(destination));
+        } catch (JobException e) {
+            setError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the work that a job deleting the specified files and folders would do, without modifying the drive.
+     * 
+     * @param paths the files and folders to delete
+     * @return the plan of the delete job
+     * @since 2.4
+     */
+    public JobPlan planDelete(Collection<String> paths)
+    {
+        setError(null);
+
+        try {
+            return fileManager.planDelete(asPath(paths));
+        } catch (JobException e) {
+            setError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the work that a job packing the specified files and folders would do, including the total size of the
+     * packed files, without writing the ZIP archive.
+     * 
+     * @param paths the files and folders to be packed
+     * @return the plan of the pack job
+     * @since 2.4
+     */
+    public JobPlan planPack(Collection<String> paths)
+    {
+        setError(null);
+
+        try {
+            return fileManager.planPack(asPath(paths));
+        } catch (JobException e) {
+            setError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Cancels a file system job that is running or is pending for execution.
+     * 
+     * @param jobId the id of the job to cancel
+     * @return {@code true} if the job has been canceled, {@code false} if the job is not active or if it was
+     *         scheduled by a different user
+     * @since 2.4
+     */
+    public boolean cancel(String jobId)
+    {
+        return fileManager.cancel(jobId);
+    }
+
     /**
      * @param jobId the job whose status to return
      * @return the status of the specified job
@@ -213,6 +361,58 @@ public class DriveScriptService implements ScriptService
         return this.uniqueDocRefGenerator.generate(getCurrentDriveReference(), new DocumentNameSequence(name));
     }
 
+    /**
+     * Checks which of the specified folders from the current drive have child folders. This is meant to be used when
+     * rendering a folder tree, to know which folders can be expanded, and it is faster than checking each folder
+     * separately.
+     * 
+     * @param folderIds the ids of the folders to check
+     * @return the ids of the specified folders that have at least one child folder
+     * @since 2.4
+     */
+    public List<String> hasChildFolders(Collection<String> folderIds)
+    {
+        List<DocumentReference> folderReferences = new ArrayList<DocumentReference>();
+        for (String folderId : folderIds) {
+            folderReferences.add(new DocumentReference(folderId, getCurrentDriveReference()));
+        }
+        return getNames(this.fileSystem.hasChildFolders(folderReferences));
+    }
+
+    /**
+     * @param reference a folder or drive reference, from the current drive
+     * @return the ids of the specified folder and of its ancestors, in this order, ending with the drive if the folder
+     *         is not an orphan; the path stops before the first folder that the current user can't view; an empty list
+     *         if the specified document is neither a folder nor a drive, or if it's not from the current drive
+     * @since 2.4
+     */
+    public List<String> getPath(DocumentReference reference)
+    {
+        if (!getCurrentDriveReference().equals(reference.getLastSpaceReference())) {
+            return new ArrayList<String>();
+        }
+
+        List<DocumentReference> path = this.driveHierarchyIndex.getPath(reference);
+        Set<DocumentReference> viewable =
+            new HashSet<DocumentReference>(this.fileSystem.filterByRight(FileSystem.RIGHT_VIEW, path));
+        int end = 0;
+        while (end < path.size() && viewable.contains(path.get(end))) {
+            end++;
+        }
+        return getNames(path.subList(0, end));
+    }
+
+    /**
+     * @return the ids of the folders from the current drive that have no parent or whose parent is neither a folder nor
+     *         a drive, and that the current user can view
+     * @since 2.4
+     */
+    public List<String> getOrphanFolders()
+    {
+        return getNames(this.fileSystem.filterByRight(FileSystem.RIGHT_VIEW,
+            this.driveHierarchyIndex.getOrphanFolders(getCurrentDriveReference())));
+    }
+
     /**
      * Get the error generated while performing the previously called action.
      * 
@@ -287,6 +487,19 @@ public class DriveScriptService implements ScriptService
         return paths;
     }
 
+    /**
+     * @param references file or folder references
+     * @return the ids of the specified files or folders
+     */
+    private List<String> getNames(List<DocumentReference> references)
+    {
+        List<String> names = new ArrayList<String>();
+        for (DocumentReference reference : references) {
+            names.add(reference.getName());
+        }
+        return names;
+    }
+
     /**
      * @param jobId specifies a file system job
      * @return {@code true} if the specified job targets the current drive, {@code false} otherwise
@@ -19,24 +19,48 @@
  */
 package org.xwiki.filemanager.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import javax.inject.Provider;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.cache.Cache;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+import com.xpn.xwiki.objects.PropertyInterface;
+import com.xpn.xwiki.store.XWikiCacheStore;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.user.api.XWikiRightService;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 /**
@@ -106,6 +130,209 @@ public class DefaultFileSystemTest
         verify(expectedFile).setDocument(fileDocument);
     }
 
+    @Test
+    public void getFolders() throws Exception
+    {
+        DocumentReference aliceReference = new DocumentReference("wiki", "Drive", "Alice");
+        DocumentReference bobReference = new DocumentReference("wiki", "Drive", "Bob");
+
+        XWikiDocument aliceDocument = mock(XWikiDocument.class, "alice");
+        when(xcontext.getWiki().getDocument(aliceReference, xcontext)).thenReturn(aliceDocument);
+        when(aliceDocument.isNew()).thenReturn(true);
+
+        XWikiDocument bobDocument = mock(XWikiDocument.class, "bob");
+        when(xcontext.getWiki().getDocument(bobReference, xcontext)).thenReturn(bobDocument);
+        when(bobDocument.isNew()).thenReturn(false);
+
+        DefaultFolder bob = spy(new DefaultFolder());
+        when(componentManager.getInstance(Folder.class)).thenReturn(bob);
+
+        List<Folder> folders = mocker.getComponentUnderTest().getFolders(Arrays.asList(aliceReference, bobReference));
+
+        assertEquals(Collections.singletonList(bob), folders);
+        verify(bob).setDocument(bobDocument);
+        // The existence of the folders is checked when they are loaded, without an extra query.
+        QueryManager queryManager = mocker.getInstance(QueryManager.class);
+        verify(queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void getFolderWithCaching() throws Exception
+    {
+        DocumentReference folderReference = new DocumentReference("wiki", "Drive", "Folder");
+        XWikiDocument folderDocument = mock(XWikiDocument.class);
+        when(xcontext.getWiki().getDocument(folderReference, xcontext)).thenReturn(folderDocument);
+        when(folderDocument.isNew()).thenReturn(false);
+        when(folderDocument.getDocumentReference()).thenReturn(folderReference);
+        XWikiDocument clonedDocument = mock(XWikiDocument.class, "cloned");
+        when(clonedDocument.getDocumentReference()).thenReturn(folderReference);
+        when(folderDocument.clone()).thenReturn(clonedDocument);
+
+        when(componentManager.getInstance(Folder.class)).thenAnswer(new Answer<Folder>()
+        {
+            @Override
+            public Folder answer(InvocationOnMock invocation) throws Throwable
+            {
+                return new DefaultFolder();
+            }
+        });
+
+        DefaultFileSystem fileSystem = (DefaultFileSystem) mocker.getComponentUnderTest();
+        assertTrue(fileSystem.startCaching());
+        assertFalse(fileSystem.startCaching());
+        try {
+            DefaultFolder folder = (DefaultFolder) fileSystem.getFolder(folderReference);
+            assertSame(folderDocument, folder.getDocument());
+            verify(xcontext.getWiki()).getDocument(folderReference, xcontext);
+
+            // The changes that are not saved don't leak into the next lookups.
+            folder.setName("Other");
+            DefaultFolder otherFolder = (DefaultFolder) fileSystem.getFolder(folderReference);
+            assertNotSame(folder, otherFolder);
+            assertSame(folderDocument, otherFolder.getDocument());
+            verify(xcontext.getWiki()).getDocument(folderReference, xcontext);
+
+            // Saving the folder invalidates the cache.
+            fileSystem.save(folder);
+            fileSystem.getFolder(folderReference);
+            verify(xcontext.getWiki(), times(2)).getDocument(folderReference, xcontext);
+        } finally {
+            fileSystem.stopCaching();
+        }
+
+        fileSystem.getFolder(folderReference);
+        fileSystem.getFolder(folderReference);
+        verify(xcontext.getWiki(), times(4)).getDocument(folderReference, xcontext);
+    }
+
+    @Test
+    public void getFolderWithSharedCache() throws Exception
+    {
+        final DocumentReference folderReference = new DocumentReference("wiki", "Drive", "Folder");
+        XWikiDocument folderDocument = mock(XWikiDocument.class);
+        when(xcontext.getWiki().getDocument(folderReference, xcontext)).thenReturn(folderDocument);
+        when(folderDocument.isNew()).thenReturn(false);
+        when(folderDocument.getDocumentReference()).thenReturn(folderReference);
+        XWikiDocument clonedDocument = mock(XWikiDocument.class, "cloned");
+        when(clonedDocument.getDocumentReference()).thenReturn(folderReference);
+        when(folderDocument.clone()).thenReturn(clonedDocument);
+
+        when(componentManager.getInstance(Folder.class)).thenAnswer(new Answer<Folder>()
+        {
+            @Override
+            public Folder answer(InvocationOnMock invocation) throws Throwable
+            {
+                return new DefaultFolder();
+            }
+        });
+
+        final DefaultFileSystem fileSystem = (DefaultFileSystem) mocker.getComponentUnderTest();
+        fileSystem.startCaching();
+        try {
+            fileSystem.getFolder(folderReference);
+
+            // A worker thread that shares the cache saves the folder.
+            final FileSystemCache sharedCache = fileSystem.getCache();
+            Thread worker = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    fileSystem.startCaching(sharedCache);
+                    try {
+                        fileSystem.save(fileSystem.getFolder(folderReference));
+                    } finally {
+                        fileSystem.stopCaching();
+                    }
+                }
+            });
+            worker.start();
+            worker.join();
+
+            // The job thread doesn't get the stale cached document.
+            fileSystem.getFolder(folderReference);
+            verify(xcontext.getWiki(), times(2)).getDocument(folderReference, xcontext);
+        } finally {
+            fileSystem.stopCaching();
+        }
+    }
+
+    @Test
+    public void cacheIsBounded()
+    {
+        FileSystemCache cache = new FileSystemCache();
+        DocumentReference firstReference = new DocumentReference("wiki", "Drive", "Folder0");
+        for (int i = 0; i <= FileSystemCache.MAX_DOCUMENTS; i++) {
+            XWikiDocument document = mock(XWikiDocument.class, "Folder" + i);
+            when(document.getDocumentReference()).thenReturn(new DocumentReference("wiki", "Drive", "Folder" + i));
+            cache.putDocument(document);
+            if (i == 1) {
+                // Use the first document so that the second one becomes the least recently used.
+                assertNotNull(cache.getDocument(firstReference));
+            }
+        }
+
+        assertNotNull(cache.getDocument(firstReference));
+        assertNull(cache.getDocument(new DocumentReference("wiki", "Drive", "Folder1")));
+    }
+
+    @Test
+    public void filterByRight() throws Exception
+    {
+        DocumentReference aliceReference = new DocumentReference("wiki", "Drive", "Alice");
+        DocumentReference bobReference = new DocumentReference("wiki", "Drive", "Bob");
+
+        XWikiRightService rightService = mock(XWikiRightService.class);
+        when(xcontext.getWiki().getRightService()).thenReturn(rightService);
+        when(xcontext.getUser()).thenReturn("XWiki.mflorea");
+        when(rightService.hasAccessLevel("edit", "XWiki.mflorea", aliceReference.toString(), xcontext)).thenReturn(
+            false);
+        when(rightService.hasAccessLevel("edit", "XWiki.mflorea", bobReference.toString(), xcontext)).thenReturn(true);
+
+        DefaultFileSystem fileSystem = (DefaultFileSystem) mocker.getComponentUnderTest();
+        List<DocumentReference> references = Arrays.asList(aliceReference, bobReference);
+        fileSystem.startCaching();
+        try {
+            assertEquals(Collections.singletonList(bobReference), fileSystem.filterByRight("edit", references));
+            assertEquals(Collections.singletonList(bobReference), fileSystem.filterByRight("edit", references));
+            assertTrue(fileSystem.canEdit(bobReference));
+        } finally {
+            fileSystem.stopCaching();
+        }
+
+        verify(rightService).hasAccessLevel("edit", "XWiki.mflorea", aliceReference.toString(), xcontext);
+        verify(rightService).hasAccessLevel("edit", "XWiki.mflorea", bobReference.toString(), xcontext);
+    }
+
+    @Test
+    public void hasChildFolders() throws Exception
+    {
+        DocumentReference aliceReference = new DocumentReference("wiki", "Drive", "Alice");
+        DocumentReference bobReference = new DocumentReference("wiki", "Drive", "Bob");
+        DocumentReference carolReference = new DocumentReference("wiki", "Other", "Carol");
+
+        EntityReferenceSerializer<String> localEntityReferenceSerializer =
+            mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(localEntityReferenceSerializer.serialize(aliceReference)).thenReturn("Drive.Alice");
+        when(localEntityReferenceSerializer.serialize(bobReference)).thenReturn("Drive.Bob");
+        when(localEntityReferenceSerializer.serialize(carolReference)).thenReturn("Other.Carol");
+
+        QueryManager queryManager = mocker.getInstance(QueryManager.class);
+        Query driveQuery = mock(Query.class, "drive");
+        Query otherQuery = mock(Query.class, "other");
+        when(queryManager.createQuery(anyString(), eq(Query.XWQL))).thenReturn(driveQuery, otherQuery);
+        when(driveQuery.execute()).thenReturn(Collections.<Object>singletonList("Drive.Bob"));
+        when(otherQuery.execute()).thenReturn(Collections.<Object>singletonList("Other.Carol"));
+
+        assertEquals(Arrays.asList(bobReference, carolReference), mocker.getComponentUnderTest().hasChildFolders(
+            Arrays.asList(aliceReference, bobReference, carolReference)));
+
+        verify(driveQuery).bindValue("space", "Drive");
+        verify(driveQuery).bindValue("parents", Arrays.asList("Drive.Alice", "Drive.Bob"));
+        verify(otherQuery).bindValue("space", "Other");
+        verify(otherQuery).setWiki("wiki");
+    }
+
     @Test
     public void saveFile() throws Exception
     {
@@ -116,6 +343,7 @@ public class DefaultFileSystemTest
 
         DefaultFile file = spy(new DefaultFile());
         file.setDocument(xdoc);
+        file.getClonedDocument().setTitle("File");
 
         mocker.getComponentUnderTest().save(file);
 
@@ -124,6 +352,140 @@ public class DefaultFileSystemTest
         verify(xcontext.getWiki()).saveDocument(xdoc, "", false, xcontext);
     }
 
+    @Test
+    public void saveFileWithoutChanges() throws Exception
+    {
+        XWikiDocument xdoc = mock(XWikiDocument.class);
+        when(xdoc.isMetaDataDirty()).thenReturn(true);
+
+        DefaultFile file = new DefaultFile();
+        file.setDocument(xdoc);
+
+        mocker.getComponentUnderTest().save(file);
+
+        verify(xdoc, never()).clone();
+        verify(xcontext.getWiki(), never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+    }
+
+    @Test
+    public void saveFileWithTagChangesOnly() throws Exception
+    {
+        DocumentReference fileReference = new DocumentReference("wiki", "Drive", "File");
+        DocumentReference aliceReference = new DocumentReference("wiki", "Drive", "Alice");
+
+        // Changing the tags doesn't mark the document as dirty.
+        XWikiDocument xdoc = mock(XWikiDocument.class);
+        when(xdoc.clone()).thenReturn(xdoc);
+        when(xdoc.getDocumentReference()).thenReturn(fileReference);
+        when(xdoc.getRelativeParentReference()).thenReturn(
+            aliceReference.removeParent(aliceReference.getWikiReference()));
+
+        BaseObject tagObject = mock(BaseObject.class);
+        when(xdoc.getXObject(DefaultFile.TAG_CLASS_REFERENCE)).thenReturn(tagObject);
+        BaseProperty tagsProperty = mock(BaseProperty.class, withSettings().extraInterfaces(PropertyInterface.class));
+        when(tagObject.get(DefaultFile.PROPERTY_TAGS)).thenReturn((PropertyInterface) tagsProperty);
+        when(tagsProperty.getValue()).thenReturn(Arrays.asList("Alice"));
+
+        DefaultFile file = new DefaultFile();
+        file.setDocument(xdoc);
+        // Copy the file to a second folder. The first parent doesn't change.
+        file.getParentReferences().add(new DocumentReference("wiki", "Drive", "Bob"));
+
+        mocker.getComponentUnderTest().save(file);
+
+        verify(tagObject).setStringListValue(DefaultFile.PROPERTY_TAGS, Arrays.asList("Alice", "Bob"));
+        verify(xdoc, never()).setParentReference(any(EntityReference.class));
+        verify(xcontext.getWiki()).saveDocument(xdoc, "", false, xcontext);
+    }
+
+    @Test
+    public void saveAll() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getSaveBatchSize()).thenReturn(2);
+
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(xcontext.getWiki().getHibernateStore()).thenReturn(store);
+        when(store.beginTransaction(xcontext)).thenReturn(true);
+        when(xcontext.getDatabase()).thenReturn("current");
+
+        List<Folder> folders = new ArrayList<Folder>();
+        for (String name : Arrays.asList("Alice", "Bob", "Carol")) {
+            XWikiDocument xdoc = mock(XWikiDocument.class, name);
+            when(xdoc.clone()).thenReturn(xdoc);
+            when(xdoc.getDocumentReference()).thenReturn(new DocumentReference("wiki", "Drive", name));
+            DefaultFolder folder = new DefaultFolder();
+            folder.setDocument(xdoc);
+            folder.setName(name);
+            folders.add(folder);
+        }
+
+        mocker.getComponentUnderTest().saveAll(folders);
+
+        // Two batches: Alice and Bob, then Carol.
+        verify(store, times(2)).beginTransaction(xcontext);
+        verify(store, times(2)).endTransaction(xcontext, true);
+        verify(xcontext, times(2)).setDatabase("wiki");
+        verify(xcontext, times(2)).setDatabase("current");
+        for (Folder folder : folders) {
+            verify(xcontext.getWiki()).saveDocument(((DefaultFolder) folder).getDocument(), "", false, xcontext);
+        }
+    }
+
+    @Test
+    public void saveAllAfterRollback() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getSaveBatchSize()).thenReturn(3);
+
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(xcontext.getWiki().getHibernateStore()).thenReturn(store);
+        when(store.beginTransaction(xcontext)).thenReturn(true);
+
+        XWikiCacheStore cacheStore = mock(XWikiCacheStore.class);
+        when(xcontext.getWiki().getStore()).thenReturn(cacheStore);
+        Cache<XWikiDocument> documentCache = mock(Cache.class, "documents");
+        when(cacheStore.getCache()).thenReturn(documentCache);
+        Cache<Boolean> pageExistCache = mock(Cache.class, "pageExist");
+        when(cacheStore.getPageExistCache()).thenReturn(pageExistCache);
+
+        List<Folder> folders = new ArrayList<Folder>();
+        for (String name : Arrays.asList("Alice", "Bob", "Carol")) {
+            XWikiDocument xdoc = mock(XWikiDocument.class, name);
+            when(xdoc.clone()).thenReturn(xdoc);
+            when(xdoc.getDocumentReference()).thenReturn(new DocumentReference("wiki", "Drive", name));
+            when(cacheStore.getKey(xdoc, xcontext)).thenReturn("wiki:Drive." + name);
+            DefaultFolder folder = new DefaultFolder();
+            folder.setDocument(xdoc);
+            folder.setName(name);
+            folders.add(folder);
+        }
+
+        // Saving Bob fails the first time so the transaction is rolled back.
+        XWiki wiki = xcontext.getWiki();
+        XWikiDocument bobDocument = ((DefaultFolder) folders.get(1)).getDocument();
+        doThrow(new XWikiException()).doNothing().when(wiki).saveDocument(bobDocument, "", false, xcontext);
+
+        mocker.getComponentUnderTest().saveAll(folders);
+
+        verify(store).endTransaction(xcontext, false);
+
+        // The rolled back documents are evicted from the caches before they are saved again.
+        for (String name : Arrays.asList("Alice", "Bob", "Carol")) {
+            verify(documentCache).remove("wiki:Drive." + name);
+            verify(pageExistCache).remove("wiki:Drive." + name);
+        }
+        DriveHierarchyIndex hierarchyIndex = mocker.getInstance(DriveHierarchyIndex.class);
+        verify(hierarchyIndex).invalidate(new SpaceReference("Drive", new WikiReference("wiki")));
+
+        // Alice is saved again, Bob is saved successfully the second time and Carol is saved for the first time.
+        for (Folder folder : folders) {
+            verify(wiki, times(folder == folders.get(2) ? 1 : 2)).saveDocument(((DefaultFolder) folder).getDocument(),
+                "", false, xcontext);
+        }
+    }
+
     /**
      * @see "FILEMAN-105: Files from File manager disappear after renaming the folder"
      */
@@ -160,6 +522,58 @@ public class DefaultFileSystemTest
         verify(xcontext.getWiki()).deleteDocument(clonedDocument, xcontext);
     }
 
+    @Test
+    public void deleteAllAfterRollback() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getDeleteBatchSize()).thenReturn(2);
+
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(xcontext.getWiki().getHibernateStore()).thenReturn(store);
+        when(store.beginTransaction(xcontext)).thenReturn(true);
+
+        XWikiCacheStore cacheStore = mock(XWikiCacheStore.class);
+        when(xcontext.getWiki().getStore()).thenReturn(cacheStore);
+        Cache<XWikiDocument> documentCache = mock(Cache.class, "documents");
+        when(cacheStore.getCache()).thenReturn(documentCache);
+        Cache<Boolean> pageExistCache = mock(Cache.class, "pageExist");
+        when(cacheStore.getPageExistCache()).thenReturn(pageExistCache);
+
+        XWiki wiki = xcontext.getWiki();
+        List<DocumentReference> references = new ArrayList<DocumentReference>();
+        List<XWikiDocument> clones = new ArrayList<XWikiDocument>();
+        for (String name : Arrays.asList("Alice", "Bob")) {
+            DocumentReference reference = new DocumentReference("wiki", "Drive", name);
+            XWikiDocument xdoc = mock(XWikiDocument.class, name);
+            XWikiDocument clone = mock(XWikiDocument.class, name + "Clone");
+            when(xdoc.clone()).thenReturn(clone);
+            when(xdoc.getDocumentReference()).thenReturn(reference);
+            when(wiki.getDocument(reference, xcontext)).thenReturn(xdoc);
+            when(cacheStore.getKey(xdoc, xcontext)).thenReturn("wiki:Drive." + name);
+            references.add(reference);
+            clones.add(clone);
+        }
+
+        // Deleting Bob fails the first time so the transaction is rolled back.
+        doThrow(new XWikiException()).doNothing().when(wiki).deleteDocument(clones.get(1), xcontext);
+
+        mocker.getComponentUnderTest().deleteAll(references);
+
+        verify(store).endTransaction(xcontext, false);
+
+        // The rolled back documents are evicted from the caches before they are deleted again.
+        for (String name : Arrays.asList("Alice", "Bob")) {
+            verify(documentCache).remove("wiki:Drive." + name);
+            verify(pageExistCache).remove("wiki:Drive." + name);
+        }
+        DriveHierarchyIndex hierarchyIndex = mocker.getInstance(DriveHierarchyIndex.class);
+        verify(hierarchyIndex).invalidate(new SpaceReference("Drive", new WikiReference("wiki")));
+
+        for (XWikiDocument clone : clones) {
+            verify(wiki, times(2)).deleteDocument(clone, xcontext);
+        }
+    }
+
     @Test
     public void copy() throws Exception
     {
@@ -30,6 +30,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.xwiki.filemanager.File;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.rendering.syntax.Syntax;
@@ -161,12 +162,39 @@ public class DefaultFileTest
         verify(file.getDocument()).setParentReference(firstParent.removeParent(firstParent.getWikiReference()));
     }
 
+    @Test
+    public void updateParentReferencesWithoutChanges() throws Exception
+    {
+        BaseObject tagObject = mock(BaseObject.class);
+        when(file.getDocument().getXObject(DefaultFile.TAG_CLASS_REFERENCE)).thenReturn(tagObject);
+        BaseProperty tagsProperty = mock(BaseProperty.class, withSettings().extraInterfaces(PropertyInterface.class));
+        when(tagObject.get("tags")).thenReturn((PropertyInterface) tagsProperty);
+        when(tagsProperty.getValue()).thenReturn(Arrays.asList("Alice"));
+
+        DocumentReference parentReference = new DocumentReference("chess", "FileSystem", "Alice");
+        when(file.getDocument().getDocumentReference()).thenReturn(
+            new DocumentReference("chess", "FileSystem", "Carol"));
+        when(file.getDocument().getRelativeParentReference()).thenReturn(
+            parentReference.removeParent(parentReference.getWikiReference()));
+
+        assertEquals(Collections.singletonList(parentReference), file.getParentReferences());
+        file.updateParentReferences();
+
+        verify(file.getDocument(), never()).clone();
+        verify(tagObject, never()).setStringListValue(anyString(), anyList());
+        assertFalse(file.isCloned());
+    }
+
     @Test
     public void clearParentReferences()
     {
         BaseObject tagObject = mock(BaseObject.class);
         when(file.getDocument().getXObject(DefaultFile.TAG_CLASS_REFERENCE)).thenReturn(null, tagObject);
 
+        // The file was previously in a folder.
+        when(file.getDocument().getRelativeParentReference()).thenReturn(
+            new EntityReference("Alice", EntityType.DOCUMENT, new EntityReference("FileSystem", EntityType.SPACE)));
+
         // Initialize the parent references. Should be empty.
         Collection<DocumentReference> parentReferences = file.getParentReferences();
 
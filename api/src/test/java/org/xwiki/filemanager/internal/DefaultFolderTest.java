@@ -19,11 +19,20 @@
  */
 package org.xwiki.filemanager.internal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.inject.Provider;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
@@ -83,4 +92,148 @@ public class DefaultFolderTest
         verify(explicitDocumentReferenceResolver).resolve("A", documentReference);
         verify(explicitDocumentReferenceResolver).resolve("B", documentReference);
     }
+
+    @Test
+    public void findChildFileByName() throws Exception
+    {
+        DocumentReference documentReference = new DocumentReference("wiki", "Drive", "Folder");
+        when(folder.getDocument().getDocumentReference()).thenReturn(documentReference);
+
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(anyString(), eq(Query.XWQL))).thenReturn(query);
+        when(query.execute()).thenReturn(Arrays.<Object>asList("Drive.A", "Drive.B"));
+
+        DocumentReference aliceReference = new DocumentReference("wiki", "Drive", "A");
+        DocumentReference bobReference = new DocumentReference("wiki", "Drive", "B");
+        DocumentReferenceResolver<String> explicitDocumentReferenceResolver =
+            mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        when(explicitDocumentReferenceResolver.resolve("Drive.A", documentReference)).thenReturn(aliceReference);
+        when(explicitDocumentReferenceResolver.resolve("Drive.B", documentReference)).thenReturn(bobReference);
+
+        // The database comparison can be case insensitive.
+        File alice = mock(File.class, "alice");
+        when(alice.getName()).thenReturn("Data.txt");
+        File bob = mock(File.class, "bob");
+        when(bob.getName()).thenReturn("data.txt");
+        when(bob.getReference()).thenReturn(bobReference);
+
+        FileSystem fileSystem = mock(FileSystem.class);
+        Provider<FileSystem> fileSystemProvider =
+            mocker.getInstance(new DefaultParameterizedType(null, Provider.class, FileSystem.class));
+        when(fileSystemProvider.get()).thenReturn(fileSystem);
+        List<DocumentReference> candidates = Arrays.asList(aliceReference, bobReference);
+        when(fileSystem.getFiles(candidates)).thenReturn(Arrays.asList(alice, bob));
+
+        assertEquals(bobReference, folder.findChildFileByName("data.txt"));
+
+        verify(query).bindValue("name", "data.txt");
+        verify(query).bindValue("tag", "Folder");
+        verify(query).setWiki("wiki");
+    }
+
+    @Test
+    public void findChildFolderByNameWithEmptyTitle() throws Exception
+    {
+        DocumentReference documentReference = new DocumentReference("wiki", "Drive", "Folder");
+        when(folder.getDocument().getDocumentReference()).thenReturn(documentReference);
+
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(contains("doc.name = :name"), eq(Query.XWQL))).thenReturn(query);
+        when(query.execute()).thenReturn(Arrays.<Object>asList("Drive.Projects"));
+
+        DocumentReference projectsReference = new DocumentReference("wiki", "Drive", "Projects");
+        DocumentReferenceResolver<String> explicitDocumentReferenceResolver =
+            mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        when(explicitDocumentReferenceResolver.resolve("Drive.Projects", documentReference)).thenReturn(
+            projectsReference);
+
+        // The child folder has an empty title so its name is the document name.
+        Folder projects = mock(Folder.class);
+        when(projects.getName()).thenReturn("Projects");
+        when(projects.getReference()).thenReturn(projectsReference);
+
+        FileSystem fileSystem = mock(FileSystem.class);
+        Provider<FileSystem> fileSystemProvider =
+            mocker.getInstance(new DefaultParameterizedType(null, Provider.class, FileSystem.class));
+        when(fileSystemProvider.get()).thenReturn(fileSystem);
+        when(fileSystem.getFolders(Arrays.asList(projectsReference))).thenReturn(Arrays.asList(projects));
+
+        // The name doesn't match so the child folders are compared one by one.
+        Query iterationQuery = mock(Query.class);
+        when(queryManager.createQuery(contains("doc.fullName > :lastFullName"), eq(Query.XWQL))).thenReturn(
+            iterationQuery);
+        when(iterationQuery.execute()).thenReturn(Arrays.<Object>asList("Drive.Projects"));
+
+        assertEquals(projectsReference, folder.findChildFolderByName("Projects"));
+        assertNull(folder.findChildFolderByName("projects"));
+
+        verify(query).bindValue("name", "Projects");
+        verify(query, times(2)).setWiki("wiki");
+        verify(iterationQuery).execute();
+    }
+
+    @Test
+    public void findChildFolderByRenderedTitle() throws Exception
+    {
+        DocumentReference documentReference = new DocumentReference("wiki", "Drive", "Folder");
+        when(folder.getDocument().getDocumentReference()).thenReturn(documentReference);
+
+        // The raw title of the child folder has Velocity code so the query doesn't match its rendered title.
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(contains("doc.name = :name"), eq(Query.XWQL))).thenReturn(query);
+        when(query.execute()).thenReturn(Collections.emptyList());
+
+        Query iterationQuery = mock(Query.class);
+        when(queryManager.createQuery(contains("doc.fullName > :lastFullName"), eq(Query.XWQL))).thenReturn(
+            iterationQuery);
+        when(iterationQuery.execute()).thenReturn(Arrays.<Object>asList("Drive.Projects"));
+
+        DocumentReference projectsReference = new DocumentReference("wiki", "Drive", "Projects");
+        DocumentReferenceResolver<String> explicitDocumentReferenceResolver =
+            mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        when(explicitDocumentReferenceResolver.resolve("Drive.Projects", documentReference)).thenReturn(
+            projectsReference);
+
+        Folder projects = mock(Folder.class);
+        when(projects.getName()).thenReturn("Projects 2014");
+        when(projects.getReference()).thenReturn(projectsReference);
+
+        FileSystem fileSystem = mock(FileSystem.class);
+        Provider<FileSystem> fileSystemProvider =
+            mocker.getInstance(new DefaultParameterizedType(null, Provider.class, FileSystem.class));
+        when(fileSystemProvider.get()).thenReturn(fileSystem);
+        when(fileSystem.getFolders(Collections.<DocumentReference>emptyList())).thenReturn(
+            Collections.<Folder>emptyList());
+        when(fileSystem.getFolders(Arrays.asList(projectsReference))).thenReturn(Arrays.asList(projects));
+
+        assertEquals(projectsReference, folder.findChildFolderByName("Projects 2014"));
+    }
+
+    @Test
+    public void iterateChildFileReferences() throws Exception
+    {
+        DocumentReference documentReference = new DocumentReference("wiki", "Drive", "Folder");
+        when(folder.getDocument().getDocumentReference()).thenReturn(documentReference);
+
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(anyString(), eq(Query.XWQL))).thenReturn(query);
+        List<Object> firstBatch = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            firstBatch.add(String.format("Drive.File%03d", i));
+        }
+        when(query.execute()).thenReturn(firstBatch, Arrays.<Object>asList("Drive.File100"));
+
+        Iterator<DocumentReference> iterator = folder.iterateChildFileReferences();
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+
+        assertEquals(101, count);
+        verify(query, times(2)).setLimit(100);
+        verify(query).bindValue("lastFullName", "");
+        verify(query).bindValue("lastFullName", "Drive.File099");
+        verify(query, times(2)).execute();
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.hierarchy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link DefaultDriveHierarchyIndex}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class DefaultDriveHierarchyIndexTest
+{
+    @Rule
+    public MockitoComponentMockingRule<DriveHierarchyIndex> mocker =
+        new MockitoComponentMockingRule<DriveHierarchyIndex>(DefaultDriveHierarchyIndex.class);
+
+    private SpaceReference driveReference = new SpaceReference("Drive", "wiki");
+
+    private Query query;
+
+    @Before
+    public void configure() throws Exception
+    {
+        DocumentReferenceResolver<String> resolver =
+            mocker.getInstance(new DefaultParameterizedType(null, DocumentReferenceResolver.class, String.class),
+                "explicit");
+        when(resolver.resolve(anyString(), any(DocumentReference.class))).thenAnswer(
+            new Answer<DocumentReference>()
+            {
+                @Override
+                public DocumentReference answer(InvocationOnMock invocation) throws Throwable
+                {
+                    String[] parts = ((String) invocation.getArguments()[0]).split("\\.");
+                    return new DocumentReference("wiki", parts[0], parts[1]);
+                }
+            });
+
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getHierarchyIndexSize()).thenReturn(2);
+
+        QueryManager queryManager = mocker.getInstance(QueryManager.class);
+        query = mock(Query.class);
+        when(queryManager.createQuery(anyString(), eq(Query.HQL))).thenReturn(query);
+        when(query.execute()).thenReturn(
+            Arrays.<Object>asList(new Object[] {"WebHome", "", "FileManagerCode.DriveClass"}, new Object[] {
+            "Projects", "Drive.WebHome", "FileManagerCode.FolderClass"}, new Object[] {"Specs", "Drive.Projects",
+            "FileManagerCode.FolderClass"}, new Object[] {"Lost", "Drive.Missing", "FileManagerCode.FolderClass"}));
+    }
+
+    @Test
+    public void queryHierarchy() throws Exception
+    {
+        DriveHierarchyIndex index = mocker.getComponentUnderTest();
+
+        assertTrue(index.isDescendantOrSelf(newReference("Specs"), newReference("Projects")));
+        assertTrue(index.isDescendantOrSelf(newReference("Specs"), newReference("Specs")));
+        assertFalse(index.isDescendantOrSelf(newReference("Projects"), newReference("Specs")));
+        assertFalse(index.isDescendantOrSelf(newReference("Lost"), newReference("Projects")));
+
+        assertEquals(Arrays.asList(newReference("Specs"), newReference("Projects"), newReference("WebHome")),
+            index.getPath(newReference("Specs")));
+        assertEquals(Collections.singletonList(newReference("Lost")), index.getPath(newReference("Lost")));
+
+        assertTrue(index.isOrphan(newReference("Lost")));
+        assertFalse(index.isOrphan(newReference("Specs")));
+        assertEquals(Collections.singletonList(newReference("Lost")), index.getOrphanFolders(driveReference));
+
+        assertEquals(Arrays.asList(newReference("Projects"), newReference("Specs")),
+            index.getDescendantFolders(newReference("WebHome")));
+        assertEquals(Collections.emptyList(), index.getDescendantFolders(newReference("Specs")));
+
+        // The hierarchy is loaded only once.
+        verify(query).bindValue("space", "Drive");
+        verify(query).setWiki("wiki");
+        verify(query, times(1)).execute();
+    }
+
+    @Test
+    public void updateHierarchy() throws Exception
+    {
+        DefaultDriveHierarchyIndex index = (DefaultDriveHierarchyIndex) mocker.getComponentUnderTest();
+        assertFalse(index.isDescendantOrSelf(newReference("Lost"), newReference("Projects")));
+
+        // Move the lost folder under the specs folder.
+        index.update(mockFolderDocument("Lost", "Specs"));
+
+        assertTrue(index.isDescendantOrSelf(newReference("Lost"), newReference("Projects")));
+        assertFalse(index.isOrphan(newReference("Lost")));
+
+        // Delete the projects folder.
+        index.remove(newReference("Projects"));
+
+        assertTrue(index.isOrphan(newReference("Specs")));
+        assertFalse(index.isDescendantOrSelf(newReference("Lost"), newReference("Projects")));
+        assertEquals(Arrays.asList(newReference("Lost"), newReference("Specs")), index.getPath(newReference("Lost")));
+    }
+
+    @Test
+    public void updateHierarchyWhileLoading() throws Exception
+    {
+        final DefaultDriveHierarchyIndex index = (DefaultDriveHierarchyIndex) mocker.getComponentUnderTest();
+        final List<Object> rows = query.execute();
+        final XWikiDocument lostDocument = mockFolderDocument("Lost", "Specs");
+        when(query.execute()).thenAnswer(new Answer<List<Object>>()
+        {
+            @Override
+            public List<Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                // The lost folder is moved after the query has read it.
+                index.update(lostDocument);
+                index.remove(newReference("Projects"));
+                return rows;
+            }
+        });
+
+        // The loaded data must not overwrite the changes made while the hierarchy was loading.
+        assertFalse(index.isOrphan(newReference("Lost")));
+        assertEquals(Arrays.asList(newReference("Lost"), newReference("Specs")), index.getPath(newReference("Lost")));
+        assertTrue(index.isOrphan(newReference("Specs")));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedDrives() throws Exception
+    {
+        DriveHierarchyIndex index = mocker.getComponentUnderTest();
+        SpaceReference otherDriveReference = new SpaceReference("Other", "wiki");
+        SpaceReference thirdDriveReference = new SpaceReference("Third", "wiki");
+
+        index.getOrphanFolders(driveReference);
+        index.getOrphanFolders(otherDriveReference);
+        index.getOrphanFolders(driveReference);
+        verify(query, times(2)).execute();
+
+        // Only two drives are kept in memory so the other drive, which is the least recently used, is dropped.
+        index.getOrphanFolders(thirdDriveReference);
+        index.getOrphanFolders(driveReference);
+        verify(query, times(3)).execute();
+
+        index.getOrphanFolders(otherDriveReference);
+        verify(query, times(4)).execute();
+    }
+
+    @Test
+    public void removeDrive() throws Exception
+    {
+        DefaultDriveHierarchyIndex index = (DefaultDriveHierarchyIndex) mocker.getComponentUnderTest();
+        assertTrue(index.isOrphan(newReference("Lost")));
+
+        // Deleting a folder doesn't drop the hierarchy.
+        index.remove(newReference("Specs"));
+        assertTrue(index.isOrphan(newReference("Lost")));
+        verify(query, times(1)).execute();
+
+        // Deleting the drive document does.
+        index.remove(newReference("WebHome"));
+        assertFalse(index.isOrphan(newReference("Specs")));
+        verify(query, times(2)).execute();
+    }
+
+    private XWikiDocument mockFolderDocument(String name, String parentName)
+    {
+        XWikiDocument document = mock(XWikiDocument.class, name);
+        when(document.getDocumentReference()).thenReturn(newReference(name));
+        when(document.getParentReference()).thenReturn(newReference(parentName));
+        when(document.getXObject(any(EntityReference.class))).thenReturn(null);
+        when(document.getXObject(new EntityReference("FolderClass", EntityType.DOCUMENT,
+            new EntityReference("FileManagerCode", EntityType.SPACE)))).thenReturn(mock(BaseObject.class));
+        return document;
+    }
+
+    private DocumentReference newReference(String name)
+    {
+        return new DocumentReference(name, driveReference);
+    }
+}
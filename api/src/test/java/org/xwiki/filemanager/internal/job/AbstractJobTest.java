@@ -23,14 +23,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Before;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.xwiki.filemanager.Document;
 import org.xwiki.filemanager.File;
 import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Folder;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.filemanager.internal.reference.DocumentNameSequence;
 import org.xwiki.filemanager.job.OverwriteQuestion;
 import org.xwiki.filemanager.reference.UniqueDocumentReferenceGenerator;
@@ -118,6 +121,91 @@ public abstract class AbstractJobTest
             }
 
         }).when(fileSystem).copy(any(DocumentReference.class), any(DocumentReference.class));
+
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                for (Object document : (Collection<?>) invocation.getArguments()[0]) {
+                    fileSystem.save((Document) document);
+                }
+                return null;
+            }
+        }).when(fileSystem).saveAll(anyCollectionOf(Document.class));
+
+        when(fileSystem.getFiles(anyCollectionOf(DocumentReference.class))).thenAnswer(new Answer<List<File>>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<File> answer(InvocationOnMock invocation) throws Throwable
+            {
+                List<File> files = new ArrayList<File>();
+                for (DocumentReference reference : (Collection<DocumentReference>) invocation.getArguments()[0]) {
+                    File file = fileSystem.getFile(reference);
+                    if (file != null) {
+                        files.add(file);
+                    }
+                }
+                return files;
+            }
+        });
+
+        when(fileSystem.filterByRight(anyString(), anyCollectionOf(DocumentReference.class))).thenAnswer(
+            new Answer<List<DocumentReference>>()
+            {
+                @Override
+                @SuppressWarnings("unchecked")
+                public List<DocumentReference> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    String right = (String) invocation.getArguments()[0];
+                    List<DocumentReference> references = new ArrayList<DocumentReference>();
+                    for (DocumentReference reference : (Collection<DocumentReference>) invocation.getArguments()[1]) {
+                        if ((FileSystem.RIGHT_VIEW.equals(right) && fileSystem.canView(reference))
+                            || (FileSystem.RIGHT_EDIT.equals(right) && fileSystem.canEdit(reference))
+                            || (FileSystem.RIGHT_DELETE.equals(right) && fileSystem.canDelete(reference))) {
+                            references.add(reference);
+                        }
+                    }
+                    return references;
+                }
+            });
+
+        when(fileSystem.getFolders(anyCollectionOf(DocumentReference.class))).thenAnswer(new Answer<List<Folder>>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<Folder> answer(InvocationOnMock invocation) throws Throwable
+            {
+                List<Folder> folders = new ArrayList<Folder>();
+                for (DocumentReference reference : (Collection<DocumentReference>) invocation.getArguments()[0]) {
+                    Folder folder = fileSystem.getFolder(reference);
+                    if (folder != null) {
+                        folders.add(folder);
+                    }
+                }
+                return folders;
+            }
+        });
+
+        if (getMocker().hasComponent(DriveHierarchyIndex.class)) {
+            DriveHierarchyIndex driveHierarchyIndex = getMocker().getInstance(DriveHierarchyIndex.class);
+            when(driveHierarchyIndex.isDescendantOrSelf(any(DocumentReference.class), any(DocumentReference.class)))
+                .thenAnswer(new Answer<Boolean>()
+                {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) throws Throwable
+                    {
+                        DocumentReference parentReference = (DocumentReference) invocation.getArguments()[0];
+                        DocumentReference ancestorReference = (DocumentReference) invocation.getArguments()[1];
+                        while (parentReference != null && !parentReference.equals(ancestorReference)) {
+                            Folder parent = fileSystem.getFolder(parentReference);
+                            parentReference = parent == null ? null : parent.getParentReference();
+                        }
+                        return parentReference != null;
+                    }
+                });
+        }
     }
 
     protected abstract MockitoComponentMockingRule<Job> getMocker();
@@ -147,12 +235,70 @@ public abstract class AbstractJobTest
     protected Folder mockFolder(DocumentReference reference, String name, DocumentReference parentReference,
         List<DocumentReference> childFolderReferences, List<DocumentReference> childFileReferences)
     {
-        Folder folder = mock(Folder.class, reference.toString());
+        final Folder folder = mock(Folder.class, reference.toString());
         when(folder.getReference()).thenReturn(reference);
         when(folder.getName()).thenReturn(name);
         when(folder.getParentReference()).thenReturn(parentReference);
         when(folder.getChildFolderReferences()).thenReturn(childFolderReferences);
         when(folder.getChildFileReferences()).thenReturn(childFileReferences);
+        when(folder.iterateChildFolderReferences()).thenAnswer(new Answer<Iterator<DocumentReference>>()
+        {
+            @Override
+            public Iterator<DocumentReference> answer(InvocationOnMock invocation) throws Throwable
+            {
+                return folder.getChildFolderReferences().iterator();
+            }
+        });
+        when(folder.iterateChildFileReferences()).thenAnswer(new Answer<Iterator<DocumentReference>>()
+        {
+            @Override
+            public Iterator<DocumentReference> answer(InvocationOnMock invocation) throws Throwable
+            {
+                return folder.getChildFileReferences().iterator();
+            }
+        });
+        when(folder.countChildFolders()).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable
+            {
+                return folder.getChildFolderReferences().size();
+            }
+        });
+        when(folder.countChildFiles()).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable
+            {
+                return folder.getChildFileReferences().size();
+            }
+        });
+        when(folder.findChildFolderByName(anyString())).thenAnswer(new Answer<DocumentReference>()
+        {
+            @Override
+            public DocumentReference answer(InvocationOnMock invocation) throws Throwable
+            {
+                for (Folder child : fileSystem.getFolders(folder.getChildFolderReferences())) {
+                    if (child.getName().equals(invocation.getArguments()[0])) {
+                        return child.getReference();
+                    }
+                }
+                return null;
+            }
+        });
+        when(folder.findChildFileByName(anyString())).thenAnswer(new Answer<DocumentReference>()
+        {
+            @Override
+            public DocumentReference answer(InvocationOnMock invocation) throws Throwable
+            {
+                for (File child : fileSystem.getFiles(folder.getChildFileReferences())) {
+                    if (child.getName().equals(invocation.getArguments()[0])) {
+                        return child.getReference();
+                    }
+                }
+                return null;
+            }
+        });
 
         when(fileSystem.exists(reference)).thenReturn(true);
         when(fileSystem.getFolder(reference)).thenReturn(folder);
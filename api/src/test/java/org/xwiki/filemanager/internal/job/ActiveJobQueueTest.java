@@ -55,6 +55,22 @@ public class ActiveJobQueueTest
         assertTrue(activeJobQueue.isEmpty());
     }
 
+    @Test
+    public void cancel() throws Exception
+    {
+        ActiveJobQueue activeJobQueue = (ActiveJobQueue) mocker.getComponentUnderTest();
+        activeJobQueue.add("abc");
+
+        assertFalse(activeJobQueue.cancel("xyz"));
+        assertTrue(activeJobQueue.cancel("abc"));
+        assertTrue(activeJobQueue.isCanceled("abc"));
+
+        List<String> jobId = Arrays.asList(FileManager.JOB_ID_PREFIX, "abc");
+        activeJobQueue.onEvent(new JobFinishedEvent(jobId, null, null), null, null);
+
+        assertFalse(activeJobQueue.isCanceled("abc"));
+    }
+
     @Test
     public void ignoreUnkownJobs() throws Exception
     {
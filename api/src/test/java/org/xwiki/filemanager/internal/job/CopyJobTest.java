@@ -22,9 +22,12 @@ package org.xwiki.filemanager.internal.job;
 import java.util.Arrays;
 import java.util.Collections;
 
+import javax.inject.Provider;
+
 import org.junit.Rule;
 import org.junit.Test;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
 import org.xwiki.filemanager.job.MoveRequest;
@@ -32,6 +35,8 @@ import org.xwiki.job.Job;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import com.xpn.xwiki.XWikiContext;
+
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
@@ -98,6 +103,97 @@ public class CopyJobTest extends AbstractJobTest
         verify(fileSystem).save(specsCopy);
     }
 
+    @Test
+    public void resumeAfterPartialCopy() throws Exception
+    {
+        File pom = mockFile("pom.xml", "Concerto");
+        File readme = mockFile("readme.txt", "Concerto");
+        Folder concerto =
+            mockFolder("Concerto", null, Collections.<String>emptyList(), Arrays.asList("pom.xml", "readme.txt"));
+
+        // The job was interrupted after it copied the folder and the first file.
+        mockFile("pom.xml1", "pom.xml", Arrays.asList("Concerto1"));
+        mockFolder("Concerto1", "Concerto", "Projects", Collections.<String>emptyList(), Arrays.asList("pom.xml1"));
+        Folder projects = mockFolder("Projects", null, Arrays.asList("Concerto1"), Collections.<String>emptyList());
+
+        DocumentReference readmeCopyRef = ref("readme.txt1");
+        generateReference(readme.getReference(), readmeCopyRef);
+
+        Path concertoPath = new Path(concerto.getReference());
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Collections.singleton(concertoPath));
+        request.setDestination(new Path(projects.getReference()));
+        request.setProperty(AbstractFileSystemJob.PROPERTY_INTERRUPTED_PATHS, Arrays.asList(concertoPath));
+
+        // The files that have been copied are skipped, without asking to overwrite them.
+        request.setInteractive(true);
+        Job job = mocker.getComponentUnderTest();
+        answerOverwriteQuestion(job, true, false);
+
+        job.initialize(request);
+        job.run();
+
+        verify(fileSystem, never()).copy(eq(concerto.getReference()), any(DocumentReference.class));
+        verify(fileSystem, never()).copy(eq(pom.getReference()), any(DocumentReference.class));
+        verify(fileSystem, never()).delete(ref("pom.xml1"));
+
+        verify(fileSystem).copy(readme.getReference(), readmeCopyRef);
+        File readmeCopy = fileSystem.getFile(readmeCopyRef);
+        verify(fileSystem).save(readmeCopy);
+        assertEquals(Arrays.asList("Concerto1"), getParents(readmeCopy));
+    }
+
+    @Test
+    public void copyFilesInParallel() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getWorkerThreadCount()).thenReturn(2);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        File pom = mockFile("pom.xml", "Concerto");
+        File readme = mockFile("readme.txt", "Concerto");
+        File index = mockFile("index.html", "Concerto");
+        mockFolder("Concerto", null, Collections.<String>emptyList(),
+            Arrays.asList("pom.xml", "readme.txt", "index.html"));
+        Folder projects = mockFolder("Projects");
+
+        // Mock the copies upfront because the files are copied on worker threads.
+        DocumentReference pomCopyRef = ref("pom.xml1");
+        generateReference(pom.getReference(), pomCopyRef);
+        File pomCopy = mockFile("pom.xml1", "pom.xml", Arrays.asList("Concerto"));
+
+        DocumentReference readmeCopyRef = ref("readme.txt1");
+        generateReference(readme.getReference(), readmeCopyRef);
+        File readmeCopy = mockFile("readme.txt1", "readme.txt", Arrays.asList("Concerto"));
+
+        DocumentReference indexCopyRef = ref("index.html1");
+        generateReference(index.getReference(), indexCopyRef);
+        File indexCopy = mockFile("index.html1", "index.html", Arrays.asList("Concerto"));
+
+        doNothing().when(fileSystem).copy(any(DocumentReference.class), any(DocumentReference.class));
+
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Arrays.asList(new Path(ref("Concerto"), pom.getReference()), new Path(ref("Concerto"),
+            readme.getReference()), new Path(ref("Concerto"), index.getReference())));
+        request.setDestination(new Path(projects.getReference()));
+
+        execute(request);
+
+        verify(fileSystem).copy(pom.getReference(), pomCopyRef);
+        verify(fileSystem).save(pomCopy);
+        assertEquals(Arrays.asList("Projects"), getParents(pomCopy));
+
+        verify(fileSystem).copy(readme.getReference(), readmeCopyRef);
+        verify(fileSystem).save(readmeCopy);
+        assertEquals(Arrays.asList("Projects"), getParents(readmeCopy));
+
+        verify(fileSystem).copy(index.getReference(), indexCopyRef);
+        verify(fileSystem).save(indexCopy);
+        assertEquals(Arrays.asList("Projects"), getParents(indexCopy));
+    }
+
     @Test
     public void copyFolderAs() throws Exception
     {
@@ -23,27 +23,46 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
 
+import javax.inject.Provider;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Path;
 import org.xwiki.filemanager.job.BatchPathRequest;
 import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+import org.xwiki.filemanager.job.JobPlan;
+import org.xwiki.filemanager.job.JobPriority;
 import org.xwiki.filemanager.job.MoveRequest;
+import org.xwiki.filemanager.job.PackJobStatus;
 import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.job.JobException;
 import org.xwiki.job.JobManager;
+import org.xwiki.job.event.JobFinishedEvent;
+import org.xwiki.job.event.JobStartedEvent;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import com.xpn.xwiki.XWikiContext;
+
 /**
  * Unit tests for {@link DefaultFileManager}.
  * 
@@ -58,19 +77,26 @@ public class DefaultFileManagerTest
 
     private JobManager jobManager;
 
+    private FileSystemJobExecutor jobExecutor;
+
     private Queue<String> activeJobQueue;
 
+    private PackJobCoalescer packJobCoalescer;
+
     private DocumentReference currentUserReference = new DocumentReference("wiki", "Users", "mflorea");
 
-    @SuppressWarnings("unchecked")
     @Before
     public void configure() throws Exception
     {
         jobManager = mocker.getInstance(JobManager.class);
+        jobExecutor = mocker.getInstance(FileSystemJobExecutor.class);
 
-        activeJobQueue = (Queue<String>) mock(EventListener.class, withSettings().extraInterfaces(Queue.class));
+        activeJobQueue = mock(ActiveJobQueue.class);
         mocker.registerComponent(EventListener.class, "ActiveFileSystemJobQueue", activeJobQueue);
 
+        packJobCoalescer = mock(PackJobCoalescer.class);
+        mocker.registerComponent(EventListener.class, PackJobCoalescer.NAME, packJobCoalescer);
+
         DocumentAccessBridge documentAccessBridge = mocker.getInstance(DocumentAccessBridge.class);
         when(documentAccessBridge.getCurrentUserReference()).thenReturn(currentUserReference);
     }
@@ -84,13 +110,14 @@ public class DefaultFileManagerTest
         String jobId = mocker.getComponentUnderTest().move(paths, destination);
 
         ArgumentCaptor<MoveRequest> request = ArgumentCaptor.forClass(MoveRequest.class);
-        verify(jobManager).addJob(eq(MoveJob.JOB_TYPE), request.capture());
+        verify(jobExecutor).execute(eq(MoveJob.JOB_TYPE), request.capture());
         assertEquals(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId), request.getValue().getId());
         assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
         assertEquals(destination, request.getValue().getDestination());
         assertEquals(currentUserReference, request.getValue().getProperty("user.reference"));
         assertEquals(MoveJob.JOB_TYPE, request.getValue().getProperty("job.type"));
         assertFalse(request.getValue().isInteractive());
+        assertEquals(JobPriority.INTERACTIVE, request.getValue().getPriority());
 
         verify(activeJobQueue).offer(jobId);
     }
@@ -104,13 +131,14 @@ public class DefaultFileManagerTest
         String jobId = mocker.getComponentUnderTest().copy(paths, destination);
 
         ArgumentCaptor<MoveRequest> request = ArgumentCaptor.forClass(MoveRequest.class);
-        verify(jobManager).addJob(eq(CopyJob.JOB_TYPE), request.capture());
+        verify(jobExecutor).execute(eq(CopyJob.JOB_TYPE), request.capture());
         assertEquals(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId), request.getValue().getId());
         assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
         assertEquals(destination, request.getValue().getDestination());
         assertEquals(currentUserReference, request.getValue().getProperty("user.reference"));
         assertEquals(CopyJob.JOB_TYPE, request.getValue().getProperty("job.type"));
         assertFalse(request.getValue().isInteractive());
+        assertEquals(JobPriority.BULK, request.getValue().getPriority());
 
         verify(activeJobQueue).offer(jobId);
     }
@@ -122,12 +150,13 @@ public class DefaultFileManagerTest
         String jobId = mocker.getComponentUnderTest().delete(paths);
 
         ArgumentCaptor<BatchPathRequest> request = ArgumentCaptor.forClass(BatchPathRequest.class);
-        verify(jobManager).addJob(eq(DeleteJob.JOB_TYPE), request.capture());
+        verify(jobExecutor).execute(eq(DeleteJob.JOB_TYPE), request.capture());
         assertEquals(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId), request.getValue().getId());
         assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
         assertEquals(currentUserReference, request.getValue().getProperty("user.reference"));
         assertEquals(DeleteJob.JOB_TYPE, request.getValue().getProperty("job.type"));
         assertFalse(request.getValue().isInteractive());
+        assertEquals(JobPriority.NORMAL, request.getValue().getPriority());
 
         verify(activeJobQueue).offer(jobId);
     }
@@ -141,14 +170,183 @@ public class DefaultFileManagerTest
         String jobId = mocker.getComponentUnderTest().pack(paths, outputFileReference);
 
         ArgumentCaptor<PackRequest> request = ArgumentCaptor.forClass(PackRequest.class);
-        verify(jobManager).addJob(eq(PackJob.JOB_TYPE), request.capture());
+        verify(jobExecutor).execute(eq(PackJob.JOB_TYPE), request.capture());
         assertEquals(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId), request.getValue().getId());
         assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
         assertEquals(outputFileReference, request.getValue().getOutputFileReference());
         assertEquals(currentUserReference, request.getValue().getProperty("user.reference"));
         assertEquals(PackJob.JOB_TYPE, request.getValue().getProperty("job.type"));
         assertFalse(request.getValue().isInteractive());
+        assertEquals(JobPriority.BULK, request.getValue().getPriority());
 
         verify(activeJobQueue).offer(jobId);
+        verify(packJobCoalescer).register(request.getValue(), null);
+    }
+
+    @Test
+    public void packReusesJob() throws Exception
+    {
+        when(packJobCoalescer.getReusableJob(any(PackRequest.class))).thenReturn("abc");
+
+        Collection<Path> paths = Collections.singleton(new Path(null));
+        AttachmentReference outputFileReference =
+            new AttachmentReference("Folder.zip", new DocumentReference("wiki", "Drive", "Folder"));
+        assertEquals("abc", mocker.getComponentUnderTest().pack(paths, outputFileReference));
+
+        verify(jobExecutor, never()).execute(anyString(), any(PackRequest.class));
+        verify(activeJobQueue, never()).offer(anyString());
+    }
+
+    @Test
+    public void packToOutputStream() throws Exception
+    {
+        PackJob packJob = mock(PackJob.class);
+        PackJobStatus jobStatus = mock(PackJobStatus.class);
+        when(packJob.getPackStatus()).thenReturn(jobStatus);
+        when(jobExecutor.createJob(PackJob.JOB_TYPE + "/actual")).thenReturn(packJob);
+
+        DocumentReference fileReference = new DocumentReference("wiki", "Drive", "file");
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getStreamPackMaxFileCount()).thenReturn(1);
+        when(configuration.getStreamPackMaxSize()).thenReturn(1);
+        FileSystem fileSystem = mocker.getInstance(FileSystem.class);
+        when(fileSystem.getTotalFileSize(Collections.singletonList(fileReference))).thenReturn(1024L);
+
+        Collection<Path> paths = Collections.singleton(new Path(null, fileReference));
+        OutputStream outputStream = new ByteArrayOutputStream();
+        assertSame(jobStatus, mocker.getComponentUnderTest().pack(paths, outputStream));
+
+        ArgumentCaptor<PackRequest> request = ArgumentCaptor.forClass(PackRequest.class);
+        verify(packJob).setOutputStream(outputStream);
+        verify(packJob).initialize(request.capture());
+        verify(packJob).run();
+        // The job runs on the current thread and it isn't tracked.
+        assertNull(request.getValue().getId());
+        assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
+        assertEquals(currentUserReference, request.getValue().getProperty("user.reference"));
+
+        verify(jobExecutor, never()).execute(anyString(), any(PackRequest.class));
+        verify(activeJobQueue, never()).offer(anyString());
+    }
+
+    @Test
+    public void packLargeSelectionToOutputStream() throws Exception
+    {
+        DocumentReference fileReference = new DocumentReference("wiki", "Drive", "file");
+        DocumentReference folderReference = new DocumentReference("wiki", "Drive", "folder");
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getStreamPackMaxFileCount()).thenReturn(2);
+        when(configuration.getStreamPackMaxSize()).thenReturn(1);
+        FileSystem fileSystem = mocker.getInstance(FileSystem.class);
+        when(fileSystem.getTotalFileSize(Collections.singletonList(fileReference))).thenReturn(2 * 1024L * 1024L);
+
+        // Folders, too many files and too much content are not streamed.
+        assertFalse(mocker.getComponentUnderTest().canStreamPack(Arrays.asList(new Path(folderReference))));
+        assertFalse(mocker.getComponentUnderTest().canStreamPack(
+            Arrays.asList(new Path(null, fileReference), new Path(null, fileReference), new Path(folderReference))));
+        assertFalse(mocker.getComponentUnderTest().canStreamPack(Arrays.asList(new Path(null, fileReference))));
+
+        try {
+            mocker.getComponentUnderTest().pack(Arrays.asList(new Path(folderReference)), new ByteArrayOutputStream());
+            fail();
+        } catch (JobException e) {
+            assertEquals("The selection is too large to be streamed. Schedule a pack job instead.", e.getMessage());
+        }
+        verify(jobExecutor, never()).createJob(anyString());
+    }
+
+    @Test
+    public void cancel() throws Exception
+    {
+        FileSystemJobStatus jobStatus = mock(FileSystemJobStatus.class);
+        when(jobExecutor.getJobStatus(Arrays.asList(FileManager.JOB_ID_PREFIX, "abc"))).thenReturn(jobStatus);
+        BatchPathRequest request = new BatchPathRequest();
+        request.setProperty(DefaultFileManager.PROPERTY_USER_REFERENCE, currentUserReference);
+        when(jobExecutor.getJobRequest(Arrays.asList(FileManager.JOB_ID_PREFIX, "abc"))).thenReturn(request);
+        when(((ActiveJobQueue) activeJobQueue).cancel("abc")).thenReturn(true);
+
+        assertTrue(mocker.getComponentUnderTest().cancel("abc"));
+        verify(jobStatus).setCanceled(true);
+
+        assertFalse(mocker.getComponentUnderTest().cancel("xyz"));
+    }
+
+    @Test
+    public void cancelJobOfAnotherUser() throws Exception
+    {
+        BatchPathRequest request = new BatchPathRequest();
+        request.setProperty(DefaultFileManager.PROPERTY_USER_REFERENCE,
+            new DocumentReference("wiki", "Users", "alice"));
+        when(jobExecutor.getJobRequest(Arrays.asList(FileManager.JOB_ID_PREFIX, "abc"))).thenReturn(request);
+        when(((ActiveJobQueue) activeJobQueue).cancel("abc")).thenReturn(true);
+
+        assertFalse(mocker.getComponentUnderTest().cancel("abc"));
+        verify((ActiveJobQueue) activeJobQueue, never()).cancel("abc");
+    }
+
+    @Test
+    public void planDelete() throws Exception
+    {
+        JobPlan plan = new JobPlan();
+        FileSystemJobStatus jobStatus = mock(FileSystemJobStatus.class);
+        when(jobStatus.getPlan()).thenReturn(plan);
+        DeleteJob deleteJob = mock(DeleteJob.class);
+        when(deleteJob.getFileSystemStatus()).thenReturn(jobStatus);
+        when(jobExecutor.createJob(DeleteJob.JOB_TYPE + "/actual")).thenReturn(deleteJob);
+
+        Collection<Path> paths = Collections.singleton(new Path(null));
+        assertSame(plan, mocker.getComponentUnderTest().planDelete(paths));
+
+        ArgumentCaptor<BatchPathRequest> request = ArgumentCaptor.forClass(BatchPathRequest.class);
+        verify(deleteJob).initialize(request.capture());
+        verify(deleteJob).run();
+        assertArrayEquals(paths.toArray(), request.getValue().getPaths().toArray());
+        assertTrue(request.getValue().isDryRun());
+        // The dry run is not tracked.
+        assertNull(request.getValue().getId());
+
+        verify(jobManager, never()).executeJob(anyString(), any(BatchPathRequest.class));
+        verify(jobExecutor, never()).execute(anyString(), any(BatchPathRequest.class));
+        verify(activeJobQueue, never()).offer(anyString());
+    }
+
+    @Test
+    public void planKeepsContextUser() throws Exception
+    {
+        // The dry run is executed on the current thread so the job events must not change the context user.
+        final XWikiContext xcontext = mock(XWikiContext.class);
+        final ContextUserHandler contextUserHandler = new ContextUserHandler();
+        ReflectionUtils.setFieldValue(contextUserHandler, "xcontextProvider", new Provider<XWikiContext>()
+        {
+            @Override
+            public XWikiContext get()
+            {
+                return xcontext;
+            }
+        });
+
+        final MoveJob moveJob = mock(MoveJob.class);
+        when(moveJob.getFileSystemStatus()).thenReturn(mock(FileSystemJobStatus.class));
+        when(jobExecutor.createJob(MoveJob.JOB_TYPE + "/actual")).thenReturn(moveJob);
+        final ArgumentCaptor<MoveRequest> request = ArgumentCaptor.forClass(MoveRequest.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                verify(moveJob).initialize(request.capture());
+                List<String> jobId = request.getValue().getId();
+                contextUserHandler.onEvent(new JobStartedEvent(jobId, MoveJob.JOB_TYPE, request.getValue()), null,
+                    null);
+                contextUserHandler.onEvent(new JobFinishedEvent(jobId, MoveJob.JOB_TYPE, request.getValue()), null,
+                    null);
+                return null;
+            }
+        }).when(moveJob).run();
+
+        mocker.getComponentUnderTest().planMove(Collections.singleton(new Path(null)), new Path(null));
+
+        verify(moveJob).run();
+        verify(xcontext, never()).setUserReference(any(DocumentReference.class));
     }
 }
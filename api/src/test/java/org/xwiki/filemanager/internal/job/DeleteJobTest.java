@@ -22,17 +22,24 @@ package org.xwiki.filemanager.internal.job;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.filemanager.job.FileManager;
 import org.xwiki.job.Job;
+import org.xwiki.job.event.status.StepProgressEvent;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 /**
@@ -80,6 +87,79 @@ public class DeleteJobTest extends AbstractJobTest
         verify(fileSystem).delete(projects.getReference());
     }
 
+    @Test
+    public void stepOverMissingChildFiles() throws Exception
+    {
+        mockFile("readme.txt", "Projects");
+        // The second child file doesn't exist anymore so it's not returned by FileSystem#getFiles().
+        Folder projects =
+            mockFolder("Projects", null, Collections.<String> emptyList(), Arrays.asList("readme.txt", "missing.txt"));
+
+        BatchPathRequest request = new BatchPathRequest();
+        request.setPaths(Collections.singleton(new Path(projects.getReference())));
+
+        execute(request);
+
+        verify(fileSystem).delete(ref("readme.txt"));
+
+        // One step for the deleted path and three steps for the folder: two child files and the folder itself.
+        ObservationManager observationManager = mocker.getInstance(ObservationManager.class);
+        verify(observationManager, times(4)).notify(isA(StepProgressEvent.class), any());
+    }
+
+    @Test
+    public void deleteSubtree() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.isBulkDeleteEnabled()).thenReturn(true);
+
+        Folder specs = mockFolder("Specs", "Resilience");
+        Folder src = mockFolder("src", "Resilience");
+        when(fileSystem.canDelete(src.getReference())).thenReturn(false);
+        File readme = mockFile("readme.txt", "Resilience");
+        File pom = mockFile("pom.xml", "Resilience", "Concerto");
+        Folder resilience = mockFolder("Resilience", "Projects");
+        Folder projects = mockFolder("Projects");
+
+        DocumentReference projectsReference = projects.getReference();
+        DocumentReference resilienceReference = resilience.getReference();
+        DocumentReference specsReference = specs.getReference();
+        DocumentReference srcReference = src.getReference();
+        DocumentReference pomReference = pom.getReference();
+        DocumentReference readmeReference = readme.getReference();
+
+        DriveHierarchyIndex driveHierarchyIndex = mocker.getInstance(DriveHierarchyIndex.class);
+        when(driveHierarchyIndex.getDescendantFolders(projectsReference)).thenReturn(
+            Arrays.asList(resilienceReference, specsReference, srcReference));
+        when(driveHierarchyIndex.getPath(resilienceReference)).thenReturn(
+            Arrays.asList(resilienceReference, projectsReference));
+        when(driveHierarchyIndex.getPath(specsReference)).thenReturn(
+            Arrays.asList(specsReference, resilienceReference, projectsReference));
+        when(driveHierarchyIndex.getPath(srcReference)).thenReturn(
+            Arrays.asList(srcReference, resilienceReference, projectsReference));
+
+        when(fileSystem.findChildFiles(Arrays.asList(projectsReference, resilienceReference, specsReference)))
+            .thenReturn(Arrays.asList(pomReference, readmeReference));
+        // The protected child folder is not deleted.
+        when(fileSystem.hasChildFolders(Arrays.asList(resilienceReference))).thenReturn(
+            Arrays.asList(resilienceReference));
+        when(fileSystem.hasChildFolders(Arrays.asList(projectsReference))).thenReturn(
+            Arrays.asList(projectsReference));
+
+        BatchPathRequest request = new BatchPathRequest();
+        request.setPaths(Collections.singleton(new Path(projects.getReference())));
+
+        execute(request);
+
+        assertEquals(Arrays.asList("Concerto"), getParents(pom));
+        verify(fileSystem).saveAll(Arrays.asList(pom));
+        verify(fileSystem).deleteAll(Arrays.asList(readmeReference));
+        verify(fileSystem).deleteAll(Arrays.asList(specsReference));
+        verify(fileSystem, times(2)).deleteAll(Collections.<DocumentReference> emptyList());
+        verify(fileSystem, never()).delete(any(DocumentReference.class));
+        verify(mocker.getMockedLogger()).error("You are not allowed to delete the folder [{}].", srcReference);
+    }
+
     @Test
     public void deleteProtectedFolder() throws Exception
     {
@@ -114,6 +194,33 @@ public class DeleteJobTest extends AbstractJobTest
         verify(fileSystem).save(file);
     }
 
+    @Test
+    public void saveCheckpoints() throws Exception
+    {
+        File readme = mockFile("readme.txt", "Resilience");
+        File notes = mockFile("notes.txt", "Resilience");
+        Path readmePath = new Path(ref("Resilience"), readme.getReference());
+        Path notesPath = new Path(ref("Resilience"), notes.getReference());
+
+        BatchPathRequest request = new BatchPathRequest();
+        request.setId(Arrays.asList(FileManager.JOB_ID_PREFIX, "abc"));
+        request.setPaths(Arrays.asList(readmePath, notesPath));
+
+        execute(request);
+
+        // Once when the job starts and then before and after each path.
+        JobCheckpointStore checkpointStore = mocker.getInstance(JobCheckpointStore.class);
+        ArgumentCaptor<JobCheckpoint> checkpoint = ArgumentCaptor.forClass(JobCheckpoint.class);
+        verify(checkpointStore, times(5)).save(checkpoint.capture());
+        assertEquals(DeleteJob.JOB_TYPE, checkpoint.getValue().getJobType());
+        assertEquals(Arrays.asList(readmePath, notesPath),
+            new ArrayList<Path>(checkpoint.getValue().getCompletedPaths()));
+        assertEquals(notesPath, checkpoint.getValue().getCursor());
+
+        // The job has finished so the checkpoint is not needed anymore.
+        verify(checkpointStore).delete("abc");
+    }
+
     @Test
     public void deleteFileFromAllParentFolders() throws Exception
     {
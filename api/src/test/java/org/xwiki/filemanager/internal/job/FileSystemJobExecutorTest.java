@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.filemanager.job.JobPriority;
+import org.xwiki.filemanager.job.MoveRequest;
+import org.xwiki.job.Job;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+/**
+ * Unit tests for {@link FileSystemJobExecutor}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class FileSystemJobExecutorTest
+{
+    @Rule
+    public MockitoComponentMockingRule<FileSystemJobExecutor> mocker =
+        new MockitoComponentMockingRule<FileSystemJobExecutor>(FileSystemJobExecutor.class);
+
+    private ComponentManager componentManager;
+
+    private BlockingQueue<String> startedJobs = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void configure() throws Exception
+    {
+        componentManager = mock(ComponentManager.class);
+        Provider<ComponentManager> componentManagerProvider =
+            mocker.getInstance(new DefaultParameterizedType(null, Provider.class, ComponentManager.class), "context");
+        when(componentManagerProvider.get()).thenReturn(componentManager);
+
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getJobThreadCount()).thenReturn(2);
+    }
+
+    @Test
+    public void serializeJobsPerDrive() throws Exception
+    {
+        CountDownLatch firstJobLatch = new CountDownLatch(1);
+        mockJob("first", firstJobLatch);
+        mockJob("second", new CountDownLatch(0));
+        mockJob("third", new CountDownLatch(0));
+
+        // The first two jobs target the same drive.
+        mocker.getComponentUnderTest().execute("first", createRequest("first", "Drive"));
+        assertEquals("first", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        mocker.getComponentUnderTest().execute("second", createRequest("second", "Drive"));
+        mocker.getComponentUnderTest().execute("third", createRequest("third", "OtherDrive"));
+
+        // The job from the other drive is not blocked by the first job.
+        assertEquals("third", startedJobs.poll(5, TimeUnit.SECONDS));
+        // The second job waits for the first job to finish.
+        assertNull(startedJobs.poll(100, TimeUnit.MILLISECONDS));
+        assertNotNull(mocker.getComponentUnderTest().getJobStatus(getJobId("second")));
+
+        firstJobLatch.countDown();
+
+        assertEquals("second", startedJobs.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serializeJobsPerDestinationDrive() throws Exception
+    {
+        CountDownLatch firstJobLatch = new CountDownLatch(1);
+        mockJob("first", firstJobLatch);
+        mockJob("move", new CountDownLatch(0));
+        mockJob("second", new CountDownLatch(0));
+
+        mocker.getComponentUnderTest().execute("first", createRequest("first", "Drive"));
+        assertEquals("first", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        // Move a folder from the other drive to the drive targeted by the first job.
+        MoveRequest moveRequest = new MoveRequest();
+        moveRequest.setId(getJobId("move"));
+        moveRequest.setPaths(Arrays.asList(new Path(new DocumentReference("wiki", "OtherDrive", "Folder"))));
+        moveRequest.setDestination(new Path(new DocumentReference("wiki", "Drive", "Folder")));
+        mocker.getComponentUnderTest().execute("move", moveRequest);
+        mocker.getComponentUnderTest().execute("second", createRequest("second", "OtherDrive"));
+
+        // The move job waits for the first job because they both touch the same drive, and the second job waits for
+        // the move job because it was scheduled after it on the other drive.
+        assertNull(startedJobs.poll(100, TimeUnit.MILLISECONDS));
+
+        firstJobLatch.countDown();
+
+        assertEquals("move", startedJobs.poll(5, TimeUnit.SECONDS));
+        assertEquals("second", startedJobs.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serveHigherPriorityJobsFirst() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getJobThreadCount()).thenReturn(1);
+
+        CountDownLatch firstJobLatch = new CountDownLatch(1);
+        mockJob("first", firstJobLatch);
+        mockJob("bulk", new CountDownLatch(0));
+        mockJob("normal", new CountDownLatch(0));
+        mockJob("interactive", new CountDownLatch(0));
+
+        mocker.getComponentUnderTest().execute("first", createRequest("first", "Drive"));
+        assertEquals("first", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        mocker.getComponentUnderTest().execute("bulk", createRequest("bulk", "Drive1", JobPriority.BULK));
+        mocker.getComponentUnderTest().execute("normal", createRequest("normal", "Drive2", JobPriority.NORMAL));
+        mocker.getComponentUnderTest().execute("interactive",
+            createRequest("interactive", "Drive3", JobPriority.INTERACTIVE));
+
+        firstJobLatch.countDown();
+
+        assertEquals("interactive", startedJobs.poll(5, TimeUnit.SECONDS));
+        assertEquals("normal", startedJobs.poll(5, TimeUnit.SECONDS));
+        assertEquals("bulk", startedJobs.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serveHigherPriorityJobsFirstOnTheSameDrive() throws Exception
+    {
+        CountDownLatch firstJobLatch = new CountDownLatch(1);
+        mockJob("first", firstJobLatch);
+        mockJob("bulk", new CountDownLatch(0));
+        mockJob("normal", new CountDownLatch(0));
+        mockJob("interactive", new CountDownLatch(0));
+
+        mocker.getComponentUnderTest().execute("first", createRequest("first", "Drive"));
+        assertEquals("first", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        // The interactive job doesn't wait behind the bulk job scheduled before it on the same drive.
+        mocker.getComponentUnderTest().execute("bulk", createRequest("bulk", "Drive", JobPriority.BULK));
+        mocker.getComponentUnderTest().execute("normal", createRequest("normal", "Drive", JobPriority.NORMAL));
+        mocker.getComponentUnderTest().execute("interactive",
+            createRequest("interactive", "Drive", JobPriority.INTERACTIVE));
+
+        // The jobs from the same drive are still executed one after another.
+        assertNull(startedJobs.poll(100, TimeUnit.MILLISECONDS));
+
+        firstJobLatch.countDown();
+
+        assertEquals("interactive", startedJobs.poll(5, TimeUnit.SECONDS));
+        assertEquals("normal", startedJobs.poll(5, TimeUnit.SECONDS));
+        assertEquals("bulk", startedJobs.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepOneThreadForNonBulkJobs() throws Exception
+    {
+        CountDownLatch bulkJobLatch = new CountDownLatch(1);
+        mockJob("bulk", bulkJobLatch);
+        mockJob("otherBulk", new CountDownLatch(0));
+        mockJob("interactive", new CountDownLatch(0));
+
+        mocker.getComponentUnderTest().execute("bulk", createRequest("bulk", "Drive1", JobPriority.BULK));
+        assertEquals("bulk", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        mocker.getComponentUnderTest().execute("otherBulk", createRequest("otherBulk", "Drive2", JobPriority.BULK));
+        mocker.getComponentUnderTest().execute("interactive",
+            createRequest("interactive", "Drive3", JobPriority.INTERACTIVE));
+
+        // The second job thread is kept for the interactive job.
+        assertEquals("interactive", startedJobs.poll(5, TimeUnit.SECONDS));
+
+        bulkJobLatch.countDown();
+
+        assertEquals("otherBulk", startedJobs.poll(5, TimeUnit.SECONDS));
+    }
+
+    private Job mockJob(final String jobType, final CountDownLatch latch) throws Exception
+    {
+        Job job = mock(Job.class, jobType);
+        when(componentManager.getInstance(Job.class, jobType)).thenReturn(job);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                startedJobs.add(jobType);
+                latch.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(job).run();
+        BatchPathRequest request = createRequest(jobType, "Drive");
+        when(job.getRequest()).thenReturn(request);
+        when(job.getStatus()).thenReturn(mock(org.xwiki.job.event.status.JobStatus.class));
+        return job;
+    }
+
+    private BatchPathRequest createRequest(String jobId, String drive)
+    {
+        return createRequest(jobId, drive, JobPriority.NORMAL);
+    }
+
+    private BatchPathRequest createRequest(String jobId, String drive, JobPriority priority)
+    {
+        BatchPathRequest request = new BatchPathRequest();
+        request.setPriority(priority);
+        request.setId(getJobId(jobId));
+        request.setPaths(Arrays.asList(new Path(new DocumentReference("wiki", drive, "Folder"))));
+        return request;
+    }
+
+    private List<String> getJobId(String jobId)
+    {
+        return Arrays.asList(FileManager.JOB_ID_PREFIX, jobId);
+    }
+}
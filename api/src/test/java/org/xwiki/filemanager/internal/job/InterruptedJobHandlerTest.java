@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.BatchPathRequest;
+import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+/**
+ * Unit tests for {@link InterruptedJobHandler}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class InterruptedJobHandlerTest
+{
+    @Rule
+    public MockitoComponentMockingRule<EventListener> mocker = new MockitoComponentMockingRule<EventListener>(
+        InterruptedJobHandler.class);
+
+    private JobCheckpointStore checkpointStore;
+
+    private FileSystemJobExecutor jobExecutor;
+
+    private Queue<String> activeJobQueue;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void configure() throws Exception
+    {
+        checkpointStore = mocker.getInstance(JobCheckpointStore.class);
+        jobExecutor = mocker.getInstance(FileSystemJobExecutor.class);
+
+        activeJobQueue = (Queue<String>) mock(EventListener.class, withSettings().extraInterfaces(Queue.class));
+        mocker.registerComponent(EventListener.class, ActiveJobQueue.NAME, activeJobQueue);
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception
+    {
+        Path concerto = new Path(new DocumentReference("wiki", "Drive", "Concerto"));
+        Path resilience = new Path(new DocumentReference("wiki", "Drive", "Resilience"));
+        Path specs = new Path(new DocumentReference("wiki", "Drive", "Specs"));
+
+        JobCheckpoint checkpoint = createCheckpoint("abc", concerto, resilience, specs);
+        checkpoint.getStartedPaths().add(concerto);
+        checkpoint.getCompletedPaths().add(concerto);
+        checkpoint.getStartedPaths().add(resilience);
+        checkpoint.setCursor(resilience);
+
+        JobCheckpoint finished = createCheckpoint("xyz", concerto);
+        finished.getCompletedPaths().add(concerto);
+
+        when(checkpointStore.getAll()).thenReturn(Arrays.asList(checkpoint, finished));
+
+        mocker.getComponentUnderTest().onEvent(new ApplicationReadyEvent(), null, null);
+
+        verify(jobExecutor).execute(DeleteJob.JOB_TYPE, checkpoint.getRequest());
+        assertEquals(Arrays.asList(resilience, specs), checkpoint.getRequest().getPaths());
+        // The path that was being processed when the job was interrupted may have been partially processed.
+        assertEquals(Arrays.asList(resilience),
+            checkpoint.getRequest().getProperty(AbstractFileSystemJob.PROPERTY_INTERRUPTED_PATHS));
+        verify(activeJobQueue).offer("abc");
+
+        verify(jobExecutor, never()).execute(anyString(), same(finished.getRequest()));
+        verify(checkpointStore).delete("xyz");
+        verify(activeJobQueue, never()).offer("xyz");
+    }
+
+    private JobCheckpoint createCheckpoint(String jobId, Path... paths)
+    {
+        BatchPathRequest request = new BatchPathRequest();
+        request.setId(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId));
+        request.setPaths(Arrays.asList(paths));
+        return new JobCheckpoint(DeleteJob.JOB_TYPE, request);
+    }
+}
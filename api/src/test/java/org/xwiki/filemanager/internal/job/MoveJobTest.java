@@ -21,17 +21,28 @@ package org.xwiki.filemanager.internal.job;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Provider;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.filemanager.Document;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.JobPlan;
 import org.xwiki.filemanager.job.MoveRequest;
 import org.xwiki.job.Job;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import com.xpn.xwiki.XWikiContext;
+
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
@@ -69,6 +80,149 @@ public class MoveJobTest extends AbstractJobTest
         verify(fileSystem).save(folder);
     }
 
+    @Test
+    public void moveFoldersInParallel() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getWorkerThreadCount()).thenReturn(2);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        Folder concerto = mockFolder("Concerto", "Projects");
+        Folder specs = mockFolder("Specs", "Concerto");
+        Folder resilience = mockFolder("Resilience", "Projects");
+        Folder newParent = mockFolder("Retired Projects");
+
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Arrays.asList(new Path(concerto.getReference()), new Path(resilience.getReference()),
+            new Path(specs.getReference())));
+        request.setDestination(new Path(newParent.getReference()));
+
+        execute(request);
+
+        verify(concerto).setParentReference(newParent.getReference());
+        verify(fileSystem).save(concerto);
+        verify(resilience).setParentReference(newParent.getReference());
+        verify(fileSystem).save(resilience);
+        verify(specs).setParentReference(newParent.getReference());
+        verify(fileSystem).save(specs);
+    }
+
+    @Test
+    public void moveFileFromMultipleParentsInParallel() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getWorkerThreadCount()).thenReturn(2);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        Folder concerto = mockFolder("Concerto", "Projects");
+        Folder resilience = mockFolder("Resilience", "Projects");
+        Folder newParent = mockFolder("Retired Projects");
+        File readme = mockFile("readme.txt", "Concerto", "Resilience");
+
+        // The paths that target the same file modify the same document so they must not be moved in parallel.
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        }).when(fileSystem).save(readme);
+
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Arrays.asList(new Path(concerto.getReference(), readme.getReference()), new Path(resilience
+            .getReference(), readme.getReference())));
+        request.setDestination(new Path(newParent.getReference()));
+
+        execute(request);
+
+        verify(fileSystem, times(2)).save(readme);
+        assertEquals(1, threads.size());
+        assertFalse(getParents(readme).contains("Concerto"));
+        assertFalse(getParents(readme).contains("Resilience"));
+        assertTrue(getParents(readme).contains("Retired Projects"));
+    }
+
+    @Test
+    public void mergeFoldersAfterParallelMoves() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getWorkerThreadCount()).thenReturn(2);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        // The moved folders share a file and both have to be merged with a folder of the destination.
+        Folder concerto =
+            mockFolder("Concerto", "Projects", Collections.<String>emptyList(), Arrays.asList("readme.txt"));
+        Folder resilience =
+            mockFolder("Resilience", "Projects", Collections.<String>emptyList(), Arrays.asList("readme.txt"));
+        File readme = mockFile("readme.txt", "Concerto", "Resilience");
+        mockFolder("Concerto1", "Concerto", "Retired", Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+        mockFolder("Resilience1", "Resilience", "Retired", Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+        Folder retired =
+            mockFolder("Retired", null, Arrays.asList("Concerto1", "Resilience1"), Collections.<String>emptyList());
+
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        }).when(fileSystem).save(readme);
+
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Arrays.asList(new Path(concerto.getReference()), new Path(resilience.getReference())));
+        request.setDestination(new Path(retired.getReference()));
+
+        execute(request);
+
+        // The merges are done on the job thread, one after another.
+        verify(fileSystem, times(2)).save(readme);
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+        assertEquals(Arrays.asList("Concerto1", "Resilience1"), getParents(readme));
+        verify(concerto, never()).setParentReference(retired.getReference());
+        verify(resilience, never()).setParentReference(retired.getReference());
+    }
+
+    @Test
+    public void planMove() throws Exception
+    {
+        Folder concerto = mockFolder("Concerto", "Projects");
+        File readme = mockFile("readme.txt", "Concerto");
+        mockFolder("Concerto1", "Concerto", "Retired Projects", Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+        Folder newParent =
+            mockFolder("Retired Projects", null, Arrays.asList("Concerto1"), Collections.<String>emptyList());
+
+        MoveRequest request = new MoveRequest();
+        request.setPaths(Arrays.asList(new Path(concerto.getReference()), new Path(concerto.getReference(),
+            readme.getReference())));
+        request.setDestination(new Path(newParent.getReference()));
+        request.setDryRun(true);
+
+        MoveJob job = (MoveJob) execute(request);
+
+        JobPlan plan = job.getFileSystemStatus().getPlan();
+        assertEquals(1, plan.getFolderCount());
+        assertEquals(1, plan.getFileCount());
+        assertEquals(Arrays.asList(new Path(ref("Concerto1"))), plan.getConflicts());
+
+        verify(fileSystem, never()).save(any(Document.class));
+        verify(concerto, never()).setParentReference(any(DocumentReference.class));
+    }
+
     @Test
     public void moveFolderInItself() throws Exception
     {
@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.environment.Environment;
+import org.xwiki.filemanager.FileManagerConfiguration;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link PackCache}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class PackCacheTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PackCache> mocker = new MockitoComponentMockingRule<PackCache>(
+        PackCache.class);
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private DocumentReference projectsReference = new DocumentReference("wiki", "Drive", "Projects");
+
+    private DocumentReference readmeReference = new DocumentReference("wiki", "Drive", "readme.txt");
+
+    private PackCache cache;
+
+    @Before
+    public void configure() throws Exception
+    {
+        Environment environment = mocker.getInstance(Environment.class);
+        when(environment.getTemporaryDirectory()).thenReturn(testFolder.getRoot());
+
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getPackCacheSize()).thenReturn(1);
+
+        cache = mocker.getComponentUnderTest();
+    }
+
+    @Test
+    public void getKey()
+    {
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(projectsReference), new Path(null, readmeReference)));
+
+        Map<DocumentReference, String> versions = new LinkedHashMap<DocumentReference, String>();
+        versions.put(projectsReference, "1.1");
+        versions.put(readmeReference, "2.1");
+        String key = cache.getKey(request, versions);
+        assertEquals(64, key.length());
+
+        // The order of the files and folders doesn't matter.
+        Map<DocumentReference, String> reversedVersions = new LinkedHashMap<DocumentReference, String>();
+        reversedVersions.put(readmeReference, "2.1");
+        reversedVersions.put(projectsReference, "1.1");
+        assertEquals(key, cache.getKey(request, reversedVersions));
+
+        // A modified file leads to a different key.
+        versions.put(readmeReference, "3.1");
+        assertFalse(key.equals(cache.getKey(request, versions)));
+        versions.put(readmeReference, "2.1");
+
+        // The pack options are part of the key.
+        request.setCompressionLevel(9);
+        assertFalse(key.equals(cache.getKey(request, versions)));
+        request.setCompressionLevel(-1);
+
+        // The request paths are part of the key.
+        request.setPaths(Arrays.asList(new Path(projectsReference)));
+        assertFalse(key.equals(cache.getKey(request, versions)));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception
+    {
+        File first = createArchive("first.zip", 400);
+        File second = createArchive("second.zip", 400);
+        File third = createArchive("third.zip", 400);
+
+        cache.put("first", first);
+        cache.put("second", second);
+        assertEquals(800 * 1024, cache.getSize());
+
+        // Use the first archive so that the second is the least recently used.
+        File cachedFirst = cache.get("first");
+        assertTrue(FileUtils.contentEquals(first, cachedFirst));
+        assertFalse(first.equals(cachedFirst));
+
+        cache.put("third", third);
+
+        assertNull(cache.get("second"));
+        assertNotNull(cache.get("first"));
+        assertNotNull(cache.get("third"));
+        assertEquals(800 * 1024, cache.getSize());
+        assertEquals(2, new File(testFolder.getRoot(), "filemanager/pack-cache").list().length);
+    }
+
+    @Test
+    public void skipArchivesLargerThanTheBudget() throws Exception
+    {
+        cache.put("large", createArchive("large.zip", 2048));
+
+        assertNull(cache.get("large"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void forgetDeletedArchives() throws Exception
+    {
+        cache.put("first", createArchive("first.zip", 1));
+        assertTrue(cache.get("first").delete());
+
+        assertNull(cache.get("first"));
+        assertEquals(0, cache.getSize());
+    }
+
+    private File createArchive(String name, int kilobytes) throws Exception
+    {
+        File file = testFolder.newFile(name);
+        FileUtils.writeByteArrayToFile(file, new byte[kilobytes * 1024]);
+        return file;
+    }
+}
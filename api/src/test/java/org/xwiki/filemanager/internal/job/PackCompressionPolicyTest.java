@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link PackCompressionPolicy}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class PackCompressionPolicyTest
+{
+    @Test
+    public void isCompressible()
+    {
+        assertTrue(PackCompressionPolicy.isCompressible("text/plain", "notes.txt"));
+        assertTrue(PackCompressionPolicy.isCompressible("image/svg+xml", "logo.svg"));
+        assertTrue(PackCompressionPolicy.isCompressible("application/pdf", "report.pdf"));
+        assertTrue(PackCompressionPolicy.isCompressible(null, "build.xml"));
+        assertTrue(PackCompressionPolicy.isCompressible(null, "README"));
+
+        assertFalse(PackCompressionPolicy.isCompressible("image/jpeg", "photo"));
+        assertFalse(PackCompressionPolicy.isCompressible("VIDEO/MP4; codecs=avc1", "clip.txt"));
+        assertFalse(PackCompressionPolicy.isCompressible("application/zip", "archive"));
+        assertFalse(PackCompressionPolicy.isCompressible(
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "report"));
+        assertFalse(PackCompressionPolicy.isCompressible("application/octet-stream", "slides.PPTX"));
+        assertFalse(PackCompressionPolicy.isCompressible(null, "movie.mkv"));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.FileManager;
+import org.xwiki.filemanager.job.PackJobStatus;
+import org.xwiki.filemanager.job.PackRequest;
+import org.xwiki.job.event.status.JobStatus.State;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link PackJobCoalescer}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class PackJobCoalescerTest
+{
+    @Rule
+    public MockitoComponentMockingRule<EventListener> mocker = new MockitoComponentMockingRule<EventListener>(
+        PackJobCoalescer.class);
+
+    private DocumentReference userReference = new DocumentReference("wiki", "Users", "mflorea");
+
+    private DocumentReference projectsReference = new DocumentReference("wiki", "Drive", "Projects");
+
+    private DocumentReference readmeReference = new DocumentReference("wiki", "Drive", "readme.txt");
+
+    private AttachmentReference outputFileReference = new AttachmentReference("Projects.zip", new DocumentReference(
+        "wiki", "Drive", "Download-mflorea-Projects"));
+
+    private PackJobStatus jobStatus;
+
+    private PackJobCoalescer coalescer;
+
+    @Before
+    public void configure() throws Exception
+    {
+        jobStatus = mock(PackJobStatus.class);
+        when(jobStatus.getState()).thenReturn(State.RUNNING);
+
+        coalescer = (PackJobCoalescer) mocker.getComponentUnderTest();
+        coalescer.register(createRequest("abc", new Path(projectsReference), new Path(null, readmeReference)),
+            jobStatus);
+    }
+
+    @Test
+    public void reuseRunningJob() throws Exception
+    {
+        // The order of the paths doesn't matter.
+        assertEquals("abc", coalescer.getReusableJob(createRequest("xyz", new Path(null, readmeReference),
+            new Path(projectsReference))));
+
+        // Different paths.
+        assertNull(coalescer.getReusableJob(createRequest("xyz", new Path(projectsReference))));
+
+        // Different user.
+        PackRequest request = createRequest("xyz", new Path(projectsReference), new Path(null, readmeReference));
+        request.setProperty(DefaultFileManager.PROPERTY_USER_REFERENCE, new DocumentReference("wiki", "Users",
+            "Alice"));
+        assertNull(coalescer.getReusableJob(request));
+    }
+
+    @Test
+    public void reuseRecentlyFinishedJob() throws Exception
+    {
+        PackRequest request = createRequest("xyz", new Path(projectsReference), new Path(null, readmeReference));
+
+        when(jobStatus.getState()).thenReturn(State.FINISHED);
+        when(jobStatus.getEndDate()).thenReturn(new Date());
+        when(jobStatus.getOutputFileSize()).thenReturn(1024L);
+        assertEquals("abc", coalescer.getReusableJob(request));
+
+        when(jobStatus.getEndDate()).thenReturn(new Date(System.currentTimeMillis() - 3600000L));
+        assertNull(coalescer.getReusableJob(request));
+    }
+
+    @Test
+    public void dontReuseCanceledJob() throws Exception
+    {
+        when(jobStatus.isCanceled()).thenReturn(true);
+
+        assertNull(coalescer.getReusableJob(createRequest("xyz", new Path(projectsReference), new Path(null,
+            readmeReference))));
+    }
+
+    @Test
+    public void invalidateOnDriveChange() throws Exception
+    {
+        PackRequest request = createRequest("xyz", new Path(projectsReference), new Path(null, readmeReference));
+
+        // Saving the download document doesn't change the packed files.
+        XWikiDocument downloadDocument = mock(XWikiDocument.class);
+        DocumentReference downloadDocumentReference = outputFileReference.getDocumentReference();
+        when(downloadDocument.getDocumentReference()).thenReturn(downloadDocumentReference);
+        coalescer.onEvent(new DocumentUpdatedEvent(), downloadDocument, null);
+        assertEquals("abc", coalescer.getReusableJob(request));
+
+        // Neither does saving the download document of another pack job.
+        XWikiDocument otherDownloadDocument = mock(XWikiDocument.class, "other");
+        when(otherDownloadDocument.getDocumentReference()).thenReturn(
+            new DocumentReference("wiki", "Drive", "Download-alice-Projects"));
+        coalescer.onEvent(new DocumentCreatedEvent(), otherDownloadDocument, null);
+        assertEquals("abc", coalescer.getReusableJob(request));
+
+        XWikiDocument readme = mock(XWikiDocument.class);
+        when(readme.getDocumentReference()).thenReturn(readmeReference);
+        coalescer.onEvent(new DocumentUpdatedEvent(), readme, null);
+        assertNull(coalescer.getReusableJob(request));
+    }
+
+    private PackRequest createRequest(String jobId, Path... paths)
+    {
+        PackRequest request = new PackRequest();
+        request.setId(Arrays.asList(FileManager.JOB_ID_PREFIX, jobId));
+        request.setPaths(Arrays.asList(paths));
+        request.setOutputFileReference(outputFileReference);
+        request.setProperty(DefaultFileManager.PROPERTY_USER_REFERENCE, userReference);
+        return request;
+    }
+}
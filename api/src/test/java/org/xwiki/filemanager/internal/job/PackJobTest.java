@@ -20,6 +20,8 @@
 package org.xwiki.filemanager.internal.job;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,24 +30,39 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.inject.Provider;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.xwiki.environment.Environment;
 import org.xwiki.filemanager.File;
+import org.xwiki.filemanager.FileManagerConfiguration;
 import org.xwiki.filemanager.Folder;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.job.FileManager;
 import org.xwiki.filemanager.job.PackRequest;
 import org.xwiki.job.Job;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import com.xpn.xwiki.XWikiContext;
+
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 /**
@@ -128,6 +145,287 @@ public class PackJobTest extends AbstractJobTest
         assertTrue(job.getPackStatus().getOutputFileSize() > 0);
     }
 
+    @Test
+    public void packInParallel() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getWorkerThreadCount()).thenReturn(2);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        List<String> fileNames = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            fileNames.add("file" + i + ".txt");
+        }
+        Folder projects = mockFolder("Projects", "Pr\u00F4j\u00EA\u00E7\u021B\u0219", null,
+            Arrays.asList("Concerto"), fileNames);
+        for (String fileName : fileNames) {
+            setFileContent(mockFile(fileName, "Projects"), fileName);
+        }
+        mockFolder("Concerto", "Projects", Collections.<String>emptyList(), Arrays.asList("video.mp4"));
+        // Large enough to be compressed in a temporary file.
+        byte[] video = new byte[3 * 1024 * 1024];
+        new Random(7).nextBytes(video);
+        File videoFile = mockFile("video.mp4", "Concerto");
+        when(videoFile.getContent()).thenReturn(new ByteArrayInputStream(video));
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(projects.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+
+        PackJob job = (PackJob) execute(request);
+
+        ZipFile zip = new ZipFile(new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip"));
+        List<String> entryNames = new ArrayList<String>();
+        Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+        while (entries.hasMoreElements()) {
+            entryNames.add(entries.nextElement().getName());
+        }
+        String prefix = projects.getName() + '/';
+        ZipArchiveEntry videoEntry = zip.getEntry(prefix + "Concerto/video.mp4");
+        assertArrayEquals(video, IOUtils.toByteArray(zip.getInputStream(videoEntry)));
+        // Videos are already compressed.
+        assertEquals(ZipArchiveEntry.STORED, videoEntry.getMethod());
+        for (String fileName : fileNames) {
+            assertEquals(fileName, IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + fileName))));
+        }
+        zip.close();
+
+        // The entries are written in the order the folder tree is walked.
+        List<String> expectedEntryNames = new ArrayList<String>();
+        expectedEntryNames.addAll(Arrays.asList(prefix, prefix + "Concerto/", prefix + "Concerto/video.mp4"));
+        long bytesWritten = video.length;
+        for (String fileName : fileNames) {
+            expectedEntryNames.add(prefix + fileName);
+            bytesWritten += fileName.length();
+        }
+        assertEquals(expectedEntryNames, entryNames);
+        assertEquals(bytesWritten, job.getPackStatus().getBytesWritten());
+
+        // No temporary files are left behind.
+        assertEquals(Arrays.asList("temp"), Arrays.asList(testFolder.getRoot().list()));
+    }
+
+    @Test
+    public void readAhead() throws Exception
+    {
+        FileManagerConfiguration configuration = mocker.getInstance(FileManagerConfiguration.class);
+        when(configuration.getPackReadAheadCount()).thenReturn(2);
+        when(configuration.getPackReadAheadMemory()).thenReturn(1);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(xcontextProvider.get()).thenReturn(mock(XWikiContext.class));
+
+        final Map<String, String> readers = new ConcurrentHashMap<String, String>();
+        List<String> fileNames = Arrays.asList("a.txt", "b.txt", "c.txt", "large.txt", "d.txt");
+        Folder projects = mockFolder("Projects", "Projects", null, Arrays.asList("Concerto"), fileNames);
+        for (final String fileName : fileNames) {
+            File file = mockFile(fileName, "Projects");
+            when(file.getSize()).thenReturn(fileName.startsWith("large") ? 2 * 1024 * 1024L : fileName.length());
+            when(file.getContent()).then(new Answer<InputStream>()
+            {
+                @Override
+                public InputStream answer(InvocationOnMock invocation) throws Throwable
+                {
+                    readers.put(fileName, Thread.currentThread().getName());
+                    return new ByteArrayInputStream(fileName.getBytes());
+                }
+            });
+        }
+        mockFolder("Concerto", "Projects");
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(projects.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+
+        execute(request);
+
+        ZipFile zip = new ZipFile(new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip"));
+        List<String> entryNames = new ArrayList<String>();
+        Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+            entryNames.add(entry.getName());
+            if (!entry.isDirectory()) {
+                assertEquals(entry.getName(), "Projects/" + IOUtils.toString(zip.getInputStream(entry)));
+            }
+        }
+        zip.close();
+
+        // The entries are written in the order the folder tree is walked.
+        List<String> expectedEntryNames = new ArrayList<String>(Arrays.asList("Projects/", "Projects/Concerto/"));
+        for (String fileName : fileNames) {
+            expectedEntryNames.add("Projects/" + fileName);
+        }
+        assertEquals(expectedEntryNames, entryNames);
+
+        // The files that fit the memory budget are read ahead by the worker threads.
+        String jobThread = Thread.currentThread().getName();
+        for (String fileName : fileNames) {
+            assertEquals(fileName, fileName.startsWith("large"), readers.get(fileName).equals(jobThread));
+        }
+    }
+
+    @Test
+    public void storeCompressedFiles() throws Exception
+    {
+        File photo = mockFile("photo.jpg", "photo.jpg");
+        setFileContent(photo, "jpeg");
+        File clip = mockFile("clip", "clip");
+        setFileContent(clip, "mp4");
+        when(clip.getMediaType()).thenReturn("video/mp4");
+        File notes = mockFile("notes.txt", "notes.txt");
+        setFileContent(notes, "notes");
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(null, photo.getReference()), new Path(null, clip.getReference()),
+            new Path(null, notes.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+        request.setCompressionLevel(9);
+
+        execute(request);
+
+        ZipFile zip = new ZipFile(new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip"));
+        assertEquals(ZipArchiveEntry.STORED, zip.getEntry("photo.jpg").getMethod());
+        assertEquals("jpeg", IOUtils.toString(zip.getInputStream(zip.getEntry("photo.jpg"))));
+        assertEquals(ZipArchiveEntry.STORED, zip.getEntry("clip").getMethod());
+        assertEquals(ZipArchiveEntry.DEFLATED, zip.getEntry("notes.txt").getMethod());
+        assertEquals("notes", IOUtils.toString(zip.getInputStream(zip.getEntry("notes.txt"))));
+        zip.close();
+    }
+
+    @Test
+    public void cacheArchive() throws Exception
+    {
+        File readme = mockFile("readme.txt", "readme.txt");
+        setFileContent(readme, "blah");
+        Map<DocumentReference, String> versions = Collections.singletonMap(readme.getReference(), "1.1");
+        when(fileSystem.getVersions(Arrays.asList(readme.getReference()))).thenReturn(versions);
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(null, readme.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+
+        PackCache packCache = mocker.getInstance(PackCache.class);
+        when(packCache.getKey(request, versions)).thenReturn("abc");
+
+        execute(request);
+
+        java.io.File outputFile = new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip");
+        verify(packCache).put("abc", outputFile);
+    }
+
+    @Test
+    public void reuseCachedArchive() throws Exception
+    {
+        File readme = mockFile("readme.txt", "readme.txt");
+        Map<DocumentReference, String> versions = Collections.singletonMap(readme.getReference(), "1.1");
+        when(fileSystem.getVersions(Arrays.asList(readme.getReference()))).thenReturn(versions);
+        when(fileSystem.getTotalFileSize(Arrays.asList(readme.getReference()))).thenReturn(4L);
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(null, readme.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+
+        java.io.File cachedArchive = testFolder.newFile("abc.zip");
+        FileUtils.writeStringToFile(cachedArchive, "cached");
+        PackCache packCache = mocker.getInstance(PackCache.class);
+        when(packCache.getKey(request, versions)).thenReturn("abc");
+        when(packCache.get("abc")).thenReturn(cachedArchive);
+
+        PackJob job = (PackJob) execute(request);
+
+        // The files are not packed again.
+        verify(readme, never()).getContent();
+        verify(packCache, never()).put(anyString(), any(java.io.File.class));
+        java.io.File outputFile = new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip");
+        assertEquals("cached", FileUtils.readFileToString(outputFile));
+        assertEquals(4, job.getPackStatus().getBytesWritten());
+        assertEquals(outputFile.length(), job.getPackStatus().getOutputFileSize());
+    }
+
+    @Test
+    public void packToOutputStream() throws Exception
+    {
+        File photo = mockFile("photo.jpg", "photo.jpg");
+        setFileContent(photo, "jpeg");
+        File notes = mockFile("notes.txt", "notes.txt");
+        setFileContent(notes, "notes");
+
+        PackRequest request = new PackRequest();
+        request.setPaths(Arrays.asList(new Path(null, photo.getReference()), new Path(null, notes.getReference())));
+
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        {
+            @Override
+            public void close()
+            {
+                closed[0] = true;
+            }
+        };
+        PackJob job = (PackJob) mocker.getComponentUnderTest();
+        job.setOutputStream(output);
+        job.initialize(request);
+        job.run();
+
+        // The archive is written to the output stream, which is left open, without walking the tree first.
+        assertFalse(closed[0]);
+        assertEquals(0, testFolder.getRoot().list().length);
+        verify(fileSystem, never()).getTotalFileSize(anyCollectionOf(DocumentReference.class));
+        assertEquals(("jpeg" + "notes").getBytes().length, job.getPackStatus().getBytesWritten());
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+        Map<String, String> files = new HashMap<String, String>();
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            files.put(entry.getName(), IOUtils.toString(zip));
+        }
+        zip.close();
+
+        assertEquals(2, files.size());
+        assertEquals("jpeg", files.get("photo.jpg"));
+        assertEquals("notes", files.get("notes.txt"));
+    }
+
+    @Test
+    public void cancel() throws Exception
+    {
+        final ActiveJobQueue activeJobQueue = new ActiveJobQueue();
+        activeJobQueue.add("abc");
+        mocker.registerComponent(EventListener.class, ActiveJobQueue.NAME, activeJobQueue);
+
+        File readme = mockFile("readme.txt", "readme.txt");
+        when(readme.getContent()).then(new Answer<InputStream>()
+        {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable
+            {
+                activeJobQueue.cancel("abc");
+                return new ByteArrayInputStream("blah".getBytes());
+            }
+        });
+        File notes = mockFile("notes.txt", "notes.txt");
+
+        PackRequest request = new PackRequest();
+        request.setId(Arrays.asList(FileManager.JOB_ID_PREFIX, "abc"));
+        request.setPaths(Arrays.asList(new Path(null, readme.getReference()), new Path(null, notes.getReference())));
+        request.setOutputFileReference(new AttachmentReference("out.zip",
+            new DocumentReference("wiki", "Space", "Page")));
+
+        PackJob job = (PackJob) execute(request);
+
+        verify(notes, never()).getContent();
+        assertTrue(job.getPackStatus().isCanceled());
+        assertEquals(0, job.getPackStatus().getOutputFileSize());
+        assertFalse(new java.io.File(testFolder.getRoot(), "temp/filemanager/wiki/Space/Page/out.zip").exists());
+    }
+
     private void setFileContent(File file, String content)
     {
         when(file.getContent()).thenReturn(new ByteArrayInputStream(content.getBytes()));
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.filemanager.internal.job;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.xwiki.filemanager.job.FileSystemJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link WriteThrottle}.
+ * 
+ * @version $Id$
+ * @since 2.4
+ */
+public class WriteThrottleTest
+{
+    private FileSystemJobStatus jobStatus = new FileSystemJobStatus(mock(JobStatus.class));
+
+    @Test
+    public void adaptToLatency()
+    {
+        WriteThrottle throttle = new WriteThrottle(10, jobStatus);
+
+        // Slow writes.
+        throttle.written(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(15), 1);
+        assertEquals(10, jobStatus.getThrottleDelay());
+        throttle.written(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(15), 1);
+        assertEquals(20, jobStatus.getThrottleDelay());
+
+        // Fast writes.
+        for (int i = 0; i < 20; i++) {
+            throttle.written(System.nanoTime(), 1);
+        }
+        assertEquals(0, jobStatus.getThrottleDelay());
+    }
+
+    @Test
+    public void measureThroughputOnly()
+    {
+        WriteThrottle throttle = new WriteThrottle(0, jobStatus);
+
+        // The writes are not throttled when there's no latency budget.
+        throttle.written(System.nanoTime() - TimeUnit.SECONDS.toNanos(2), 10);
+        assertEquals(0, jobStatus.getThrottleDelay());
+        assertTrue(jobStatus.getThroughput() > 0);
+    }
+
+    @Test
+    public void deferPause()
+    {
+        WriteThrottle throttle = new WriteThrottle(10, jobStatus);
+
+        // The pause is taken when the thread resumes (e.g. after releasing a lock), not when the write is recorded.
+        throttle.defer();
+        long start = System.nanoTime();
+        throttle.written(start - TimeUnit.MILLISECONDS.toNanos(15 * 50), 50);
+        assertEquals(10, jobStatus.getThrottleDelay());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+
+        start = System.nanoTime();
+        throttle.resume();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+    }
+}
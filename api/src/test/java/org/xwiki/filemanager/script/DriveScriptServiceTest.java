@@ -21,6 +21,7 @@ package org.xwiki.filemanager.script;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -28,7 +29,9 @@ import org.junit.Test;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
+import org.xwiki.filemanager.FileSystem;
 import org.xwiki.filemanager.Path;
+import org.xwiki.filemanager.hierarchy.DriveHierarchyIndex;
 import org.xwiki.filemanager.internal.reference.DocumentNameSequence;
 import org.xwiki.filemanager.job.BatchPathRequest;
 import org.xwiki.filemanager.job.FileManager;
@@ -128,6 +131,41 @@ public class DriveScriptServiceTest
         assertEquals(expectedReference, this.drive.getUniqueReference("foo"));
     }
 
+    @Test
+    public void hasChildFolders() throws Exception
+    {
+        FileSystem fileSystem = this.mocker.getInstance(FileSystem.class);
+        when(fileSystem.hasChildFolders(Arrays.asList(newReference("a"), newReference("b")))).thenReturn(
+            Arrays.asList(newReference("b")));
+
+        assertEquals(Arrays.asList("b"), this.drive.hasChildFolders(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void getPath() throws Exception
+    {
+        DriveHierarchyIndex driveHierarchyIndex = this.mocker.getInstance(DriveHierarchyIndex.class);
+        when(driveHierarchyIndex.getPath(newReference("c"))).thenReturn(
+            Arrays.asList(newReference("c"), newReference("b"), newReference("a")));
+        when(driveHierarchyIndex.getOrphanFolders(this.driveReference)).thenReturn(
+            Arrays.asList(newReference("d"), newReference("e")));
+
+        FileSystem fileSystem = this.mocker.getInstance(FileSystem.class);
+        when(fileSystem.filterByRight(FileSystem.RIGHT_VIEW,
+            Arrays.asList(newReference("c"), newReference("b"), newReference("a")))).thenReturn(
+            Arrays.asList(newReference("c"), newReference("a")));
+        when(fileSystem.filterByRight(FileSystem.RIGHT_VIEW, Arrays.asList(newReference("d"), newReference("e"))))
+            .thenReturn(Arrays.asList(newReference("d")));
+
+        // The path stops before the first folder that can't be viewed.
+        assertEquals(Arrays.asList("c"), this.drive.getPath(newReference("c")));
+        assertEquals(Arrays.asList("d"), this.drive.getOrphanFolders());
+
+        // The path is limited to the current drive.
+        assertEquals(Collections.emptyList(), this.drive.getPath(new DocumentReference("wiki", "Other", "c")));
+        verify(driveHierarchyIndex, never()).getPath(new DocumentReference("wiki", "Other", "c"));
+    }
+
     private DocumentReference newReference(String name)
     {
         return new DocumentReference(name, driveReference);